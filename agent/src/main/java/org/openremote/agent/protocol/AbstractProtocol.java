@@ -22,6 +22,7 @@ package org.openremote.agent.protocol;
 import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.RouteBuilder;
 import org.openremote.agent.protocol.filter.MessageFilter;
+import org.openremote.agent.protocol.filter.MessageFilterPipeline;
 import org.openremote.container.Container;
 import org.openremote.container.concurrent.GlobalLock;
 import org.openremote.container.message.MessageBrokerContext;
@@ -37,18 +38,16 @@ import org.openremote.model.asset.agent.ConnectionStatus;
 import org.openremote.model.asset.agent.ProtocolConfiguration;
 import org.openremote.model.asset.agent.ProtocolDescriptor;
 import org.openremote.model.attribute.*;
-import org.openremote.model.value.Value;
 import org.openremote.model.value.ValueType;
-import org.openremote.model.value.Values;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.openremote.container.concurrent.GlobalLock.withLock;
-import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
 
 /**
  * Thread-safe base implementation for protocols.
@@ -70,6 +69,11 @@ import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
  * All <code>abstract</code> methods are always called within lock scope. An implementation can rely on this lock
  * and safely modify internal, protocol-specific shared state. However, if a protocol implementation schedules
  * an asynchronous task, this task must obtain the lock to call any protocol operations.
+ * <p>
+ * The linked attributes, protocol configurations, and message filters of each protocol are stored in concurrent
+ * maps. They are only modified while linking and unlinking (within lock scope), reading them doesn't lock. Sensor
+ * value updates with {@link #updateLinkedAttribute} therefore don't obtain the lock, so protocols don't contend
+ * with each other and with asset processing when publishing sensor values.
  */
 public abstract class AbstractProtocol implements Protocol {
 
@@ -77,7 +81,7 @@ public abstract class AbstractProtocol implements Protocol {
 
         final AssetAttribute protocolConfiguration;
         final Consumer<ConnectionStatus> connectionStatusConsumer;
-        ConnectionStatus currentConnectionStatus;
+        volatile ConnectionStatus currentConnectionStatus;
 
         protected LinkedProtocolInfo(
             AssetAttribute protocolConfiguration,
@@ -108,9 +112,9 @@ public abstract class AbstractProtocol implements Protocol {
 
     private static final Logger LOG = Logger.getLogger(AbstractProtocol.class.getName());
 
-    protected final Map<AttributeRef, AssetAttribute> linkedAttributes = new HashMap<>();
-    protected final Map<AttributeRef, LinkedProtocolInfo> linkedProtocolConfigurations = new HashMap<>();
-    protected final Map<AttributeRef, List<MessageFilter>> linkedAttributeFilters = new HashMap<>();
+    protected final Map<AttributeRef, AssetAttribute> linkedAttributes = new ConcurrentHashMap<>();
+    protected final Map<AttributeRef, LinkedProtocolInfo> linkedProtocolConfigurations = new ConcurrentHashMap<>();
+    protected final Map<AttributeRef, MessageFilterPipeline> linkedAttributePipelines = new ConcurrentHashMap<>();
     protected static final List<MetaItemDescriptor> attributeMetaItemDescriptors;
     protected MessageBrokerContext messageBrokerContext;
     protected ProducerTemplate producerTemplate;
@@ -216,19 +220,15 @@ public abstract class AbstractProtocol implements Protocol {
                 AttributeRef attributeRef = attribute.getReferenceOrThrow();
                 // Need to add to map before actual linking as protocols may want to update the value as part of
                 // linking process and without entry in the map any update would be blocked
+                linkedAttributePipelines.put(attributeRef, createMessageFilterPipeline(attribute));
                 linkedAttributes.put(attributeRef, attribute);
 
-                Optional<List<MessageFilter>> messageFilters = Protocol.getLinkedAttributeMessageFilters(attribute);
-                messageFilters.ifPresent(mFilters -> {
-                    linkedAttributeFilters.put(attributeRef, mFilters);
-                });
-
                 try {
                     doLinkAttribute(attribute, protocolConfiguration);
                 } catch (Exception e) {
                     LOG.log(Level.SEVERE, "Failed to link attribute to protocol: " + attribute, e);
                     linkedAttributes.remove(attributeRef);
-                    linkedAttributeFilters.remove(attributeRef);
+                    linkedAttributePipelines.remove(attributeRef);
                 }
             });
         });
@@ -241,17 +241,17 @@ public abstract class AbstractProtocol implements Protocol {
                 LOG.fine("Unlinking attribute on '" + getProtocolName() + "': " + attribute);
                 AttributeRef attributeRef = attribute.getReferenceOrThrow();
                 linkedAttributes.remove(attributeRef);
-                linkedAttributeFilters.remove(attributeRef);
+                linkedAttributePipelines.remove(attributeRef);
                 doUnlinkAttribute(attribute, protocolConfiguration);
             })
         );
     }
 
     /**
-     * Gets a linked attribute by its attribute ref
+     * Gets a linked attribute by its attribute ref, doesn't lock.
      */
     protected AssetAttribute getLinkedAttribute(AttributeRef attributeRef) {
-        return withLockReturning(getProtocolName() + "::getLinkedAttribute", () -> linkedAttributes.get(attributeRef));
+        return linkedAttributes.get(attributeRef);
     }
 
     /**
@@ -263,12 +263,10 @@ public abstract class AbstractProtocol implements Protocol {
     }
 
     protected AssetAttribute getLinkedProtocolConfiguration(AttributeRef protocolConfigurationRef) {
-        return withLockReturning(getProtocolName() + "::getLinkedProtocolConfigurations", () -> {
-            LinkedProtocolInfo linkedProtocolInfo = linkedProtocolConfigurations.get(protocolConfigurationRef);
-            // Don't bother with null check if someone calls here with an attribute not linked to this protocol
-            // then they're doing something wrong so fail hard and fast
-            return linkedProtocolInfo.getProtocolConfiguration();
-        });
+        LinkedProtocolInfo linkedProtocolInfo = linkedProtocolConfigurations.get(protocolConfigurationRef);
+        // Don't bother with null check if someone calls here with an attribute not linked to this protocol
+        // then they're doing something wrong so fail hard and fast
+        return linkedProtocolInfo.getProtocolConfiguration();
     }
 
     final protected void processLinkedAttributeWrite(AttributeEvent event) {
@@ -298,104 +296,50 @@ public abstract class AbstractProtocol implements Protocol {
      * publish new sensor values, which performs additional verification and uses a different messaging queue.
      */
     final protected void sendAttributeEvent(AttributeEvent event) {
-        withLock(getProtocolName() + "::sendAttributeEvent", () -> {
-            // Don't allow updating linked attributes with this mechanism as it could cause an infinite loop
-            if (linkedAttributes.containsKey(event.getAttributeRef())) {
-                LOG.warning("Cannot update an attribute linked to the same protocol; use updateLinkedAttribute for that: " + event);
-                return;
-            }
-            assetService.sendAttributeEvent(event);
-        });
+        // Don't allow updating linked attributes with this mechanism as it could cause an infinite loop
+        if (linkedAttributes.containsKey(event.getAttributeRef())) {
+            LOG.warning("Cannot update an attribute linked to the same protocol; use updateLinkedAttribute for that: " + event);
+            return;
+        }
+        assetService.sendAttributeEvent(event);
     }
 
     /**
      * Update the value of a linked attribute. Call this to publish new sensor values. This will apply any
      * {@link MessageFilter}s that have been set for the {@link Attribute} against the {@link AttributeState#value}
-     * before sending on the sensor queue.
+     * before sending on the sensor queue. Doesn't obtain the lock and can be called concurrently.
      */
     @SuppressWarnings("unchecked")
     final protected void updateLinkedAttribute(final AttributeState finalState, long timestamp) {
-        withLock(getProtocolName() + "::updateLinkedAttribute", () -> {
-            AttributeState state = finalState;
-            AssetAttribute attribute = linkedAttributes.get(state.getAttributeRef());
-
-            if (attribute == null) {
-                LOG.severe("Update linked attribute called for un-linked attribute: " + state);
-                return;
-            }
-
-            if (state.getValue().isPresent()) {
-                List<MessageFilter> filters;
-                Value value = state.getValue().get();
-
-                filters = linkedAttributeFilters.get(state.getAttributeRef());
-
-                if (filters != null) {
-                    LOG.fine("Applying message filters to sensor value...");
-
-                    for (MessageFilter filter : filters) {
-                        boolean filterOk = filter.getMessageType() == value.getType().getModelType();
-
-                        if (!filterOk) {
-                            // Try and convert the value
-                            ValueType filterValueType = ValueType.fromModelType(filter.getMessageType());
-                            if (filterValueType == null) {
-                                LOG.fine("Message filter type unknown: " + filter.getMessageType().getName());
-                                value = null;
-                            } else {
-                                Optional<Value> val = Values.convert(value, filterValueType);
-                                if (!val.isPresent()) {
-                                    LOG.fine("Message filter type '" + filter.getMessageType().getName()
-                                                 + "' is not compatible with actual message type '" + value.getType().getModelType().getName()
-                                                 + "': " + filter.getClass().getName());
-                                } else {
-                                    filterOk = true;
-                                }
-                                value = val.orElse(null);
-                            }
-                        }
-
-                        if (filterOk) {
-                            try {
-                                LOG.finest("Applying message filter: " + filter.getClass().getName());
-                                value = filter.process(value);
-                            } catch (Exception e) {
-                                LOG.log(
-                                    Level.SEVERE,
-                                    "Message filter threw and exception during processing of message: "
-                                        + filter.getClass().getName(),
-                                    e);
-                                value = null;
-                            }
-                        }
-
-                        if (value == null) {
-                            break;
-                        }
-                    }
-                }
+        AttributeState state = finalState;
+        AssetAttribute attribute = linkedAttributes.get(state.getAttributeRef());
 
-                // Do basic value conversion
-                Optional<ValueType> attributeValueType = attribute.getType().map(AttributeValueType::getValueType);
-
-                if (value != null && attributeValueType.isPresent()) {
-                    if (attributeValueType.get() != value.getType()) {
-                        LOG.fine("Converting value: " + value.getType() + " -> " + attributeValueType.get());
-                        Optional<Value> convertedValue = Values.convert(value, attributeValueType.get());
-                        if (!convertedValue.isPresent()) {
-                            LOG.warning("Failed to convert value: " + value.getType() + " -> " + attributeValueType.get());
-                        } else {
-                            value = convertedValue.get();
-                        }
-                    }
-                }
+        if (attribute == null) {
+            LOG.severe("Update linked attribute called for un-linked attribute: " + state);
+            return;
+        }
 
-                state = new AttributeState(state.getAttributeRef(), value);
+        if (state.getValue().isPresent()) {
+            MessageFilterPipeline pipeline = linkedAttributePipelines.get(state.getAttributeRef());
+            if (pipeline == null) {
+                // Concurrently unlinked
+                pipeline = createMessageFilterPipeline(attribute);
             }
-            AttributeEvent attributeEvent = new AttributeEvent(state, timestamp);
-            LOG.fine("Sending on sensor queue: " + attributeEvent);
-            producerTemplate.sendBodyAndHeader(SENSOR_QUEUE, attributeEvent, Protocol.SENSOR_QUEUE_SOURCE_PROTOCOL, getProtocolName());
-        });
+            state = new AttributeState(state.getAttributeRef(), pipeline.process(state.getValue().get()));
+        }
+        AttributeEvent attributeEvent = new AttributeEvent(state, timestamp);
+        LOG.fine("Sending on sensor queue: " + attributeEvent);
+        producerTemplate.sendBodyAndHeader(SENSOR_QUEUE, attributeEvent, Protocol.SENSOR_QUEUE_SOURCE_PROTOCOL, getProtocolName());
+    }
+
+    /**
+     * Compiles the {@link MessageFilter}s of the attribute, and the conversion to the attribute's value type.
+     */
+    protected MessageFilterPipeline createMessageFilterPipeline(AssetAttribute attribute) {
+        return new MessageFilterPipeline(
+            Protocol.getLinkedAttributeMessageFilters(attribute).orElse(null),
+            attribute.getType().map(AttributeValueType::getValueType).orElse(null)
+        );
     }
 
     /**
@@ -438,10 +382,8 @@ public abstract class AbstractProtocol implements Protocol {
      * Gets the current runtime status of a protocol configuration.
      */
     final protected ConnectionStatus getStatus(AssetAttribute protocolConfiguration) {
-        return withLockReturning(getProtocolName() + "::getStatus", () -> {
-            LinkedProtocolInfo linkedProtocolInfo = linkedProtocolConfigurations.get(protocolConfiguration.getReferenceOrThrow());
-            return linkedProtocolInfo.getCurrentConnectionStatus();
-        });
+        LinkedProtocolInfo linkedProtocolInfo = linkedProtocolConfigurations.get(protocolConfiguration.getReferenceOrThrow());
+        return linkedProtocolInfo.getCurrentConnectionStatus();
     }
 
     @Override
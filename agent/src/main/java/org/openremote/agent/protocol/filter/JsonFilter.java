@@ -20,6 +20,7 @@
 package org.openremote.agent.protocol.filter;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeName;
 import org.openremote.model.util.TextUtil;
@@ -41,9 +42,14 @@ public class JsonFilter extends MessageFilter<ObjectValue> {
     @JsonProperty
     protected List<String> path;
 
+    // Parsed path, array index or -1 for an object key of each segment, null if the path can't match
+    @JsonIgnore
+    protected int[] pathIndexes;
+
     @JsonCreator
     public JsonFilter(@JsonProperty("path") List<String> path) {
         this.path = path;
+        this.pathIndexes = parsePath(path);
     }
 
     public JsonFilter(String... path) {
@@ -57,32 +63,55 @@ public class JsonFilter extends MessageFilter<ObjectValue> {
 
     @Override
     public Value process(ObjectValue value) {
-        if (value == null || path == null || path.isEmpty()) {
+        if (value == null || pathIndexes == null) {
             return null;
         }
 
         Value currentValue = value;
-        for (int i = 0; i < path.size(); i++) {
-            String pathSegment = path.get(i);
-            if (currentValue == null || TextUtil.isNullOrEmpty(pathSegment)) {
+        for (int i = 0; i < pathIndexes.length; i++) {
+            if (currentValue == null) {
                 return null;
             }
 
-            if (TextUtil.INTEGER_POSITIVE_VALIDATOR.test(pathSegment)) {
+            if (pathIndexes[i] >= 0) {
                 // Check value is an array
                 if (currentValue.getType() != ValueType.ARRAY) {
                     // Integer key requires an array value
                     return null;
                 }
-                currentValue = ((ArrayValue)currentValue).get(Integer.parseInt(pathSegment)).orElse(null);
+                currentValue = ((ArrayValue)currentValue).get(pathIndexes[i]).orElse(null);
             } else {
                 if (currentValue.getType() != ValueType.OBJECT) {
                     return null;
                 }
-                currentValue = ((ObjectValue)currentValue).get(pathSegment).orElse(null);
+                currentValue = ((ObjectValue)currentValue).get(path.get(i)).orElse(null);
             }
         }
 
         return currentValue;
     }
+
+    protected static int[] parsePath(List<String> path) {
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+
+        int[] pathIndexes = new int[path.size()];
+        for (int i = 0; i < pathIndexes.length; i++) {
+            String pathSegment = path.get(i);
+            if (TextUtil.isNullOrEmpty(pathSegment)) {
+                return null;
+            }
+            if (TextUtil.INTEGER_POSITIVE_VALIDATOR.test(pathSegment)) {
+                try {
+                    pathIndexes[i] = Integer.parseInt(pathSegment);
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+            } else {
+                pathIndexes[i] = -1;
+            }
+        }
+        return pathIndexes;
+    }
 }
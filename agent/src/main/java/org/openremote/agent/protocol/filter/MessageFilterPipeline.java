@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.protocol.filter;
+
+import org.openremote.model.value.Value;
+import org.openremote.model.value.ValueType;
+import org.openremote.model.value.Values;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A chain of {@link MessageFilter}s compiled for a linked attribute, followed by the conversion of the result to the
+ * value type of the attribute. The message type of each filter and the value type of the attribute are resolved once
+ * when the pipeline is created, so processing a message only applies the filters and required conversions.
+ * <p>
+ * Filters are applied as described in {@link MessageFilter}: if a message doesn't have the message type of a filter,
+ * it's converted or the pipeline returns <code>null</code>, as it does when a filter returns <code>null</code> or
+ * throws an exception.
+ */
+public class MessageFilterPipeline {
+
+    private static final Logger LOG = Logger.getLogger(MessageFilterPipeline.class.getName());
+
+    protected static class Stage {
+
+        final MessageFilter filter;
+        final Class<?> messageType;
+        final ValueType messageValueType;
+
+        @SuppressWarnings("unchecked")
+        protected Stage(MessageFilter filter) {
+            this.filter = filter;
+            this.messageType = filter.getMessageType();
+            ValueType messageValueType = null;
+            try {
+                messageValueType = ValueType.fromModelType(filter.getMessageType());
+            } catch (IllegalStateException ignored) {
+            }
+            this.messageValueType = messageValueType;
+        }
+    }
+
+    final protected Stage[] stages;
+    final protected ValueType valueType;
+
+    /**
+     * @param filters   The filters to apply in order, can be <code>null</code>.
+     * @param valueType The type the result is converted to, can be <code>null</code> for no conversion.
+     */
+    public MessageFilterPipeline(List<MessageFilter> filters, ValueType valueType) {
+        if (filters == null)
+            filters = Collections.emptyList();
+        this.stages = new Stage[filters.size()];
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Stage(filters.get(i));
+        }
+        this.valueType = valueType;
+    }
+
+    public boolean hasFilters() {
+        return stages.length > 0;
+    }
+
+    public ValueType getValueType() {
+        return valueType;
+    }
+
+    /**
+     * @return The filtered and converted value, or <code>null</code> if a filter didn't pass the value.
+     */
+    @SuppressWarnings("unchecked")
+    public Value process(Value value) {
+        if (value == null)
+            return null;
+
+        if (stages.length > 0) {
+            LOG.fine("Applying message filters to sensor value...");
+        }
+
+        for (Stage stage : stages) {
+            boolean filterOk = stage.messageType == value.getType().getModelType();
+
+            if (!filterOk) {
+                // Try and convert the value
+                if (stage.messageValueType == null) {
+                    LOG.fine("Message filter type unknown: " + stage.messageType.getName());
+                    value = null;
+                } else {
+                    Optional<Value> val = Values.convert(value, stage.messageValueType);
+                    if (!val.isPresent()) {
+                        LOG.fine("Message filter type '" + stage.messageType.getName()
+                            + "' is not compatible with actual message type '" + value.getType().getModelType().getName()
+                            + "': " + stage.filter.getClass().getName());
+                    } else {
+                        filterOk = true;
+                    }
+                    value = val.orElse(null);
+                }
+            }
+
+            if (filterOk) {
+                try {
+                    LOG.finest("Applying message filter: " + stage.filter.getClass().getName());
+                    value = stage.filter.process(value);
+                } catch (Exception e) {
+                    LOG.log(
+                        Level.SEVERE,
+                        "Message filter threw and exception during processing of message: "
+                            + stage.filter.getClass().getName(),
+                        e);
+                    value = null;
+                }
+            }
+
+            if (value == null) {
+                return null;
+            }
+        }
+
+        // Do basic value conversion
+        if (valueType != null && valueType != value.getType()) {
+            LOG.fine("Converting value: " + value.getType() + " -> " + valueType);
+            Optional<Value> convertedValue = Values.convert(value, valueType);
+            if (!convertedValue.isPresent()) {
+                LOG.warning("Failed to convert value: " + value.getType() + " -> " + valueType);
+            } else {
+                value = convertedValue.get();
+            }
+        }
+
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "filters=" + stages.length +
+            ", valueType=" + valueType +
+            '}';
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.container.concurrent;
+
+import java.util.concurrent.*;
+
+/**
+ * Executes tasks on a fixed number of single-threaded lanes, the lane is selected by hashing a partition key.
+ * <p>
+ * All tasks submitted with the same (equal) partition key are executed in submission order on the same
+ * thread, tasks with different keys may execute concurrently. Each lane has a bounded queue, when it is
+ * full the submitting thread blocks until there is space, so producers are slowed down instead of
+ * tasks being discarded.
+ */
+public class ContainerPartitionedExecutor {
+
+    /**
+     * Puts the task into the queue of the lane, waiting for space to become available.
+     */
+    static protected final RejectedExecutionHandler BLOCKING_REJECTED_EXECUTION_HANDLER = (runnable, executor) -> {
+        if (executor.isShutdown()) {
+            ContainerThreads.DEFAULT_REJECTED_EXECUTION_HANDLER.rejectedExecution(runnable, executor);
+            return;
+        }
+        try {
+            executor.getQueue().put(runnable);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for space in lane queue", ex);
+        }
+    };
+
+    protected final String name;
+    protected final ContainerExecutor[] lanes;
+
+    public ContainerPartitionedExecutor(String name, int laneCount, int laneQueueCapacity) {
+        if (laneCount < 1)
+            throw new IllegalArgumentException("Lane count must be at least 1: " + laneCount);
+        this.name = name;
+        this.lanes = new ContainerExecutor[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new ContainerExecutor(
+                new ContainerThreadFactory(name + "-lane" + i),
+                BLOCKING_REJECTED_EXECUTION_HANDLER,
+                1,
+                1,
+                60L,
+                new LinkedBlockingQueue<>(laneQueueCapacity)
+            );
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public int getLane(Object partitionKey) {
+        int hash = partitionKey != null ? partitionKey.hashCode() : 0;
+        // Spread the bits, as String hash codes of similar IDs tend to cluster in the low bits
+        hash ^= (hash >>> 16);
+        return (hash & 0x7fffffff) % lanes.length;
+    }
+
+    /**
+     * Execute the task on the lane of the given partition key, blocks if the lane queue is full.
+     */
+    public void execute(Object partitionKey, Runnable task) {
+        lanes[getLane(partitionKey)].execute(task);
+    }
+
+    /**
+     * @return The total number of tasks waiting in all lane queues.
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (ContainerExecutor lane : lanes) {
+            size += lane.getQueue().size();
+        }
+        return size;
+    }
+
+    public void shutdown() {
+        for (ContainerExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    public void shutdownNow() {
+        for (ContainerExecutor lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ContainerExecutor lane : lanes) {
+            if (!lane.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "name='" + name + '\'' +
+            ", lanes=" + lanes.length +
+            '}';
+    }
+}
@@ -32,11 +32,13 @@ import org.openremote.container.security.IdentityService;
 import org.openremote.container.web.DefaultWebsocketComponent;
 import org.openremote.container.web.WebService;
 import org.openremote.container.web.socket.WebsocketComponent;
+import org.openremote.container.web.socket.WebsocketSendQueue;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.container.util.MapAccess.getString;
 
 @SuppressWarnings("deprecation")
@@ -47,6 +49,19 @@ public class MessageBrokerSetupService implements ContainerService {
     public static final String MESSAGE_SESSION_ALLOWED_ORIGIN = "MESSAGE_SESSION_ALLOWED_ORIGIN";
     public static final String MESSAGE_SESSION_ALLOWED_ORIGIN_DEFAULT = null;
 
+    /**
+     * Maximum number of outbound messages queued for each websocket session, messages are sent asynchronously so
+     * a slow client doesn't delay other sessions. Set to zero to send synchronously without a queue.
+     */
+    public static final String MESSAGE_SESSION_SEND_QUEUE_SIZE = "MESSAGE_SESSION_SEND_QUEUE_SIZE";
+    public static final int MESSAGE_SESSION_SEND_QUEUE_SIZE_DEFAULT = 1000;
+
+    /**
+     * What happens when the outbound queue of a websocket session is full, see {@link WebsocketSendQueue.OverflowPolicy}.
+     */
+    public static final String MESSAGE_SESSION_SEND_QUEUE_OVERFLOW = "MESSAGE_SESSION_SEND_QUEUE_OVERFLOW";
+    public static final String MESSAGE_SESSION_SEND_QUEUE_OVERFLOW_DEFAULT = WebsocketSendQueue.OverflowPolicy.COALESCE.name();
+
     protected MessageBrokerContext context;
 
     @Override
@@ -128,6 +143,12 @@ public class MessageBrokerSetupService implements ContainerService {
             container.getService(WebService.class),
             allowedOrigin
         );
+        websocketComponent.setSendQueue(
+            getInteger(container.getConfig(), MESSAGE_SESSION_SEND_QUEUE_SIZE, MESSAGE_SESSION_SEND_QUEUE_SIZE_DEFAULT),
+            WebsocketSendQueue.OverflowPolicy.valueOf(
+                getString(container.getConfig(), MESSAGE_SESSION_SEND_QUEUE_OVERFLOW, MESSAGE_SESSION_SEND_QUEUE_OVERFLOW_DEFAULT)
+            )
+        );
 
         context.addComponent(WebsocketComponent.NAME, websocketComponent);
     }
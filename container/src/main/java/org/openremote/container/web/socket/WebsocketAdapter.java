@@ -69,6 +69,7 @@ public class WebsocketAdapter extends Endpoint {
             exchange.getIn().setHeader(WebsocketConstants.SESSION_CLOSE, true);
         });
         consumer.getEndpoint().getWebsocketSessions().remove(session);
+        consumer.getEndpoint().getComponent().removeSendQueue(session);
     }
 
     @Override
@@ -85,6 +86,7 @@ public class WebsocketAdapter extends Endpoint {
             exchange.getIn().setHeader(WebsocketConstants.SESSION_CLOSE_ERROR, true);
         });
         consumer.getEndpoint().getWebsocketSessions().remove(session);
+        consumer.getEndpoint().getComponent().removeSendQueue(session);
     }
 
     protected AuthContext getHandshakeAuth(Session session) {
@@ -23,8 +23,11 @@ import org.apache.camel.Endpoint;
 import org.apache.camel.impl.DefaultComponent;
 import org.apache.camel.util.ServiceHelper;
 
+import javax.websocket.Session;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 public abstract class WebsocketComponent extends DefaultComponent {
@@ -35,6 +38,9 @@ public abstract class WebsocketComponent extends DefaultComponent {
 
     final protected Map<String, WebsocketConsumer> consumers = new HashMap<>();
     final protected WebsocketSessions websocketSessions;
+    final protected Map<String, WebsocketSendQueue> sendQueues = new ConcurrentHashMap<>();
+    protected int sendQueueSize;
+    protected WebsocketSendQueue.OverflowPolicy sendQueueOverflowPolicy = WebsocketSendQueue.OverflowPolicy.DROP_OLDEST;
 
     public WebsocketComponent() {
         this.websocketSessions = new MemoryWebsocketSessions();
@@ -57,6 +63,8 @@ public abstract class WebsocketComponent extends DefaultComponent {
     protected void doStop() throws Exception {
         super.doStop();
         ServiceHelper.stopService(getWebsocketSessions());
+        sendQueues.values().forEach(WebsocketSendQueue::clear);
+        sendQueues.clear();
         undeploy();
     }
 
@@ -68,6 +76,38 @@ public abstract class WebsocketComponent extends DefaultComponent {
         return consumers;
     }
 
+    /**
+     * @param sendQueueSize The maximum number of queued outbound messages per session, zero sends synchronously.
+     */
+    public void setSendQueue(int sendQueueSize, WebsocketSendQueue.OverflowPolicy overflowPolicy) {
+        this.sendQueueSize = sendQueueSize;
+        this.sendQueueOverflowPolicy = overflowPolicy;
+    }
+
+    public boolean isSendQueueEnabled() {
+        return sendQueueSize > 0;
+    }
+
+    public WebsocketSendQueue getSendQueue(Session session) {
+        return sendQueues.computeIfAbsent(
+            session.getId(), sessionId -> new WebsocketSendQueue(session, sendQueueSize, sendQueueOverflowPolicy)
+        );
+    }
+
+    public void removeSendQueue(Session session) {
+        WebsocketSendQueue sendQueue = sendQueues.remove(session.getId());
+        if (sendQueue != null) {
+            sendQueue.clear();
+        }
+    }
+
+    /**
+     * @return The outbound queues of all open sessions, with their statistics.
+     */
+    public Collection<WebsocketSendQueue> getSendQueues() {
+        return sendQueues.values();
+    }
+
     synchronized public void connect(WebsocketConsumer consumer) {
         String resourceUri = consumer.getEndpoint().getResourceUri();
         if (consumers.containsKey(resourceUri)) {
@@ -28,5 +28,6 @@ public interface WebsocketConstants {
     String SESSION_OPEN = "websocket.sessionOpen";
     String SESSION_CLOSE = "websocket.sessionClose";
     String SESSION_CLOSE_ERROR = "websocket.sessionCloseError";
+    String COALESCE_KEY = "websocket.coalesceKey";
 
 }
@@ -50,13 +50,14 @@ public class WebsocketProducer extends DefaultProducer {
         if (!(message == null || message instanceof String || message instanceof byte[])) {
             message = in.getMandatoryBody(String.class);
         }
+        String coalesceKey = in.getHeader(WebsocketConstants.COALESCE_KEY, String.class);
         if (isSendToAllSet(in)) {
-            sendToAll(message, exchange);
+            sendToAll(message, coalesceKey, exchange);
         } else {
             String sessionKey = in.getHeader(WebsocketConstants.SESSION_KEY, String.class);
             if (sessionKey != null) {
                 Session websocket = getEndpoint().getComponent().getWebsocketSessions().get(sessionKey);
-                sendMessage(websocket, message);
+                sendMessage(websocket, message, coalesceKey);
             } else {
                 throw new IllegalArgumentException("Failed to send message to Websocket session; session key not set.");
             }
@@ -72,7 +73,7 @@ public class WebsocketProducer extends DefaultProducer {
         return value == null ? false : value;
     }
 
-    protected void sendToAll(Object message, Exchange exchange) throws Exception {
+    protected void sendToAll(Object message, String coalesceKey, Exchange exchange) throws Exception {
         Collection<Session> sessions = getEndpoint().getComponent().getWebsocketSessions().getAll();
         if (LOG.isLoggable(Level.FINE))
             LOG.fine("Sending to all sessions (" + sessions.size() + "): " + message);
@@ -80,7 +81,7 @@ public class WebsocketProducer extends DefaultProducer {
         Exception exception = null;
         for (Session session : sessions) {
             try {
-                sendMessage(session, message);
+                sendMessage(session, message, coalesceKey);
             } catch (Exception e) {
                 if (exception == null) {
                     exception = new CamelExchangeException("Failed to deliver message to one or more recipients.", exchange, e);
@@ -92,9 +93,18 @@ public class WebsocketProducer extends DefaultProducer {
         }
     }
 
-    protected void sendMessage(Session session, Object message) throws IOException {
+    protected void sendMessage(Session session, Object message, String coalesceKey) throws IOException {
         if (session != null && session.isOpen()) {
             if (message instanceof String) {
+                WebsocketComponent component = getEndpoint().getComponent();
+                if (component.isSendQueueEnabled()) {
+                    component.getSendQueue(session).send((String) message, coalesceKey);
+                    // Don't keep a queue for a session closed concurrently
+                    if (!session.isOpen()) {
+                        component.removeSendQueue(session);
+                    }
+                    return;
+                }
                 if (LOG.isLoggable(Level.FINE))
                     LOG.fine("Sending to session " + session.getId() + ": " + message);
                 session.getBasicRemote().sendText((String) message);
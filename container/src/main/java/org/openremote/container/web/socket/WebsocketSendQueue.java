@@ -0,0 +1,258 @@
+/*
+ * Copyright 2017, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.container.web.socket;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded outbound message queue of a websocket session, messages are sent asynchronously one after another.
+ * <p>
+ * A slow client only fills its own queue and doesn't block the thread publishing messages to other sessions.
+ * When the queue is full, the {@link OverflowPolicy} decides what happens with a new message.
+ */
+public class WebsocketSendQueue {
+
+    private static final Logger LOG = Logger.getLogger(WebsocketSendQueue.class.getName());
+
+    public enum OverflowPolicy {
+        /**
+         * Discard the oldest queued message.
+         */
+        DROP_OLDEST,
+        /**
+         * Replace a queued message with the same coalesce key (see {@link WebsocketConstants#COALESCE_KEY}),
+         * so only the latest state is sent. If there is no such message, discard the oldest queued message.
+         */
+        COALESCE,
+        /**
+         * Close the session, the client has to reconnect.
+         */
+        DISCONNECT
+    }
+
+    static protected class QueuedMessage {
+        final String coalesceKey;
+        String text;
+
+        QueuedMessage(String coalesceKey, String text) {
+            this.coalesceKey = coalesceKey;
+            this.text = text;
+        }
+    }
+
+    protected final Session session;
+    protected final int capacity;
+    protected final OverflowPolicy overflowPolicy;
+
+    // All guarded by this
+    protected final Deque<QueuedMessage> queue = new ArrayDeque<>();
+    protected final Map<String, QueuedMessage> coalescable = new HashMap<>();
+    protected boolean sending;
+    protected boolean inSendText;
+    protected boolean completedInSendText;
+    protected boolean closed;
+    protected long sentCount;
+    protected long droppedCount;
+    protected long coalescedCount;
+    protected long failedCount;
+    protected int maxDepth;
+
+    public WebsocketSendQueue(Session session, int capacity, OverflowPolicy overflowPolicy) {
+        this.session = session;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Queues the message and starts sending if no message is currently being sent, never blocks.
+     *
+     * @param coalesceKey Optional, messages with the same key can replace each other.
+     */
+    public void send(String text, String coalesceKey) {
+        boolean startSending = false;
+        boolean disconnect = false;
+        synchronized (this) {
+            if (closed)
+                return;
+
+            if (queue.size() >= capacity) {
+                QueuedMessage queued = overflowPolicy == OverflowPolicy.COALESCE && coalesceKey != null
+                    ? coalescable.get(coalesceKey)
+                    : null;
+                if (queued != null) {
+                    queued.text = text;
+                    coalescedCount++;
+                    return;
+                }
+                if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                    disconnect = true;
+                    clear();
+                } else {
+                    QueuedMessage dropped = queue.pollFirst();
+                    if (dropped != null && dropped.coalesceKey != null) {
+                        coalescable.remove(dropped.coalesceKey, dropped);
+                    }
+                    droppedCount++;
+                }
+            }
+
+            if (!disconnect) {
+                QueuedMessage message = new QueuedMessage(coalesceKey, text);
+                queue.addLast(message);
+                if (overflowPolicy == OverflowPolicy.COALESCE && coalesceKey != null) {
+                    coalescable.put(coalesceKey, message);
+                }
+                maxDepth = Math.max(maxDepth, queue.size());
+                if (!sending) {
+                    sending = true;
+                    startSending = true;
+                }
+            }
+        }
+
+        if (disconnect) {
+            LOG.info("Send queue overflow, closing websocket session: " + session.getId());
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Send queue overflow"));
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "Error closing websocket session: " + session.getId(), ex);
+            }
+        } else if (startSending) {
+            sendNext();
+        }
+    }
+
+    /**
+     * Discards all queued messages, no further messages will be sent.
+     */
+    public synchronized void clear() {
+        closed = true;
+        queue.clear();
+        coalescable.clear();
+    }
+
+    public synchronized int getDepth() {
+        return queue.size();
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Sends queued messages until the queue is empty or a send completes asynchronously, then the completion
+     * callback continues. A send completed within {@link javax.websocket.RemoteEndpoint.Async#sendText} continues
+     * in this loop, so the stack doesn't grow with the number of queued messages.
+     */
+    protected void sendNext() {
+        while (true) {
+            QueuedMessage message;
+            synchronized (this) {
+                message = queue.pollFirst();
+                if (message == null || closed || !session.isOpen()) {
+                    sending = false;
+                    return;
+                }
+                if (message.coalesceKey != null) {
+                    coalescable.remove(message.coalesceKey, message);
+                }
+                inSendText = true;
+                completedInSendText = false;
+            }
+            if (LOG.isLoggable(Level.FINE))
+                LOG.fine("Sending to session " + session.getId() + ": " + message.text);
+            try {
+                session.getAsyncRemote().sendText(message.text, result -> {
+                    boolean continueSending;
+                    synchronized (this) {
+                        if (result.isOK()) {
+                            sentCount++;
+                        } else {
+                            failedCount++;
+                        }
+                        continueSending = !inSendText;
+                        completedInSendText = inSendText;
+                    }
+                    if (!result.isOK()) {
+                        LOG.log(Level.FINE, "Error sending to websocket session: " + session.getId(), result.getException());
+                    }
+                    if (continueSending) {
+                        sendNext();
+                    }
+                });
+            } catch (RuntimeException ex) {
+                LOG.log(Level.FINE, "Error sending to websocket session: " + session.getId(), ex);
+                synchronized (this) {
+                    inSendText = false;
+                    failedCount++;
+                    sending = false;
+                }
+                return;
+            }
+            synchronized (this) {
+                inSendText = false;
+                if (!completedInSendText) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "{" +
+            "session='" + session.getId() + '\'' +
+            ", depth=" + queue.size() +
+            ", maxDepth=" + maxDepth +
+            ", sent=" + sentCount +
+            ", dropped=" + droppedCount +
+            ", coalesced=" + coalescedCount +
+            ", failed=" + failedCount +
+            '}';
+    }
+}
@@ -24,6 +24,7 @@ import org.openremote.agent.protocol.Protocol;
 import org.openremote.agent.protocol.ProtocolAssetService;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
+import org.openremote.container.concurrent.ContainerThreadFactory;
 import org.openremote.container.message.MessageBrokerService;
 import org.openremote.container.message.MessageBrokerSetupService;
 import org.openremote.container.persistence.PersistenceEvent;
@@ -45,6 +46,7 @@ import org.openremote.model.attribute.AttributeEvent.Source;
 import org.openremote.model.attribute.AttributeRef;
 import org.openremote.model.event.shared.TenantFilter;
 import org.openremote.model.query.AssetQuery;
+import org.openremote.model.query.filter.AttributeMetaPredicate;
 import org.openremote.model.query.filter.AttributeRefPredicate;
 import org.openremote.model.security.ClientRole;
 import org.openremote.model.util.Pair;
@@ -52,6 +54,11 @@ import org.openremote.model.value.ObjectValue;
 
 import javax.persistence.EntityManager;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.logging.Level;
@@ -64,6 +71,7 @@ import static org.openremote.agent.protocol.Protocol.SENSOR_QUEUE;
 import static org.openremote.container.concurrent.GlobalLock.withLock;
 import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
 import static org.openremote.container.persistence.PersistenceEvent.*;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.manager.asset.AssetProcessingService.ASSET_QUEUE;
 import static org.openremote.model.AbstractValueTimestampHolder.VALUE_TIMESTAMP_FIELD_NAME;
 import static org.openremote.model.asset.AssetAttribute.attributesFromJson;
@@ -85,15 +93,23 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
 
     private static final Logger LOG = Logger.getLogger(AgentService.class.getName());
 
+    /**
+     * Number of threads linking protocols in parallel on startup, <code>0</code> links protocol configurations
+     * one at a time as when they are added later.
+     */
+    public static final String AGENT_STARTUP_LINKING_THREADS = "AGENT_STARTUP_LINKING_THREADS";
+    public static final int AGENT_STARTUP_LINKING_THREADS_DEFAULT = 4;
+
     protected TimerService timerService;
     protected ManagerIdentityService identityService;
     protected AssetProcessingService assetProcessingService;
     protected AssetStorageService assetStorageService;
     protected MessageBrokerService messageBrokerService;
     protected ClientEventService clientEventService;
-    protected final Map<AttributeRef, Pair<AssetAttribute, ConnectionStatus>> protocolConfigurations = new HashMap<>();
+    // Modified while holding the global lock, read without locking on the asset processing path
+    protected final Map<AttributeRef, Pair<AssetAttribute, ConnectionStatus>> protocolConfigurations = new ConcurrentHashMap<>();
     protected final Map<String, Protocol> protocols = new HashMap<>();
-    protected final List<AttributeRef> linkedAttributes = new ArrayList<>();
+    protected final Set<AttributeRef> linkedAttributes = ConcurrentHashMap.newKeySet();
     protected LocalAgentConnector localAgentConnector;
     protected Map<String, Asset> agentMap;
 
@@ -151,6 +167,12 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
         Collection<Asset> agents = getAgents().values();
         LOG.fine("Deploy all agents in all realms: " + agents.size());
 
+        int linkingThreads = getInteger(container.getConfig(), AGENT_STARTUP_LINKING_THREADS, AGENT_STARTUP_LINKING_THREADS_DEFAULT);
+        if (linkingThreads > 0) {
+            linkAllProtocolConfigurations(agents, linkingThreads);
+            return;
+        }
+
         /// For all agents, go through their protocol configurations and find
         // assets that are linked to them, to create the binding on startup
         for (Asset agent : agents) {
@@ -427,44 +449,89 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
         }
     }
 
-    protected void linkProtocolConfigurations(Stream<AssetAttribute> configurations) {
-        withLock(getClass().getSimpleName() + "::linkProtocolConfigurations", () -> configurations.forEach(configuration -> {
-            AttributeRef protocolAttributeRef = configuration.getReferenceOrThrow();
-            Protocol protocol = getProtocol(configuration);
-
-            if (protocol == null) {
-                LOG.warning("Cannot find protocol that attribute is linked to: " + protocolAttributeRef);
-                return;
+    /**
+     * Links the protocol configurations of all agents on startup. The agent-linked attributes of all protocol
+     * configurations are loaded with a single query and grouped by protocol configuration, then protocols are
+     * linked in parallel. The configurations and attributes of each protocol are linked by a single thread, in
+     * order. Linking doesn't hold the global lock, agent and asset changes processed concurrently are serialized
+     * by the protocol instance and the already linked attributes are skipped.
+     */
+    protected void linkAllProtocolConfigurations(Collection<Asset> agents, int threads) {
+        long start = System.currentTimeMillis();
+
+        Map<AttributeRef, List<AssetAttribute>> agentLinkedAttributes = new HashMap<>();
+        assetStorageService.streamAll(
+            new AssetQuery()
+                .select(new AssetQuery.Select(AssetQuery.Include.ALL))
+                .attributeMeta(new AttributeMetaPredicate(AssetMeta.AGENT_LINK)),
+            assets -> {
+                assets.forEach(asset -> asset.getAttributesStream().forEach(attribute ->
+                    getAgentLink(attribute).ifPresent(protocolRef ->
+                        agentLinkedAttributes.computeIfAbsent(protocolRef, ref -> new ArrayList<>()).add(attribute)
+                    )
+                ));
+                return null;
             }
+        );
 
-            // Store the info
-            protocolConfigurations.put(protocolAttributeRef, new Pair<>(configuration, null));
-
-            // Create a consumer callback for protocol status updates
-            Consumer<ConnectionStatus> deploymentStatusConsumer = status ->
-                publishProtocolConnectionStatus(protocolAttributeRef, status);
+        Map<String, List<AssetAttribute>> configurationsByProtocol = new LinkedHashMap<>();
+        agents.forEach(agent -> agent.getAttributesStream()
+            .filter(ProtocolConfiguration::isProtocolConfiguration)
+            .forEach(configuration -> {
+                Protocol protocol = getProtocol(configuration);
+                if (protocol == null) {
+                    LOG.warning("Cannot find protocol that attribute is linked to: " + configuration.getReferenceOrThrow());
+                    return;
+                }
+                configurationsByProtocol.computeIfAbsent(protocol.getProtocolName(), name -> new ArrayList<>()).add(configuration);
+            }));
 
-            // Set status to WAITING (we don't know what the protocol's status will be after linking configuration)
-            publishProtocolConnectionStatus(protocolAttributeRef, WAITING);
+        if (configurationsByProtocol.isEmpty())
+            return;
 
-            // Link the protocol configuration to the protocol
-            try {
-                protocol.linkProtocolConfiguration(configuration, deploymentStatusConsumer);
-            } catch (Exception e) {
-                LOG.log(Level.SEVERE, "Protocol threw an exception during protocol configuration linking", e);
-                // Set status to error
-                publishProtocolConnectionStatus(protocolAttributeRef, ERROR_CONFIGURATION);
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(threads, configurationsByProtocol.size()), new ContainerThreadFactory("Agent linking")
+        );
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            configurationsByProtocol.values().forEach(configurations -> futures.add(executor.submit(() ->
+                configurations.forEach(configuration -> {
+                    if (!linkProtocolConfiguration(configuration))
+                        return;
+                    List<AssetAttribute> attributes = agentLinkedAttributes.get(configuration.getReferenceOrThrow());
+                    if (attributes != null) {
+                        linkAttributesUnlocked(configuration, attributes);
+                    }
+                })
+            )));
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    LOG.log(Level.SEVERE, "Error linking protocol configurations on startup", ex.getCause());
+                }
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
 
-            // Check protocol status and only continue linking attributes if not in error state
-            ConnectionStatus connectionStatus = getProtocolConnectionStatus(protocolAttributeRef);
-            if (connectionStatus == ERROR_CONFIGURATION || connectionStatus == ERROR) {
-                LOG.warning("Protocol connection status is showing error so not linking attributes: " + configuration);
+        LOG.info(
+            "Linked protocol configurations of " + configurationsByProtocol.size() + " protocol(s) and "
+                + linkedAttributes.size() + " attribute(s) in " + (System.currentTimeMillis() - start) + "ms"
+        );
+    }
+
+    protected void linkProtocolConfigurations(Stream<AssetAttribute> configurations) {
+        withLock(getClass().getSimpleName() + "::linkProtocolConfigurations", () -> configurations.forEach(configuration -> {
+            if (!linkProtocolConfiguration(configuration))
                 return;
-            }
 
-            // Get all assets that have attributes that use this protocol configuration
-            List<Asset> assets = assetStorageService.findAll(
+            AttributeRef protocolAttributeRef = configuration.getReferenceOrThrow();
+
+            // Stream all assets that have attributes that use this protocol configuration
+            assetStorageService.streamAll(
                 new AssetQuery()
                     .select(new AssetQuery.Select(AssetQuery.Include.ALL))
                     .attributeMeta(
@@ -473,22 +540,66 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
                             protocolAttributeRef.getEntityId(),
                             protocolAttributeRef.getAttributeName()
                         )
-                    )
-            );
-
-            assets.forEach(
-                asset ->
-                    getGroupedAgentLinkAttributes(
-                        asset.getAttributesStream(),
-                        assetAttribute -> getAgentLink(assetAttribute)
-                            .map(attributeRef -> attributeRef.equals(protocolAttributeRef))
-                            .orElse(false),
-                        attribute -> LOG.warning("Linked protocol configuration not found: " + attribute)
-                    ).forEach(this::linkAttributes)
+                    ),
+                assets -> {
+                    assets.forEach(
+                        asset ->
+                            getGroupedAgentLinkAttributes(
+                                asset.getAttributesStream(),
+                                assetAttribute -> getAgentLink(assetAttribute)
+                                    .map(attributeRef -> attributeRef.equals(protocolAttributeRef))
+                                    .orElse(false),
+                                attribute -> LOG.warning("Linked protocol configuration not found: " + attribute)
+                            ).forEach(this::linkAttributes)
+                    );
+                    return null;
+                }
             );
         }));
     }
 
+    /**
+     * Links the protocol configuration to its protocol, doesn't lock.
+     *
+     * @return <code>false</code> if the protocol is missing or in error state and attributes shouldn't be linked.
+     */
+    protected boolean linkProtocolConfiguration(AssetAttribute configuration) {
+        AttributeRef protocolAttributeRef = configuration.getReferenceOrThrow();
+        Protocol protocol = getProtocol(configuration);
+
+        if (protocol == null) {
+            LOG.warning("Cannot find protocol that attribute is linked to: " + protocolAttributeRef);
+            return false;
+        }
+
+        // Store the info
+        protocolConfigurations.put(protocolAttributeRef, new Pair<>(configuration, null));
+
+        // Create a consumer callback for protocol status updates
+        Consumer<ConnectionStatus> deploymentStatusConsumer = status ->
+            publishProtocolConnectionStatus(protocolAttributeRef, status);
+
+        // Set status to WAITING (we don't know what the protocol's status will be after linking configuration)
+        publishProtocolConnectionStatus(protocolAttributeRef, WAITING);
+
+        // Link the protocol configuration to the protocol
+        try {
+            protocol.linkProtocolConfiguration(configuration, deploymentStatusConsumer);
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Protocol threw an exception during protocol configuration linking", e);
+            // Set status to error
+            publishProtocolConnectionStatus(protocolAttributeRef, ERROR_CONFIGURATION);
+        }
+
+        // Check protocol status and only continue linking attributes if not in error state
+        ConnectionStatus connectionStatus = getProtocolConnectionStatus(protocolAttributeRef);
+        if (connectionStatus == ERROR_CONFIGURATION || connectionStatus == ERROR) {
+            LOG.warning("Protocol connection status is showing error so not linking attributes: " + configuration);
+            return false;
+        }
+        return true;
+    }
+
     protected void unlinkProtocolConfigurations(Stream<AssetAttribute> configurations) {
         withLock(getClass().getSimpleName() + "::unlinkProtocolConfigurations", () -> configurations.forEach(configuration -> {
             AttributeRef protocolAttributeRef = configuration.getReferenceOrThrow();
@@ -572,20 +683,31 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
                 return;
             }
 
-            attributes.removeIf(attr -> linkedAttributes.contains(attr.getReferenceOrThrow()));
-            linkedAttributes.addAll(attributes.stream().map(AssetAttribute::getReferenceOrThrow).collect(Collectors.toList()));
-
-            try {
-                LOG.finest("Linking protocol attributes to: " + protocol.getProtocolName());
-                protocol.linkAttributes(attributes, protocolConfiguration);
-            } catch (Exception ex) {
-                LOG.log(Level.SEVERE, "Ignoring error on linking attributes to protocol: " + protocol.getProtocolName(), ex);
-                // Update the status of this protocol configuration to error
-                publishProtocolConnectionStatus(protocolConfiguration.getReferenceOrThrow(), ERROR);
-            }
+            linkAttributesUnlocked(protocolConfiguration, attributes);
         });
     }
 
+    protected void linkAttributesUnlocked(AssetAttribute protocolConfiguration, Collection<AssetAttribute> attributes) {
+        Protocol protocol = getProtocol(protocolConfiguration);
+
+        if (protocol == null) {
+            LOG.severe("Cannot link protocol attributes as protocol is null: " + protocolConfiguration);
+            return;
+        }
+
+        // Skip attributes which are already linked
+        attributes.removeIf(attr -> !linkedAttributes.add(attr.getReferenceOrThrow()));
+
+        try {
+            LOG.finest("Linking protocol attributes to: " + protocol.getProtocolName());
+            protocol.linkAttributes(attributes, protocolConfiguration);
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "Ignoring error on linking attributes to protocol: " + protocol.getProtocolName(), ex);
+            // Update the status of this protocol configuration to error
+            publishProtocolConnectionStatus(protocolConfiguration.getReferenceOrThrow(), ERROR);
+        }
+    }
+
     protected void unlinkAttributes(AssetAttribute protocolConfiguration, Collection<AssetAttribute> attributes) {
         withLock(getClass().getSimpleName() + "::unlinkAttributes", () -> {
             LOG.fine("Unlinking all attributes that use protocol attribute: " + protocolConfiguration);
@@ -596,8 +718,8 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
                 return;
             }
 
-            attributes.removeIf(attr -> !linkedAttributes.contains(attr.getReferenceOrThrow()));
-            linkedAttributes.removeAll(attributes.stream().map(AssetAttribute::getReferenceOrThrow).collect(Collectors.toList()));
+            // Skip attributes which are not linked
+            attributes.removeIf(attr -> !linkedAttributes.remove(attr.getReferenceOrThrow()));
 
             try {
                 LOG.finest("Unlinking protocol attributes from: " + protocol.getProtocolName());
@@ -627,28 +749,26 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
             return false;
         }
 
-        Boolean result = withLockReturning(getClass().getSimpleName() + "::processAssetUpdate", () ->
-            AgentLink.getAgentLink(attribute)
-                .map(ref ->
-                    getProtocolConfiguration(ref)
-                        .orElseThrow(() -> new AssetProcessingException(AssetProcessingException.Reason.INVALID_AGENT_LINK))
-                )
-                .map(protocolConfiguration -> {
-                    // Its' a send to actuator - push the update to the protocol
-                    attribute.getStateEvent().ifPresent(attributeEvent -> {
-                        LOG.fine("Sending to actuator topic: " + attributeEvent);
-                        messageBrokerService.getProducerTemplate().sendBodyAndHeader(
-                            ACTUATOR_TOPIC,
-                            attributeEvent,
-                            Protocol.ACTUATOR_TOPIC_TARGET_PROTOCOL,
-                            protocolConfiguration.getValueAsString().orElse("")
-                        );
-                    });
-                    return true; // Processing complete, skip other processors
-                })
-                .orElse(false) // This is a regular attribute so allow the processing to continue
-        );
-        return result != null ? result : false;
+        // Doesn't lock, the protocol configurations can be read concurrently by partitioned asset processing
+        return AgentLink.getAgentLink(attribute)
+            .map(ref ->
+                getProtocolConfiguration(ref)
+                    .orElseThrow(() -> new AssetProcessingException(AssetProcessingException.Reason.INVALID_AGENT_LINK))
+            )
+            .map(protocolConfiguration -> {
+                // Its' a send to actuator - push the update to the protocol
+                attribute.getStateEvent().ifPresent(attributeEvent -> {
+                    LOG.fine("Sending to actuator topic: " + attributeEvent);
+                    messageBrokerService.getProducerTemplate().sendBodyAndHeader(
+                        ACTUATOR_TOPIC,
+                        attributeEvent,
+                        Protocol.ACTUATOR_TOPIC_TARGET_PROTOCOL,
+                        protocolConfiguration.getValueAsString().orElse("")
+                    );
+                });
+                return true; // Processing complete, skip other processors
+            })
+            .orElse(false); // This is a regular attribute so allow the processing to continue
     }
 
     /**
@@ -692,10 +812,8 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
     }
 
     public Optional<AssetAttribute> getProtocolConfiguration(AttributeRef protocolRef) {
-        return withLockReturning(getClass().getSimpleName() + "::getProtocolConfiguration", () -> {
-            Pair<AssetAttribute, ConnectionStatus> deploymentStatusPair = protocolConfigurations.get(protocolRef);
-            return deploymentStatusPair == null ? Optional.empty() : Optional.of(deploymentStatusPair.key);
-        });
+        Pair<AssetAttribute, ConnectionStatus> deploymentStatusPair = protocolConfigurations.get(protocolRef);
+        return deploymentStatusPair == null ? Optional.empty() : Optional.of(deploymentStatusPair.key);
     }
 
     public Optional<AgentConnector> getAgentConnector(Asset agent) {
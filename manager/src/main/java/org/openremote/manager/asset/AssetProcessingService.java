@@ -19,14 +19,27 @@
  */
 package org.openremote.manager.asset;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.processor.aggregate.GroupedExchangeAggregationStrategy;
+import org.apache.camel.util.AsyncProcessorHelper;
+import org.hibernate.Session;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionImplementor;
 import org.openremote.agent.protocol.Protocol;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
+import org.openremote.container.concurrent.ContainerPartitionedExecutor;
+import org.openremote.container.concurrent.GlobalLock;
 import org.openremote.container.message.MessageBrokerService;
 import org.openremote.container.message.MessageBrokerSetupService;
+import org.openremote.container.persistence.PersistenceEvent;
 import org.openremote.container.persistence.PersistenceService;
 import org.openremote.container.security.AuthContext;
 import org.openremote.container.timer.TimerService;
@@ -41,19 +54,25 @@ import org.openremote.model.asset.*;
 import org.openremote.model.attribute.AttributeEvent;
 import org.openremote.model.attribute.AttributeEvent.Source;
 import org.openremote.model.attribute.AttributeExecuteStatus;
+import org.openremote.model.attribute.AttributeRef;
 import org.openremote.model.security.ClientRole;
 import org.openremote.model.value.Value;
 import org.openremote.model.value.Values;
 
 import javax.persistence.EntityManager;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.Optional;
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.openremote.container.concurrent.GlobalLock.withLock;
+import static org.openremote.container.persistence.PersistenceEvent.PERSISTENCE_TOPIC;
+import static org.openremote.container.persistence.PersistenceEvent.isPersistenceEventForEntityType;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.manager.asset.AssetProcessingException.Reason.*;
 import static org.openremote.manager.event.ClientEventService.CLIENT_EVENT_TOPIC;
 import static org.openremote.model.asset.agent.AgentLink.getAgentLink;
@@ -115,6 +134,23 @@ import static org.openremote.model.attribute.AttributeEvent.Source.*;
  * <p>
  * Checks if attribute is {@link AssetAttribute#isStoreDatapoints()}, and if so the {@link AttributeEvent} is stored
  * is stored in a time series of historical data. Then allows the message to continue if the commit was successful.
+ * <h2>Partitioned processing</h2>
+ * <p>
+ * By default all events are processed one at a time while holding the {@link GlobalLock}. If
+ * {@link #ASSET_PROCESSING_PARTITIONS} is set to a value greater than zero, events are instead dispatched onto that
+ * many ordered lanes selected by asset identifier: events of the same asset are processed in order, events of
+ * different assets are processed concurrently. The global lock is not held in this mode, processors must
+ * synchronize access to their shared state themselves, see {@link AssetUpdateProcessor}.
+ * <h2>Batch processing</h2>
+ * <p>
+ * If {@link #ASSET_PROCESSING_BATCH_SIZE} is greater than zero, events that don't expect a reply are collected
+ * into batches and each batch is processed in a single database transaction, see {@link #processBatchFromAssetQueue}.
+ * <h2>Asset cache</h2>
+ * <p>
+ * If {@link #ASSET_PROCESSING_CACHE_SIZE} is greater than zero, assets loaded for validation of events are kept in
+ * a bounded cache. Stored attribute values are written through to the cached asset and any {@link PersistenceEvent}
+ * of an asset invalidates its entry. As persistence events are delivered asynchronously after commit, an event
+ * processed right after an asset was modified through CRUD might still be validated against the previous state.
  */
 public class AssetProcessingService extends RouteBuilder implements ContainerService {
 
@@ -124,6 +160,42 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
     // Message topic for communicating individual asset attribute changes
     public static final String ASSET_QUEUE = "seda://AssetQueue?waitForTaskToComplete=IfReplyExpected&timeout=10000&purgeWhenStopping=true&discardIfNoConsumers=false&size=25000";
 
+    /**
+     * Number of ordered lanes for concurrent processing of the {@link #ASSET_QUEUE}, partitioned by asset identifier.
+     * Set to zero to process all events sequentially while holding the {@link GlobalLock}.
+     */
+    public static final String ASSET_PROCESSING_PARTITIONS = "ASSET_PROCESSING_PARTITIONS";
+    public static final int ASSET_PROCESSING_PARTITIONS_DEFAULT = 0;
+
+    /**
+     * Maximum number of events waiting on each lane, the queue consumer blocks when a lane is full.
+     */
+    public static final String ASSET_PROCESSING_PARTITION_QUEUE_SIZE = "ASSET_PROCESSING_PARTITION_QUEUE_SIZE";
+    public static final int ASSET_PROCESSING_PARTITION_QUEUE_SIZE_DEFAULT = 1000;
+
+    /**
+     * Maximum number of events processed in one database transaction, see {@link #processBatchFromAssetQueue}. Set to
+     * zero to process each event in its own transaction. Batching is not available with partitioned processing.
+     */
+    public static final String ASSET_PROCESSING_BATCH_SIZE = "ASSET_PROCESSING_BATCH_SIZE";
+    public static final int ASSET_PROCESSING_BATCH_SIZE_DEFAULT = 0;
+
+    /**
+     * Maximum time to wait for a batch to fill up before it is processed.
+     */
+    public static final String ASSET_PROCESSING_BATCH_TIMEOUT_MILLIS = "ASSET_PROCESSING_BATCH_TIMEOUT_MILLIS";
+    public static final int ASSET_PROCESSING_BATCH_TIMEOUT_MILLIS_DEFAULT = 100;
+
+    /**
+     * Maximum number of assets kept in memory for validation of attribute events, see
+     * {@link #findAssetForProcessing}. Set to zero to load the asset from the database for every event.
+     */
+    public static final String ASSET_PROCESSING_CACHE_SIZE = "ASSET_PROCESSING_CACHE_SIZE";
+    public static final int ASSET_PROCESSING_CACHE_SIZE_DEFAULT = 0;
+
+    // Internal route collecting events for batch processing
+    protected static final String ASSET_QUEUE_BATCH = "direct://AssetQueueBatch";
+
     protected TimerService timerService;
     protected ManagerIdentityService identityService;
     protected PersistenceService persistenceService;
@@ -134,11 +206,19 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
     protected AssetAttributeLinkingService assetAttributeLinkingService;
     protected MessageBrokerService messageBrokerService;
     protected ClientEventService clientEventService;
+    protected ContainerPartitionedExecutor partitionedExecutor;
+    protected int batchSize;
+    protected int batchTimeoutMillis;
+    protected Cache<String, Asset> assetCache;
+    protected final AtomicLong assetCacheInvalidations = new AtomicLong();
     // Used in testing to detect if initial/startup processing has completed
-    protected long lastProcessedEventTimestamp = System.currentTimeMillis();
+    protected volatile long lastProcessedEventTimestamp = System.currentTimeMillis();
 
     final protected List<AssetUpdateProcessor> processors = new ArrayList<>();
 
+    // After commit actions of the event being processed in a batch on this thread
+    final protected ThreadLocal<List<Runnable>> batchEventCommitActions = new ThreadLocal<>();
+
     @Override
     public void init(Container container) throws Exception {
         timerService = container.getService(TimerService.class);
@@ -174,9 +254,12 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
 
                 // Client can subscribe to several assets
                 for (String assetId : filter.getEntityId()) {
-                    Asset asset = assetStorageService.find(assetId);
+                    String assetRealm = identityService.getAuthorizationCache().getAssetRealm(assetId, () -> {
+                        Asset asset = assetStorageService.find(assetId);
+                        return asset != null ? asset.getTenantRealm() : null;
+                    });
                     // If the asset doesn't exist, subscription must fail
-                    if (asset == null)
+                    if (assetRealm == null)
                         return false;
                     if (isRestrictedUser) {
                         // Restricted users can only get attribute events for their linked assets
@@ -185,7 +268,7 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
                         // TODO Restricted clients should only receive events for RESTRICTED_READ attributes!
                     } else {
                         // Regular users can only get attribute events for assets in their realm
-                        if (!asset.getTenantRealm().equals(auth.getAuthenticatedRealm()))
+                        if (!assetRealm.equals(auth.getAuthenticatedRealm()))
                             return false;
                     }
                 }
@@ -199,6 +282,34 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
         processors.add(assetDatapointService);
         processors.add(assetAttributeLinkingService);
 
+        int partitions = getInteger(container.getConfig(), ASSET_PROCESSING_PARTITIONS, ASSET_PROCESSING_PARTITIONS_DEFAULT);
+        if (partitions > 0) {
+            LOG.info("Processing asset queue on partitioned lanes: " + partitions);
+            partitionedExecutor = new ContainerPartitionedExecutor(
+                "Asset processing",
+                partitions,
+                getInteger(container.getConfig(), ASSET_PROCESSING_PARTITION_QUEUE_SIZE, ASSET_PROCESSING_PARTITION_QUEUE_SIZE_DEFAULT)
+            );
+        }
+
+        batchSize = getInteger(container.getConfig(), ASSET_PROCESSING_BATCH_SIZE, ASSET_PROCESSING_BATCH_SIZE_DEFAULT);
+        batchTimeoutMillis = getInteger(container.getConfig(), ASSET_PROCESSING_BATCH_TIMEOUT_MILLIS, ASSET_PROCESSING_BATCH_TIMEOUT_MILLIS_DEFAULT);
+        if (batchSize > 0 && partitionedExecutor != null) {
+            LOG.warning("Batch processing is not supported with partitioned processing, ignoring: " + ASSET_PROCESSING_BATCH_SIZE);
+            batchSize = 0;
+        } else if (batchSize > 0) {
+            LOG.info("Processing asset queue in batches of up to " + batchSize + " events or " + batchTimeoutMillis + "ms");
+        }
+
+        int cacheSize = getInteger(container.getConfig(), ASSET_PROCESSING_CACHE_SIZE, ASSET_PROCESSING_CACHE_SIZE_DEFAULT);
+        if (cacheSize > 0) {
+            LOG.info("Caching assets for processing, maximum size: " + cacheSize);
+            assetCache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .recordStats()
+                .build();
+        }
+
         container.getService(MessageBrokerSetupService.class).getContext().addRoutes(this);
     }
 
@@ -209,12 +320,32 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
 
     @Override
     public void stop(Container container) throws Exception {
-
+        if (assetCache != null) {
+            LOG.info("Asset cache statistics: " + assetCache.stats());
+        }
+        if (partitionedExecutor != null) {
+            partitionedExecutor.shutdown();
+            if (!partitionedExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOG.warning("Asset processing lanes did not terminate in time, discarding queued events");
+                partitionedExecutor.shutdownNow();
+            }
+        }
     }
 
     @Override
     public void configure() throws Exception {
 
+        if (assetCache != null) {
+            // Any modification of an asset through the entity manager invalidates its cached state
+            from(PERSISTENCE_TOPIC)
+                .routeId("AssetProcessingCacheInvalidation")
+                .filter(isPersistenceEventForEntityType(Asset.class))
+                .process(exchange -> {
+                    PersistenceEvent persistenceEvent = exchange.getIn().getBody(PersistenceEvent.class);
+                    invalidateCachedAsset(((Asset) persistenceEvent.getEntity()).getId());
+                });
+        }
+
         // A client wants to write attribute state through event bus
         from(CLIENT_EVENT_TOPIC)
             .routeId("FromClientUpdates")
@@ -241,169 +372,428 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
         from(ASSET_QUEUE)
             .routeId("AssetQueueProcessor")
             .filter(body().isInstanceOf(AttributeEvent.class))
+            .choice()
+            // Callers waiting for the result (InOut) are never batched, they need their own reply
+            .when(exchange -> batchSize > 0 && !exchange.getPattern().isOutCapable())
+            .to(ASSET_QUEUE_BATCH)
+            .otherwise()
             .doTry()
             // Lock the global context, we can only process attribute events when the
             // context isn't locked. Agent- and RulesService lock the context while protocols
-            // or rulesets are modified.
-            .process(exchange -> withLock(getClass().getSimpleName() + "::processFromAssetQueue", () -> {
-
-                AttributeEvent event = exchange.getIn().getBody(AttributeEvent.class);
-                LOG.finest("Processing: " + event);
-                if (event.getEntityId() == null || event.getEntityId().isEmpty())
-                    return;
-                if (event.getAttributeName() == null || event.getAttributeName().isEmpty())
-                    return;
-                Source source = exchange.getIn().getHeader(HEADER_SOURCE, () -> null, Source.class);
-                if (source == null) {
-                    throw new AssetProcessingException(MISSING_SOURCE);
-                }
+            // or rulesets are modified. In partitioned mode, events are processed concurrently
+            // on lanes selected by asset identifier and processors synchronize internally.
+            .process(createAssetQueueProcessor())
+            .endDoTry()
+            .doCatch(AssetProcessingException.class)
+            .process(handleAssetProcessingException(LOG));
 
-                // Process the asset update in a database transaction, this ensures that processors
-                // will see consistent database state and we only commit if no processor failed. This
-                // still won't make this procedure consistent with the message queue from which we consume!
-                persistenceService.doTransaction(em -> {
-                    Asset asset = assetStorageService.find(em, event.getEntityId(), true);
-                    if (asset == null)
-                        throw new AssetProcessingException(ASSET_NOT_FOUND);
-
-                    AssetAttribute oldAttribute = asset.getAttribute(event.getAttributeName()).orElse(null);
-                    if (oldAttribute == null)
-                        throw new AssetProcessingException(ATTRIBUTE_NOT_FOUND);
-
-                    switch (source) {
-                        case CLIENT:
-
-                            AuthContext authContext = exchange.getIn().getHeader(Constants.AUTH_CONTEXT, AuthContext.class);
-                            if (authContext == null) {
-                                // Check attribute has public write flag
-                                if (!oldAttribute.getMetaItem(AssetMeta.ACCESS_PUBLIC_WRITE).isPresent()) {
-                                    throw new AssetProcessingException(NO_AUTH_CONTEXT);
-                                }
-                                // Check read-only
-                                if (oldAttribute.isReadOnly()) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-                            } else {
-                                // Check realm, must be accessible
-                                if (!identityService.getIdentityProvider().isTenantActiveAndAccessible(authContext,
-                                                                                                       asset)) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-
-                                // Check read-only
-                                if (oldAttribute.isReadOnly() && !authContext.isSuperUser()) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-
-                                // Regular user must have write assets role
-                                if (!authContext.hasResourceRoleOrIsSuperUser(ClientRole.WRITE_ASSETS.getValue(),
-                                                                              Constants.KEYCLOAK_CLIENT_ID)) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-
-                                // Check restricted user
-                                if (identityService.getIdentityProvider().isRestrictedUser(authContext.getUserId())) {
-                                    // Must be asset linked to user
-                                    if (!assetStorageService.isUserAsset(authContext.getUserId(),
-                                                                         event.getEntityId())) {
-                                        throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                    }
-                                    // Must be writable by restricted client
-                                    if (!oldAttribute.isAccessRestrictedWrite()) {
-                                        throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                    }
-                                }
-                            }
-                            break;
-
-                        case SENSOR:
-                            Optional<AssetAttribute> protocolConfiguration =
-                                getAgentLink(oldAttribute).flatMap(agentService::getProtocolConfiguration);
-
-                            // Sensor event must be for an attribute linked to a protocol configuration
-                            if (!protocolConfiguration.isPresent()) {
-                                throw new AssetProcessingException(INVALID_AGENT_LINK);
-                            }
-                            break;
+        if (batchSize > 0) {
+            // Batches completed by size and by timeout might be handed over on different threads, the lock
+            // serializes them and the outdated event check drops any update overtaken by a newer one
+            from(ASSET_QUEUE_BATCH)
+                .routeId("AssetQueueBatchProcessor")
+                .aggregate(constant(true), new GroupedExchangeAggregationStrategy())
+                .completionSize(batchSize)
+                .completionTimeout(batchTimeoutMillis)
+                .process(exchange -> {
+                    @SuppressWarnings("unchecked")
+                    List<Exchange> exchanges = exchange.getIn().getBody(List.class);
+                    withLock(getClass().getSimpleName() + "::processBatchFromAssetQueue", () -> processBatchFromAssetQueue(exchanges));
+                });
+        }
+    }
+
+    protected Processor createAssetQueueProcessor() {
+        if (partitionedExecutor != null) {
+            return new PartitionedAssetQueueProcessor();
+        }
+        return exchange -> withLock(getClass().getSimpleName() + "::processFromAssetQueue", () -> processFromAssetQueue(exchange));
+    }
+
+    /**
+     * Validates and processes a single {@link AttributeEvent} consumed from the {@link #ASSET_QUEUE}. The caller
+     * must either hold the {@link GlobalLock} or guarantee that no other thread processes events of the same asset.
+     */
+    protected void processFromAssetQueue(Exchange exchange) throws AssetProcessingException {
+        AttributeEvent event = exchange.getIn().getBody(AttributeEvent.class);
+        LOG.finest("Processing: " + event);
+        if (event.getEntityId() == null || event.getEntityId().isEmpty())
+            return;
+        if (event.getAttributeName() == null || event.getAttributeName().isEmpty())
+            return;
+        Source source = exchange.getIn().getHeader(HEADER_SOURCE, () -> null, Source.class);
+        if (source == null) {
+            throw new AssetProcessingException(MISSING_SOURCE);
+        }
+
+        // Process the asset update in a database transaction, this ensures that processors
+        // will see consistent database state and we only commit if no processor failed. This
+        // still won't make this procedure consistent with the message queue from which we consume!
+        AssetAttribute storedAttribute = persistenceService.doReturningTransaction(em -> {
+            Asset asset = findAssetForProcessing(em, event.getEntityId());
+            AssetAttribute updatedAttribute = processAttributeEvent(em, exchange, asset, event, source, null);
+
+            // Publish a new event for clients if no processor consumed the update completely
+            if (updatedAttribute != null) {
+                publishClientEvent(asset, updatedAttribute);
+            }
+            return updatedAttribute;
+        });
+
+        if (storedAttribute != null) {
+            updateCachedAsset(event.getEntityId(), storedAttribute);
+        }
+    }
+
+    /**
+     * Processes a batch of {@link AttributeEvent}s consumed from the {@link #ASSET_QUEUE} in a single database
+     * transaction. Each asset is loaded only once per batch and repeated updates of the same attribute are coalesced,
+     * only the latest value is written. The values are written with a single JDBC batch when all events have
+     * passed the processors, client events are published after the transaction has been committed.
+     * <p>
+     * Each event is processed after a savepoint, an {@link AssetProcessingException} rolls back to the savepoint and
+     * only fails its own event, see {@link #afterEventCommit}. An event whose value could not be stored fails with
+     * {@link AssetProcessingException.Reason#STATE_STORAGE_FAILED}. If the batch transaction fails otherwise, the
+     * processors are not called again, as their side effects (e.g. rules facts and actuator writes) are not rolled
+     * back: only the batched values are stored again one at a time, each in its own transaction. Events not reached
+     * by the batch are processed one at a time.
+     */
+    protected void processBatchFromAssetQueue(List<Exchange> exchanges) {
+        LOG.finest("Processing batch of attribute events: " + exchanges.size());
+        Map<String, Asset> assets = new HashMap<>();
+        Map<AttributeRef, AssetAttribute> batchedValues = new LinkedHashMap<>();
+        List<BatchedEvent> processedEvents = new ArrayList<>();
+        Set<Exchange> attemptedExchanges = new HashSet<>();
+        Set<Exchange> failedExchanges = new HashSet<>();
+        Set<AttributeRef> failedRefs = new HashSet<>();
+
+        try {
+            persistenceService.doTransaction(em -> {
+                for (Exchange exchange : exchanges) {
+                    AttributeEvent event = exchange.getIn().getBody(AttributeEvent.class);
+                    LOG.finest("Processing: " + event);
+                    if (event.getEntityId() == null || event.getEntityId().isEmpty())
+                        continue;
+                    if (event.getAttributeName() == null || event.getAttributeName().isEmpty())
+                        continue;
+                    attemptedExchanges.add(exchange);
+
+                    // Earlier events of the batch must be written before the savepoint
+                    em.flush();
+                    Session session = em.unwrap(Session.class);
+                    Savepoint savepoint = session.doReturningWork(Connection::setSavepoint);
+                    List<Runnable> commitActions = new ArrayList<>();
+                    batchEventCommitActions.set(commitActions);
+                    try {
+                        Source source = exchange.getIn().getHeader(HEADER_SOURCE, () -> null, Source.class);
+                        if (source == null) {
+                            throw new AssetProcessingException(MISSING_SOURCE);
+                        }
+
+                        Asset asset;
+                        if (assets.containsKey(event.getEntityId())) {
+                            asset = assets.get(event.getEntityId());
+                        } else {
+                            asset = findAssetForProcessing(em, event.getEntityId());
+                            assets.put(event.getEntityId(), asset);
+                        }
+
+                        AssetAttribute updatedAttribute = processAttributeEvent(em, exchange, asset, event, source, batchedValues);
+                        em.flush(); // Make sure constraint violations are immediately visible
+                        session.doWork(connection -> connection.releaseSavepoint(savepoint));
+                        processedEvents.add(new BatchedEvent(exchange, asset, updatedAttribute, commitActions));
+                    } catch (AssetProcessingException ex) {
+                        // Discard changes of the failed event which have not been written yet, then undo the written
+                        em.clear();
+                        session.doWork(connection -> connection.rollback(savepoint));
+                        failedExchanges.add(exchange);
+                        handleFailedFromBatch(exchange, ex);
+                    } finally {
+                        batchEventCommitActions.remove();
                     }
+                }
 
-                    // Agent attributes can't be updated with events
-                    if (asset.getWellKnownType() == AssetType.AGENT) {
-                        throw new AssetProcessingException(ILLEGAL_AGENT_UPDATE);
+                failedRefs.addAll(storeAttributeValues(em, batchedValues.values()));
+                em.flush(); // Make sure constraint violations are immediately visible
+                for (BatchedEvent processedEvent : processedEvents) {
+                    if (!processedEvent.isStoredIn(failedRefs)) {
+                        processedEvent.commitActions.forEach(action -> registerAfterCommit(em, action));
                     }
+                }
+            });
+        } catch (Exception ex) {
+            LOG.log(Level.WARNING, "Error processing batch of attribute events, rolled back and storing values one at a time: " + exchanges.size(), ex);
+            // Cached assets might have been modified by the batch
+            assets.keySet().forEach(this::invalidateCachedAsset);
+            failedRefs.clear();
+            // Store the values of the processed events only, the event which failed the batch might have batched its value
+            Map<AttributeRef, AssetAttribute> processedValues = new LinkedHashMap<>();
+            for (BatchedEvent processedEvent : processedEvents) {
+                if (processedEvent.updatedAttribute != null) {
+                    processedValues.put(processedEvent.updatedAttribute.getReferenceOrThrow(), processedEvent.updatedAttribute);
+                }
+            }
+            for (AssetAttribute attribute : processedValues.values()) {
+                try {
+                    failedRefs.addAll(persistenceService.doReturningTransaction(em ->
+                        storeAttributeValues(em, Collections.singletonList(attribute))
+                    ));
+                } catch (Exception storageEx) {
+                    LOG.log(Level.WARNING, "Error storing attribute value: " + attribute.getReferenceOrThrow(), storageEx);
+                    failedRefs.add(attribute.getReferenceOrThrow());
+                }
+            }
+            for (BatchedEvent processedEvent : processedEvents) {
+                if (!processedEvent.isStoredIn(failedRefs)) {
+                    processedEvent.commitActions.forEach(Runnable::run);
+                }
+            }
 
-                    // For executable attributes, non-sensor sources can set a writable attribute execute status
-                    if (oldAttribute.isExecutable() && source != SENSOR) {
-                        Optional<AttributeExecuteStatus> status = event.getValue()
-                            .flatMap(Values::getString)
-                            .flatMap(AttributeExecuteStatus::fromString);
+            Set<Exchange> completedExchanges = new HashSet<>(failedExchanges);
+            processedEvents.forEach(processedEvent -> completedExchanges.add(processedEvent.exchange));
+            for (Exchange exchange : exchanges) {
+                if (!attemptedExchanges.contains(exchange)) {
+                    // Events not reached by the batch have not been processed yet
+                    processSingleFromBatch(exchange);
+                } else if (!completedExchanges.contains(exchange)) {
+                    // The processors of the event which failed the batch might have been called already
+                    handleFailedFromBatch(exchange, new AssetProcessingException(PROCESSOR_FAILURE, ex.toString()));
+                }
+            }
+        }
 
-                        if (status.isPresent() && !status.get().isWrite()) {
-                            throw new AssetProcessingException(INVALID_ATTRIBUTE_EXECUTE_STATUS);
-                        }
+        if (!failedRefs.isEmpty()) {
+            LOG.warning("Error processing batch - " + STATE_STORAGE_FAILED + ", no rows updated: " + failedRefs);
+            failedRefs.forEach(attributeRef -> invalidateCachedAsset(attributeRef.getEntityId()));
+        }
+
+        for (BatchedEvent processedEvent : processedEvents) {
+            if (processedEvent.isStoredIn(failedRefs)) {
+                handleFailedFromBatch(
+                    processedEvent.exchange,
+                    new AssetProcessingException(STATE_STORAGE_FAILED, "database update failed, no rows updated")
+                );
+            } else if (processedEvent.updatedAttribute != null) {
+                publishClientEvent(processedEvent.asset, processedEvent.updatedAttribute);
+            }
+        }
+    }
+
+    protected void processSingleFromBatch(Exchange exchange) {
+        try {
+            processFromAssetQueue(exchange);
+        } catch (AssetProcessingException ex) {
+            handleFailedFromBatch(exchange, ex);
+        } catch (Exception ex) {
+            LOG.log(Level.WARNING, "Error processing attribute event, dropped: " + exchange.getIn().getBody(), ex);
+        }
+    }
+
+    protected void handleFailedFromBatch(Exchange exchange, AssetProcessingException ex) {
+        exchange.setProperty(Exchange.EXCEPTION_CAUGHT, ex);
+        try {
+            handleAssetProcessingException(LOG).process(exchange);
+        } catch (Exception handlerEx) {
+            LOG.log(Level.WARNING, "Error handling asset processing exception: " + exchange.getIn().getBody(), handlerEx);
+        }
+    }
+
+    /**
+     * An event of a batch which passed the processors, its commit actions and client event are held back until
+     * its value has been stored.
+     */
+    protected static class BatchedEvent {
+
+        final protected Exchange exchange;
+        final protected Asset asset;
+        final protected AssetAttribute updatedAttribute;
+        final protected List<Runnable> commitActions;
+
+        public BatchedEvent(Exchange exchange, Asset asset, AssetAttribute updatedAttribute, List<Runnable> commitActions) {
+            this.exchange = exchange;
+            this.asset = asset;
+            this.updatedAttribute = updatedAttribute;
+            this.commitActions = commitActions;
+        }
+
+        /**
+         * @return <code>true</code> if a processor didn't consume the update completely and its value is one of the refs.
+         */
+        public boolean isStoredIn(Collection<AttributeRef> attributeRefs) {
+            return updatedAttribute != null && attributeRefs.contains(updatedAttribute.getReferenceOrThrow());
+        }
+    }
+
+    /**
+     * Runs the action when the transaction of the event being processed has been committed. In a batch, the action
+     * is discarded if the event fails and is rolled back to its savepoint, see {@link #processBatchFromAssetQueue}.
+     */
+    public void afterEventCommit(EntityManager em, Runnable action) {
+        List<Runnable> commitActions = batchEventCommitActions.get();
+        if (commitActions != null) {
+            commitActions.add(action);
+        } else {
+            registerAfterCommit(em, action);
+        }
+    }
+
+    protected static void registerAfterCommit(EntityManager em, Runnable action) {
+        em.unwrap(SessionImplementor.class).getActionQueue().registerProcess(
+            (AfterTransactionCompletionProcess) (success, session) -> {
+                if (success) {
+                    action.run();
+                }
+            }
+        );
+    }
+
+    /**
+     * Validates the {@link AttributeEvent} against the current state of the asset and pushes it through the
+     * processor chain.
+     *
+     * @param batchedValues If not <code>null</code>, the updated attribute is collected in this map and the caller
+     *                      must store it, otherwise it is stored immediately.
+     * @return The updated attribute or <code>null</code> if a processor consumed the update completely.
+     */
+    protected AssetAttribute processAttributeEvent(EntityManager em,
+                                                   Exchange exchange,
+                                                   Asset asset,
+                                                   AttributeEvent event,
+                                                   Source source,
+                                                   Map<AttributeRef, AssetAttribute> batchedValues) throws AssetProcessingException {
+        if (asset == null)
+            throw new AssetProcessingException(ASSET_NOT_FOUND);
+
+        AssetAttribute oldAttribute = asset.getAttribute(event.getAttributeName()).orElse(null);
+        if (oldAttribute == null)
+            throw new AssetProcessingException(ATTRIBUTE_NOT_FOUND);
+
+        switch (source) {
+            case CLIENT:
+
+                AuthContext authContext = exchange.getIn().getHeader(Constants.AUTH_CONTEXT, AuthContext.class);
+                if (authContext == null) {
+                    // Check attribute has public write flag
+                    if (!oldAttribute.getMetaItem(AssetMeta.ACCESS_PUBLIC_WRITE).isPresent()) {
+                        throw new AssetProcessingException(NO_AUTH_CONTEXT);
+                    }
+                    // Check read-only
+                    if (oldAttribute.isReadOnly()) {
+                        throw new AssetProcessingException(INSUFFICIENT_ACCESS);
+                    }
+                } else {
+                    // Check realm, must be accessible
+                    if (!identityService.getIdentityProvider().isTenantActiveAndAccessible(authContext,
+                                                                                           asset)) {
+                        throw new AssetProcessingException(INSUFFICIENT_ACCESS);
                     }
 
-                    //Check if attribute is well known and the value is valid
-                    AssetModel.getAttributeDescriptor(oldAttribute.name).ifPresent(wellKnownAttribute -> {
-                        // Check if the value is valid
-                        wellKnownAttribute.getValueType()
-                            .isValidValue(event.getValue().orElse(null))
-                            .ifPresent(validationFailure -> {
-                                throw new AssetProcessingException(
-                                    INVALID_VALUE_FOR_WELL_KNOWN_ATTRIBUTE
-                                );
-                            });
-                    });
+                    // Check read-only
+                    if (oldAttribute.isReadOnly() && !authContext.isSuperUser()) {
+                        throw new AssetProcessingException(INSUFFICIENT_ACCESS);
+                    }
 
-                    // Either use the timestamp of the event or set event time to processing time
-                    long processingTime = timerService.getCurrentTimeMillis();
-                    long eventTime = event.getTimestamp() > 0 ? event.getTimestamp() : processingTime;
-
-                    // Ensure timestamp of event is not in the future as that would essentially block access to
-                    // the attribute until after that time (maybe that is desirable behaviour)
-                    if (eventTime - processingTime > 0) {
-                        // TODO: Decide how to handle update events in the future - ignore or change timestamp
-                        throw new AssetProcessingException(
-                            EVENT_IN_FUTURE,
-                            "current time: " + new Date(processingTime) + "/" + processingTime
-                                + ", event time: " + new Date(eventTime) + "/" + eventTime
-                        );
+                    // Regular user must have write assets role
+                    if (!authContext.hasResourceRoleOrIsSuperUser(ClientRole.WRITE_ASSETS.getValue(),
+                                                                  Constants.KEYCLOAK_CLIENT_ID)) {
+                        throw new AssetProcessingException(INSUFFICIENT_ACCESS);
                     }
 
-                    // Check the last update timestamp of the attribute, ignoring any event that is older than last update
-                    // TODO This means we drop out-of-sequence events but accept events with the same source timestamp
-                    // TODO Several attribute events can occur in the same millisecond, then order of application is undefined
-                    oldAttribute.getValueTimestamp().filter(t -> t >= 0 && eventTime < t).ifPresent(
-                        lastStateTime -> {
-                            throw new AssetProcessingException(
-                                EVENT_OUTDATED,
-                                "last asset state time: " + new Date(lastStateTime) + "/" + lastStateTime
-                                    + ", event time: " + new Date(eventTime) + "/" + eventTime);
+                    // Check restricted user
+                    if (identityService.getIdentityProvider().isRestrictedUser(authContext.getUserId())) {
+                        // Must be asset linked to user
+                        if (!assetStorageService.isUserAsset(authContext.getUserId(),
+                                                             event.getEntityId())) {
+                            throw new AssetProcessingException(INSUFFICIENT_ACCESS);
                         }
-                    );
+                        // Must be writable by restricted client
+                        if (!oldAttribute.isAccessRestrictedWrite()) {
+                            throw new AssetProcessingException(INSUFFICIENT_ACCESS);
+                        }
+                    }
+                }
+                break;
 
-                    // Create a copy of the attribute and set the new value and timestamp
-                    AssetAttribute updatedAttribute = oldAttribute.deepCopy();
-                    updatedAttribute.setValue(event.getValue().orElse(null), eventTime);
+            case SENSOR:
+                Optional<AssetAttribute> protocolConfiguration =
+                    getAgentLink(oldAttribute).flatMap(agentService::getProtocolConfiguration);
 
-                    // Validate constraints of attribute
-                    List<ValidationFailure> validationFailures = updatedAttribute.getValidationFailures();
-                    if (!validationFailures.isEmpty()) {
-                        throw new AssetProcessingException(ATTRIBUTE_VALIDATION_FAILURE, validationFailures.toString());
-                    }
+                // Sensor event must be for an attribute linked to a protocol configuration
+                if (!protocolConfiguration.isPresent()) {
+                    throw new AssetProcessingException(INVALID_AGENT_LINK);
+                }
+                break;
+        }
 
-                    // Push through all processors
-                    boolean consumedCompletely = processAssetUpdate(em, asset, updatedAttribute, source);
+        // Agent attributes can't be updated with events
+        if (asset.getWellKnownType() == AssetType.AGENT) {
+            throw new AssetProcessingException(ILLEGAL_AGENT_UPDATE);
+        }
 
-                    // Publish a new event for clients if no processor consumed the update completely
-                    if (!consumedCompletely) {
-                        publishClientEvent(asset, updatedAttribute);
-                    }
+        // For executable attributes, non-sensor sources can set a writable attribute execute status
+        if (oldAttribute.isExecutable() && source != SENSOR) {
+            Optional<AttributeExecuteStatus> status = event.getValue()
+                .flatMap(Values::getString)
+                .flatMap(AttributeExecuteStatus::fromString);
+
+            if (status.isPresent() && !status.get().isWrite()) {
+                throw new AssetProcessingException(INVALID_ATTRIBUTE_EXECUTE_STATUS);
+            }
+        }
+
+        //Check if attribute is well known and the value is valid
+        AssetModel.getAttributeDescriptor(oldAttribute.name).ifPresent(wellKnownAttribute -> {
+            // Check if the value is valid
+            wellKnownAttribute.getValueType()
+                .isValidValue(event.getValue().orElse(null))
+                .ifPresent(validationFailure -> {
+                    throw new AssetProcessingException(
+                        INVALID_VALUE_FOR_WELL_KNOWN_ATTRIBUTE
+                    );
                 });
-            }))
-            .endDoTry()
-            .doCatch(AssetProcessingException.class)
-            .process(handleAssetProcessingException(LOG));
+        });
+
+        // Either use the timestamp of the event or set event time to processing time
+        long processingTime = timerService.getCurrentTimeMillis();
+        long eventTime = event.getTimestamp() > 0 ? event.getTimestamp() : processingTime;
+
+        // Ensure timestamp of event is not in the future as that would essentially block access to
+        // the attribute until after that time (maybe that is desirable behaviour)
+        if (eventTime - processingTime > 0) {
+            // TODO: Decide how to handle update events in the future - ignore or change timestamp
+            throw new AssetProcessingException(
+                EVENT_IN_FUTURE,
+                "current time: " + new Date(processingTime) + "/" + processingTime
+                    + ", event time: " + new Date(eventTime) + "/" + eventTime
+            );
+        }
+
+        // Check the last update timestamp of the attribute, ignoring any event that is older than last update
+        // TODO This means we drop out-of-sequence events but accept events with the same source timestamp
+        // TODO Several attribute events can occur in the same millisecond, then order of application is undefined
+        oldAttribute.getValueTimestamp().filter(t -> t >= 0 && eventTime < t).ifPresent(
+            lastStateTime -> {
+                throw new AssetProcessingException(
+                    EVENT_OUTDATED,
+                    "last asset state time: " + new Date(lastStateTime) + "/" + lastStateTime
+                        + ", event time: " + new Date(eventTime) + "/" + eventTime);
+            }
+        );
+
+        // Create a copy of the attribute and set the new value and timestamp
+        AssetAttribute updatedAttribute = oldAttribute.deepCopy();
+        updatedAttribute.setValue(event.getValue().orElse(null), eventTime);
+
+        // Validate constraints of attribute
+        List<ValidationFailure> validationFailures = updatedAttribute.getValidationFailures();
+        if (!validationFailures.isEmpty()) {
+            throw new AssetProcessingException(ATTRIBUTE_VALIDATION_FAILURE, validationFailures.toString());
+        }
+
+        // Push through all processors
+        boolean consumedCompletely = processAssetUpdate(em, asset, updatedAttribute, source, batchedValues);
+
+        return consumedCompletely ? null : updatedAttribute;
     }
 
     /**
@@ -431,6 +821,18 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
                                          Asset asset,
                                          AssetAttribute attribute,
                                          Source source) throws AssetProcessingException {
+        return processAssetUpdate(em, asset, attribute, source, null);
+    }
+
+    /**
+     * @param batchedValues If not <code>null</code>, an attribute not consumed completely is added to this map
+     *                      instead of being stored, see {@link #processBatchFromAssetQueue}.
+     */
+    protected boolean processAssetUpdate(EntityManager em,
+                                         Asset asset,
+                                         AssetAttribute attribute,
+                                         Source source,
+                                         Map<AttributeRef, AssetAttribute> batchedValues) throws AssetProcessingException {
         LOG.fine(">>> Processing start: " + attribute);
 
         // Need to record time here otherwise an infinite loop generated inside one of the processors means the timestamp
@@ -458,7 +860,12 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
             }
         }
 
-        if (!complete) {
+        if (!complete && batchedValues != null) {
+            LOG.finest("No processor consumed the update completely, batching: " + attribute);
+            // Later events of the batch must see this state, replaces any earlier batched value of the attribute
+            asset.replaceAttribute(attribute);
+            batchedValues.put(attribute.getReferenceOrThrow(), attribute);
+        } else if (!complete) {
             LOG.finest("No processor consumed the update completely, storing: " + attribute);
             storeAttributeValue(em, asset, attribute);
             em.flush(); // Make sure constraint violations are immediately visible
@@ -522,6 +929,66 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
         }
     }
 
+    /**
+     * Loads the asset with all attributes, from the cache if enabled. A loaded asset is only cached if no
+     * invalidation happened while it was loaded, so a concurrent modification can't leave a stale entry.
+     */
+    protected Asset findAssetForProcessing(EntityManager em, String assetId) {
+        if (assetCache == null)
+            return assetStorageService.find(em, assetId, true);
+
+        Asset asset = assetCache.getIfPresent(assetId);
+        if (asset != null)
+            return asset;
+
+        long invalidations = assetCacheInvalidations.get();
+        asset = assetStorageService.find(em, assetId, true);
+        if (asset != null && invalidations == assetCacheInvalidations.get()) {
+            assetCache.put(assetId, asset);
+        }
+        return asset;
+    }
+
+    /**
+     * Write-through of a committed attribute value, the cached asset is not reloaded from the database.
+     */
+    protected void updateCachedAsset(String assetId, AssetAttribute attribute) {
+        if (assetCache == null)
+            return;
+        // Access through the map view doesn't count as a hit or miss
+        Asset asset = assetCache.asMap().get(assetId);
+        if (asset != null) {
+            asset.replaceAttribute(attribute);
+        }
+    }
+
+    protected void invalidateCachedAsset(String assetId) {
+        if (assetCache == null)
+            return;
+        assetCacheInvalidations.incrementAndGet();
+        assetCache.invalidate(assetId);
+    }
+
+    /**
+     * @return Hit, miss and eviction counts of the asset cache, or <code>null</code> if the cache is disabled.
+     */
+    public CacheStats getAssetCacheStats() {
+        return assetCache != null ? assetCache.stats() : null;
+    }
+
+    protected List<AttributeRef> storeAttributeValues(EntityManager em, Collection<AssetAttribute> attributes) {
+        List<AttributeEvent> attributeEvents = new ArrayList<>(attributes.size());
+        for (AssetAttribute attribute : attributes) {
+            // If there is no timestamp, use system time (0 or -1 are "no timestamp")
+            long valueTimestamp = attribute.getValueTimestamp()
+                .filter(ts -> ts > 0).orElseGet(() -> timerService.getCurrentTimeMillis());
+            attributeEvents.add(new AttributeEvent(
+                attribute.getReferenceOrThrow(), attribute.getValue().orElse(null), valueTimestamp
+            ));
+        }
+        return assetStorageService.storeAttributeValues(em, attributeEvents);
+    }
+
     protected void publishClientEvent(Asset asset, AssetAttribute attribute) {
         // TODO Catch "queue full" exception (e.g. when producing thousands of INFO messages in rules)?
         clientEventService.publishEvent(
@@ -535,6 +1002,39 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
         );
     }
 
+    /**
+     * Hands each exchange to the lane of its asset and completes the exchange asynchronously when the lane is done,
+     * so the single queue consumer can continue with events of other assets.
+     */
+    protected class PartitionedAssetQueueProcessor implements AsyncProcessor {
+
+        @Override
+        public void process(Exchange exchange) throws Exception {
+            AsyncProcessorHelper.process(this, exchange);
+        }
+
+        @Override
+        public boolean process(Exchange exchange, AsyncCallback callback) {
+            AttributeEvent event = exchange.getIn().getBody(AttributeEvent.class);
+            try {
+                partitionedExecutor.execute(event.getEntityId(), () -> {
+                    try {
+                        processFromAssetQueue(exchange);
+                    } catch (Exception ex) {
+                        exchange.setException(ex);
+                    } finally {
+                        callback.done(false);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                exchange.setException(ex);
+                callback.done(true);
+                return true;
+            }
+            return false;
+        }
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "{" +
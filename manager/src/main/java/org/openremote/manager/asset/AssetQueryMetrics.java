@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.asset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Execution statistics of asset queries, grouped by query shape.
+ * <p>
+ * The shape of a query is its generated SQL, all predicate values are bound as parameters so queries which only
+ * differ in values share a shape (and a server-side prepared statement on each pooled connection). Latency
+ * percentiles are calculated from the most recent executions of each shape. When the maximum number of shapes
+ * is reached, executions of new shapes are only counted in {@link #getUntrackedCount}.
+ */
+public class AssetQueryMetrics {
+
+    public static final int MAX_SHAPES = 500;
+    public static final int LATENCY_SAMPLES = 256;
+
+    public static class ShapeMetrics {
+
+        final protected String sql;
+        protected long count;
+        protected long rows;
+        protected long totalNanos;
+        final protected long[] latencySamples = new long[LATENCY_SAMPLES];
+
+        public ShapeMetrics(String sql) {
+            this.sql = sql;
+        }
+
+        synchronized void record(long nanos, int resultRows) {
+            latencySamples[(int) (count % LATENCY_SAMPLES)] = nanos;
+            count++;
+            rows += resultRows;
+            totalNanos += nanos;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getRows() {
+            return rows;
+        }
+
+        public synchronized double getAverageMillis() {
+            return count > 0 ? totalNanos / (double) count / 1000000d : 0;
+        }
+
+        public double getP50Millis() {
+            return getPercentileMillis(0.5);
+        }
+
+        public double getP99Millis() {
+            return getPercentileMillis(0.99);
+        }
+
+        public double getPercentileMillis(double percentile) {
+            long[] samples;
+            synchronized (this) {
+                samples = Arrays.copyOf(latencySamples, (int) Math.min(count, LATENCY_SAMPLES));
+            }
+            if (samples.length == 0)
+                return 0;
+            Arrays.sort(samples);
+            int index = (int) Math.ceil(percentile * samples.length) - 1;
+            return samples[Math.max(0, Math.min(samples.length - 1, index))] / 1000000d;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                "count=" + getCount() +
+                ", rows=" + getRows() +
+                ", averageMillis=" + getAverageMillis() +
+                ", p50Millis=" + getP50Millis() +
+                ", p99Millis=" + getP99Millis() +
+                ", sql='" + sql + '\'' +
+                '}';
+        }
+    }
+
+    final protected Map<String, ShapeMetrics> shapes = new ConcurrentHashMap<>();
+    final protected AtomicLong untrackedCount = new AtomicLong();
+
+    public void record(String sql, long nanos, int resultRows) {
+        ShapeMetrics shape = shapes.get(sql);
+        if (shape == null) {
+            if (shapes.size() >= MAX_SHAPES) {
+                untrackedCount.incrementAndGet();
+                return;
+            }
+            shape = shapes.computeIfAbsent(sql, ShapeMetrics::new);
+        }
+        shape.record(nanos, resultRows);
+    }
+
+    /**
+     * @return The metrics of all tracked query shapes, most frequently executed first.
+     */
+    public List<ShapeMetrics> getShapes() {
+        List<ShapeMetrics> result = new ArrayList<>(shapes.values());
+        result.sort(Comparator.comparingLong(ShapeMetrics::getCount).reversed());
+        return result;
+    }
+
+    public long getUntrackedCount() {
+        return untrackedCount.get();
+    }
+
+    public void clear() {
+        shapes.clear();
+        untrackedCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "shapes=" + shapes.size() +
+            ", untracked=" + untrackedCount.get() +
+            '}';
+    }
+}
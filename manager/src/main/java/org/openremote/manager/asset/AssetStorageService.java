@@ -45,6 +45,7 @@ import org.openremote.model.Constants;
 import org.openremote.model.ValidationFailure;
 import org.openremote.model.asset.*;
 import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.attribute.AttributeRef;
 import org.openremote.model.attribute.AttributeType;
 import org.openremote.model.calendar.CalendarEvent;
 import org.openremote.model.calendar.RecurrenceRule;
@@ -67,8 +68,11 @@ import java.sql.*;
 import java.util.*;
 import java.util.Date;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static org.openremote.container.persistence.PersistenceEvent.PERSISTENCE_TOPIC;
 import static org.openremote.container.persistence.PersistenceEvent.isPersistenceEventForEntityType;
@@ -84,6 +88,11 @@ import static org.openremote.model.util.TextUtil.isNullOrEmpty;
 
 public class AssetStorageService extends RouteBuilder implements ContainerService {
 
+    /**
+     * Number of rows read from the database at once when streaming query results.
+     */
+    public static final int ASSET_QUERY_FETCH_SIZE = 100;
+
     protected class PreparedAssetQuery {
 
         final protected String querySql;
@@ -107,6 +116,7 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     protected PersistenceService persistenceService;
     protected ManagerIdentityService identityService;
     protected ClientEventService clientEventService;
+    final protected AssetQueryMetrics queryMetrics = new AssetQueryMetrics();
 
     @Override
     public void init(Container container) throws Exception {
@@ -148,7 +158,15 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
     @Override
     public void stop(Container container) throws Exception {
+        LOG.info("Asset query metrics: " + queryMetrics);
+        queryMetrics.getShapes().stream().limit(10).forEach(shape -> LOG.fine("Asset query shape: " + shape));
+    }
 
+    /**
+     * @return Execution statistics of {@link #findAll} queries by query shape.
+     */
+    public AssetQueryMetrics getQueryMetrics() {
+        return queryMetrics;
     }
 
     @SuppressWarnings("unchecked")
@@ -309,7 +327,7 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
      * @throws IllegalArgumentException if the realm or parent is illegal, or other asset constraint is violated.
      */
     public Asset merge(Asset asset, boolean overrideVersion, String userName) {
-        return persistenceService.doReturningTransaction(em -> {
+        Asset result = persistenceService.doReturningTransaction(em -> {
 
             // Update all empty attribute timestamps with server-time (a caller which doesn't have a
             // reliable time source such as a browser should clear the timestamp when setting an attribute
@@ -388,13 +406,16 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
             return updatedAsset;
         });
+        // Don't wait for the persistence event, the realm of the asset might have changed
+        identityService.getAuthorizationCache().invalidate(result);
+        return result;
     }
 
     /**
      * @return <code>true</code> if the asset was deleted, false if the asset still has children and can't be deleted.
      */
     public boolean delete(String assetId) {
-        return persistenceService.doReturningTransaction(em -> {
+        boolean result = persistenceService.doReturningTransaction(em -> {
             Asset asset = em.find(Asset.class, assetId);
             if (asset != null) {
                 List<Asset> children = findAll(em, new AssetQuery()
@@ -407,6 +428,11 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
             }
             return true;
         });
+        if (result) {
+            // Don't wait for the persistence event, access to the deleted asset must be denied right away
+            identityService.getAuthorizationCache().invalidateAsset(assetId);
+        }
+        return result;
     }
 
     public boolean isUserAsset(String assetId) {
@@ -414,6 +440,13 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     }
 
     public boolean isUserAsset(String userId, String assetId) {
+        if (TextUtil.isNullOrEmpty(userId)) {
+            return queryUserAsset(null, assetId);
+        }
+        return identityService.getAuthorizationCache().isUserAsset(userId, assetId, () -> queryUserAsset(userId, assetId));
+    }
+
+    protected boolean queryUserAsset(String userId, String assetId) {
         return persistenceService.doReturningTransaction(entityManager -> {
             try {
                 String queryStr = TextUtil.isNullOrEmpty(userId) ?
@@ -483,7 +516,7 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         return persistenceService.doReturningTransaction(entityManager -> {
             try {
                 return entityManager.createQuery(
-                    "select count(a) from Asset a where :parentAssetId = any(get_asset_tree_path(a.ID)) AND a.id IN :assetIds",
+                    "select count(a) from Asset a where :parentAssetId = any(a.path) AND a.id IN :assetIds",
                     Long.class)
                     .setParameter("parentAssetId", parentAssetId)
                     .setParameter("assetIds", assetIds)
@@ -527,6 +560,8 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
      */
     public void storeUserAsset(UserAsset userAsset) {
         persistenceService.doTransaction(entityManager -> storeUserAsset(entityManager, userAsset));
+        // Don't wait for the persistence event, the caller might check access right away
+        identityService.getAuthorizationCache().invalidate(userAsset);
     }
 
     /**
@@ -539,6 +574,7 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
             if (userAsset != null)
                 entityManager.remove(userAsset);
         });
+        identityService.getAuthorizationCache().invalidate(new UserAsset(realmId, userId, assetId));
     }
 
     protected void storeUserAsset(EntityManager entityManager, UserAsset userAsset) {
@@ -573,7 +609,20 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                    );
     }
 
+    /**
+     * Executes the query in a transaction and passes the results as a stream to the function. The assets are read from
+     * a database cursor in batches of {@link #ASSET_QUERY_FETCH_SIZE} while the stream is consumed, so the results are
+     * not held in memory at once. The stream must not be used after the function returned.
+     */
+    public <R> R streamAll(BaseAssetQuery query, Function<Stream<Asset>, R> function) {
+        return persistenceService.doReturningTransaction(em -> streamAll(em, query, ASSET_QUERY_FETCH_SIZE, function));
+    }
+
     protected List<Asset> findAll(EntityManager em, BaseAssetQuery query) {
+        return streamAll(em, query, 0, assets -> assets.collect(Collectors.toList()));
+    }
+
+    protected <R> R streamAll(EntityManager em, BaseAssetQuery query, int fetchSize, Function<Stream<Asset>, R> function) {
 
         // Use a default projection if it's missing
         if (query.select == null)
@@ -589,29 +638,43 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
         PreparedAssetQuery querySql = buildQuery(query);
 
-        return em.unwrap(Session.class).doReturningWork(new AbstractReturningWork<List<Asset>>() {
+        return em.unwrap(Session.class).doReturningWork(new AbstractReturningWork<R>() {
             @Override
-            public List<Asset> execute(Connection connection) throws SQLException {
+            public R execute(Connection connection) throws SQLException {
                 LOG.fine("Executing: " + querySql.querySql);
+                long start = System.nanoTime();
+                int[] rows = new int[1];
+                // The driver reuses a server-side prepared statement of the connection if the SQL is the same
                 try (PreparedStatement st = connection.prepareStatement(querySql.querySql)) {
                     querySql.apply(st);
+                    // A forward-only cursor is used by the driver if the fetch size is set (in a transaction)
+                    st.setFetchSize(fetchSize);
 
                     try (ResultSet rs = st.executeQuery()) {
-                        List<Asset> result = new ArrayList<>();
-                        if (query.calendarEventActive != null) {
-                            while (rs.next()) {
-                                Asset asset = mapResultTuple(query, rs);
-                                if (calendarEventPredicateMatches(query.calendarEventActive, asset)) {
-                                    result.add(asset);
+                        Stream<Asset> assets = StreamSupport.stream(
+                            new Spliterators.AbstractSpliterator<Asset>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+                                @Override
+                                public boolean tryAdvance(Consumer<? super Asset> action) {
+                                    try {
+                                        if (!rs.next())
+                                            return false;
+                                        rows[0]++;
+                                        action.accept(mapResultTuple(query, rs));
+                                        return true;
+                                    } catch (SQLException ex) {
+                                        throw new RuntimeException(ex);
+                                    }
                                 }
-                            }
-                        } else {
-                            while (rs.next()) {
-                                result.add(mapResultTuple(query, rs));
-                            }
+                            },
+                            false
+                        );
+                        if (query.calendarEventActive != null) {
+                            assets = assets.filter(asset -> calendarEventPredicateMatches(query.calendarEventActive, asset));
                         }
-                        return result;
+                        return function.apply(assets);
                     }
+                } finally {
+                    queryMetrics.record(querySql.querySql, System.nanoTime() - start, rows[0]);
                 }
             }
         });
@@ -627,8 +690,9 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         sb.append(buildWhereClause(query, 1, binders));
 
         if (recursive) {
-            sb.insert(0, "WITH RECURSIVE top_level_assets AS ((");
-            sb.append(") UNION (");
+            // Descendants of the matched assets are found with the materialized tree path
+            sb.insert(0, "WITH matched_assets AS (");
+            sb.append("), top_level_assets AS ((select * from matched_assets) UNION (");
             sb.append(buildSelectString(query, 2, binders));
             sb.append(buildFromString(query, 2));
             sb.append(buildWhereClause(query, 2, binders));
@@ -639,6 +703,7 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         }
 
         sb.append(buildOrderByString(query));
+        sb.append(buildLimitString(query, binders));
         return new PreparedAssetQuery(sb.toString(), binders);
     }
 
@@ -669,12 +734,10 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 break;
         }
 
-        if (!recursive || level == 3) {
-            if (include == ALL) {
-                sb.append(", get_asset_tree_path(A.ID) as PATH");
-            } else {
-                sb.append(", NULL as PATH");
-            }
+        if (include == ALL) {
+            sb.append(", A.PATH as PATH");
+        } else if (!recursive || level == 3) {
+            sb.append(", NULL as PATH");
         }
 
         if (include != ALL_EXCEPT_PATH_AND_ATTRIBUTES) {
@@ -731,14 +794,9 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         sb.append(" where true");
 
         if (attributeNames != null && attributeNames.length > 0) {
-            sb.append(" AND AX.key IN (");
-            for (int i = 0; i < attributeNames.length; i++) {
-                sb.append(i == attributeNames.length - 1 ? "?" : "?,");
-                final String attributeName = attributeNames[i];
-                final int pos = binders.size() + 1;
-                binders.add(st -> st.setString(pos, attributeName));
-            }
-            sb.append(") ");
+            sb.append(" AND AX.key = any(?) ");
+            final int pos = binders.size() + 1;
+            binders.add(st -> st.setArray(pos, st.getConnection().createArrayOf("text", attributeNames)));
         }
 
         if (access != PRIVATE_READ) {
@@ -764,8 +822,9 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         if (level == 1) {
             sb.append(" from ASSET A ");
         } else if (level == 2) {
-            sb.append(" from top_level_assets P ");
-            sb.append("join ASSET A on A.PARENT_ID = P.ID ");
+            sb.append(" from matched_assets T ");
+            sb.append("join ASSET A on A.PATH @> array[text(T.ID)] ");
+            sb.append("left outer join ASSET P on A.PARENT_ID = P.ID ");
         } else {
             sb.append(" from top_level_assets A ");
         }
@@ -794,9 +853,27 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         return sb.toString();
     }
 
+    protected static boolean isPaged(BaseAssetQuery query) {
+        return query.limit > 0 || query.afterId != null;
+    }
+
+    protected String buildLimitString(BaseAssetQuery query, List<ParameterBinder> binders) {
+        if (query.limit <= 0) {
+            return "";
+        }
+        final int pos = binders.size() + 1;
+        binders.add(st -> st.setInt(pos, query.limit));
+        return " limit ?";
+    }
+
     protected String buildOrderByString(BaseAssetQuery query) {
         StringBuilder sb = new StringBuilder();
 
+        if (isPaged(query)) {
+            // Keyset pagination requires a unique and stable order, independent of the database collation
+            return " order by A.ID collate \"C\" asc";
+        }
+
         if (query.ids != null && !query.select.recursive) {
             return sb.toString();
         }
@@ -840,17 +917,10 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         }
 
         if (level == 1 && query.ids != null && !query.ids.isEmpty()) {
-            sb.append(" and A.ID IN (?");
+            // Bind all identifiers as one array so the SQL doesn't depend on their number
+            sb.append(" and A.ID = any(?)");
             final int pos = binders.size() + 1;
-            binders.add(st ->  st.setString(pos, (String)query.ids.get(0)));
-
-            for (int i=1; i<query.ids.size(); i++) {
-                sb.append(",?");
-                final int pos2 = binders.size() + 1;
-                final int index = i;
-                binders.add(st ->  st.setString(pos2, (String)query.ids.get(index)));
-            }
-            sb.append(")");
+            binders.add(st -> st.setArray(pos, st.getConnection().createArrayOf("text", query.ids.toArray())));
         }
 
         if (level == 1 && query.name != null) {
@@ -878,12 +948,12 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 sb.append(" and ST_Distance_Sphere(ST_MakePoint(");
                 sb.append("(A.attributes #>> '{location,value,coordinates,0}')::numeric");
                 sb.append(", (A.attributes #>> '{location,value,coordinates,1}')::numeric");
-                sb.append("), ST_MakePoint(");
-                sb.append(location.lng);
-                sb.append(",");
-                sb.append(location.lat);
-                sb.append(location.negated ? ")) > " : ")) <= ");
-                sb.append(location.radius);
+                sb.append("), ST_MakePoint(?, ?)");
+                sb.append(location.negated ? ") > ?" : ") <= ?");
+                final int pos = binders.size() + 1;
+                binders.add(st -> st.setDouble(pos, location.lng));
+                binders.add(st -> st.setDouble(pos + 1, location.lat));
+                binders.add(st -> st.setInt(pos + 2, location.radius));
             } else if (query.location instanceof RectangularLocationPredicate) {
                 RectangularLocationPredicate location = (RectangularLocationPredicate) query.location;
                 sb.append(location.negated ? " and NOT" : " and");
@@ -891,15 +961,12 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 sb.append("(A.attributes #>> '{location,value,coordinates,0}')::numeric");
                 sb.append(", (A.attributes #>> '{location,value,coordinates,1}')::numeric");
                 sb.append(")");
-                sb.append(", ST_MakeEnvelope(");
-                sb.append(location.lngMin);
-                sb.append(",");
-                sb.append(location.latMin);
-                sb.append(",");
-                sb.append(location.lngMax);
-                sb.append(",");
-                sb.append(location.latMax);
-                sb.append("))");
+                sb.append(", ST_MakeEnvelope(?, ?, ?, ?))");
+                final int pos = binders.size() + 1;
+                binders.add(st -> st.setDouble(pos, location.lngMin));
+                binders.add(st -> st.setDouble(pos + 1, location.latMin));
+                binders.add(st -> st.setDouble(pos + 2, location.lngMax));
+                binders.add(st -> st.setDouble(pos + 3, location.latMax));
             }
         }
 
@@ -921,12 +988,18 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         }
 
         if (level == 1 && query.path != null && query.path.hasPath()) {
-            sb.append(" and ? <@ get_asset_tree_path(A.ID)");
+            sb.append(" and ? <@ A.PATH");
             final int pos = binders.size() + 1;
             binders.add(st -> st.setArray(pos, st.getConnection().createArrayOf("text", query.path.path)));
         }
 
         if (!recursive || level == 3) {
+            if (query.afterId != null) {
+                sb.append(" and A.ID collate \"C\" > ?");
+                final int pos = binders.size() + 1;
+                binders.add(st -> st.setString(pos, query.afterId));
+            }
+
             if (query.tenant != null && query.tenant.realmId != null) {
                 sb.append(" and R.ID = ?");
                 final int pos = binders.size() + 1;
@@ -966,8 +1039,18 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 binders.add(st -> st.setString(pos, query.type.prepareValue()));
             }
 
+            // The indexed columns are only available on the ASSET table, not on the recursive CTE
+            boolean indexed = level == 1;
+
             if (query.attributeMeta != null) {
                 for (AttributeMetaPredicate attributeMetaPredicate : query.attributeMeta) {
+                    String attributeMetaIndexFilter = indexed ? buildAttributeMetaIndexFilter(attributeMetaPredicate, binders) : "";
+                    sb.append(attributeMetaIndexFilter);
+
+                    // The index condition is exact if only the item name is restricted
+                    if (attributeMetaIndexFilter.length() > 0 && attributeMetaPredicate.itemValuePredicate == null)
+                        continue;
+
                     String attributeMetaFilter = buildAttributeMetaFilter(attributeMetaPredicate, binders);
 
                     if (attributeMetaFilter.length() > 0) {
@@ -983,6 +1066,13 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
             if (query.attribute != null) {
                 for (AttributePredicate attributePredicate : query.attribute) {
+                    String attributeIndexFilter = indexed ? buildAttributeIndexFilter(attributePredicate, binders) : "";
+                    sb.append(attributeIndexFilter);
+
+                    // The index condition is exact if only the attribute name is restricted
+                    if (attributeIndexFilter.length() > 0 && attributePredicate.value == null)
+                        continue;
+
                     StringBuilder attributeFilterBuilder = new StringBuilder();
                     attributeFilterBuilder.append(buildAttributeFilter(attributePredicate, binders));
 
@@ -999,6 +1089,65 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         return sb.toString();
     }
 
+    /**
+     * Builds a condition on the indexed ATTRIBUTE_NAMES column, which must be satisfied by all assets matching the
+     * predicate. Only exact, case sensitive name predicates can use the index.
+     *
+     * @return The condition or an empty string if the index can't be used.
+     */
+    protected String buildAttributeIndexFilter(AttributePredicate attributePredicate, List<ParameterBinder> binders) {
+        if (attributePredicate.name == null
+            || attributePredicate.name.match != Match.EXACT
+            || !attributePredicate.name.caseSensitive) {
+            return "";
+        }
+        final int pos = binders.size() + 1;
+        binders.add(st -> st.setString(pos, attributePredicate.name.prepareValue()));
+        return " and A.ATTRIBUTE_NAMES @> array[?::text]";
+    }
+
+    /**
+     * Builds a containment condition on the indexed META_ITEMS column, which must be satisfied by all assets
+     * matching the predicate. Only exact, case sensitive item name predicates can use the index, the item value
+     * is included if it is a boolean or an array of exact, case sensitive strings (e.g. {@link AssetMeta#AGENT_LINK}).
+     *
+     * @return The condition or an empty string if the index can't be used.
+     */
+    protected String buildAttributeMetaIndexFilter(AttributeMetaPredicate attributeMetaPredicate, List<ParameterBinder> binders) {
+        StringPredicate namePredicate = attributeMetaPredicate.itemNamePredicate;
+        if (namePredicate == null || namePredicate.match != Match.EXACT || !namePredicate.caseSensitive) {
+            return "";
+        }
+
+        StringBuilder sb = new StringBuilder(" and A.META_ITEMS @> jsonb_build_array(jsonb_build_object('name', ?::text");
+        final int pos = binders.size() + 1;
+        binders.add(st -> st.setString(pos, namePredicate.prepareValue()));
+
+        if (attributeMetaPredicate.itemValuePredicate instanceof BooleanPredicate) {
+            sb.append(", 'value', to_jsonb(")
+                .append(((BooleanPredicate) attributeMetaPredicate.itemValuePredicate).value)
+                .append(")");
+        } else if (attributeMetaPredicate.itemValuePredicate instanceof StringArrayPredicate) {
+            StringPredicate[] predicates = ((StringArrayPredicate) attributeMetaPredicate.itemValuePredicate).predicates;
+            boolean exact = predicates.length > 0;
+            for (StringPredicate predicate : predicates) {
+                exact &= predicate.match == Match.EXACT && predicate.caseSensitive;
+            }
+            if (exact) {
+                sb.append(", 'value', jsonb_build_array(");
+                for (int i = 0; i < predicates.length; i++) {
+                    sb.append(i > 0 ? ", ?::text" : "?::text");
+                    final int valuePos = binders.size() + 1;
+                    final StringPredicate predicate = predicates[i];
+                    binders.add(st -> st.setString(valuePos, predicate.prepareValue()));
+                }
+                sb.append(")");
+            }
+        }
+        sb.append("))");
+        return sb.toString();
+    }
+
     protected String buildAttributeMetaFilter(AttributeMetaPredicate attributeMetaPredicate, List<ParameterBinder> binders) {
         StringBuilder attributeMetaBuilder = new StringBuilder();
 
@@ -1291,48 +1440,17 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         }
     }
 
+    protected static final String STORE_ATTRIBUTE_VALUE_UPDATE =
+        "update ASSET" +
+            " set ATTRIBUTES = jsonb_set(jsonb_set(ATTRIBUTES, ?, ?, true), ?, ?, true)" +
+            " where ID = ? and ATTRIBUTES -> ? is not null";
+
     public boolean storeAttributeValue(EntityManager em, String assetId, String attributeName, Value value, String timestamp) {
         return em.unwrap(Session.class).doReturningWork(connection -> {
-            String update =
-                "update ASSET" +
-                    " set ATTRIBUTES = jsonb_set(jsonb_set(ATTRIBUTES, ?, ?, true), ?, ?, true)" +
-                    " where ID = ? and ATTRIBUTES -> ? is not null";
-            try (PreparedStatement statement = connection.prepareStatement(update)) {
-
-                // Bind the value (and check we don't have a SQL injection hole in attribute name!)
-                if (!AssetAttribute.ATTRIBUTE_NAME_VALIDATOR.test(attributeName)) {
-                    LOG.fine(
-                        "Invalid attribute name (must match '" + AssetAttribute.ATTRIBUTE_NAME_PATTERN + "'): " + attributeName
-                            );
-                    return false;
-                }
+            try (PreparedStatement statement = connection.prepareStatement(STORE_ATTRIBUTE_VALUE_UPDATE)) {
 
-                Array attributeValuePath = connection.createArrayOf(
-                    "text",
-                    new String[]{attributeName, "value"}
-                                                                   );
-                statement.setArray(1, attributeValuePath);
-
-                PGobject pgJsonValue = new PGobject();
-                pgJsonValue.setType("jsonb");
-                // Careful, do not set Java null (as returned by value.toJson()) here! It will erase your whole SQL column!
-                pgJsonValue.setValue(value == null ? "null" : value.toJson());
-                statement.setObject(2, pgJsonValue);
-
-                // Bind the value timestamp
-                Array attributeValueTimestampPath = connection.createArrayOf(
-                    "text",
-                    new String[]{attributeName, "valueTimestamp"}
-                                                                            );
-                statement.setArray(3, attributeValueTimestampPath);
-                PGobject pgJsonValueTimestamp = new PGobject();
-                pgJsonValueTimestamp.setType("jsonb");
-                pgJsonValueTimestamp.setValue(timestamp);
-                statement.setObject(4, pgJsonValueTimestamp);
-
-                // Bind asset ID and attribute name
-                statement.setString(5, assetId);
-                statement.setString(6, attributeName);
+                if (!bindAttributeValue(connection, statement, assetId, attributeName, value, timestamp))
+                    return false;
 
                 int updatedRows = statement.executeUpdate();
                 LOG.fine("Stored asset '" + assetId
@@ -1344,6 +1462,96 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         });
     }
 
+    /**
+     * Stores the values of several attributes with a single JDBC batch, the value timestamp of each
+     * {@link AttributeEvent} must be set.
+     *
+     * @return The references of attributes that could not be stored, because the asset or attribute doesn't exist
+     * or the attribute name is invalid.
+     */
+    public List<AttributeRef> storeAttributeValues(EntityManager em, Collection<AttributeEvent> attributeEvents) {
+        if (attributeEvents.isEmpty())
+            return Collections.emptyList();
+
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            List<AttributeRef> failed = new ArrayList<>();
+            List<AttributeRef> batched = new ArrayList<>(attributeEvents.size());
+            try (PreparedStatement statement = connection.prepareStatement(STORE_ATTRIBUTE_VALUE_UPDATE)) {
+                for (AttributeEvent attributeEvent : attributeEvents) {
+                    AttributeRef attributeRef = attributeEvent.getAttributeRef();
+                    if (bindAttributeValue(
+                        connection,
+                        statement,
+                        attributeRef.getEntityId(),
+                        attributeRef.getAttributeName(),
+                        attributeEvent.getValue().orElse(null),
+                        Long.toString(attributeEvent.getTimestamp()))) {
+                        statement.addBatch();
+                        batched.add(attributeRef);
+                    } else {
+                        failed.add(attributeRef);
+                    }
+                }
+
+                if (batched.isEmpty())
+                    return failed;
+
+                int[] updatedRows = statement.executeBatch();
+                for (int i = 0; i < updatedRows.length; i++) {
+                    // The driver may not report counts of batched statements, only treat a known zero as failure
+                    if (updatedRows[i] == 0) {
+                        failed.add(batched.get(i));
+                    }
+                }
+                LOG.fine("Stored attribute values in batch (statements: " + batched.size() + ", failed: " + failed.size() + ")");
+                return failed;
+            }
+        });
+    }
+
+    protected static boolean bindAttributeValue(Connection connection,
+                                                 PreparedStatement statement,
+                                                 String assetId,
+                                                 String attributeName,
+                                                 Value value,
+                                                 String timestamp) throws SQLException {
+        // Bind the value (and check we don't have a SQL injection hole in attribute name!)
+        if (!AssetAttribute.ATTRIBUTE_NAME_VALIDATOR.test(attributeName)) {
+            LOG.fine(
+                "Invalid attribute name (must match '" + AssetAttribute.ATTRIBUTE_NAME_PATTERN + "'): " + attributeName
+            );
+            return false;
+        }
+
+        Array attributeValuePath = connection.createArrayOf(
+            "text",
+            new String[]{attributeName, "value"}
+        );
+        statement.setArray(1, attributeValuePath);
+
+        PGobject pgJsonValue = new PGobject();
+        pgJsonValue.setType("jsonb");
+        // Careful, do not set Java null (as returned by value.toJson()) here! It will erase your whole SQL column!
+        pgJsonValue.setValue(value == null ? "null" : value.toJson());
+        statement.setObject(2, pgJsonValue);
+
+        // Bind the value timestamp
+        Array attributeValueTimestampPath = connection.createArrayOf(
+            "text",
+            new String[]{attributeName, "valueTimestamp"}
+        );
+        statement.setArray(3, attributeValueTimestampPath);
+        PGobject pgJsonValueTimestamp = new PGobject();
+        pgJsonValueTimestamp.setType("jsonb");
+        pgJsonValueTimestamp.setValue(timestamp);
+        statement.setObject(4, pgJsonValueTimestamp);
+
+        // Bind asset ID and attribute name
+        statement.setString(5, assetId);
+        statement.setString(6, attributeName);
+        return true;
+    }
+
     protected void publishModificationEvents(PersistenceEvent<Asset> persistenceEvent) {
         Asset asset = persistenceEvent.getEntity();
         switch (persistenceEvent.getCause()) {
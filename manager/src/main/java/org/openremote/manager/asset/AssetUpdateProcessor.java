@@ -29,10 +29,15 @@ import javax.persistence.EntityManager;
 /**
  * Process update of an asset attribute (value), from a {@link Source}.
  *
- * Implementations don't have to lock the whole context through {@link GlobalLock}, the
+ * Implementations don't have to lock the whole context through {@link GlobalLock}, by default the
  * caller of this has already obtained the lock. Internal synchronization and thread-safety
  * must still be maintained if shared state of a processor can be modified by concurrent tasks
  * maintained by that processor.
+ * <p>
+ * When partitioned processing is enabled with {@link AssetProcessingService#ASSET_PROCESSING_PARTITIONS}, the
+ * caller does not hold the lock and updates of different assets are processed concurrently, while updates of
+ * the same asset are still processed in order by a single thread. Implementations must then guard any state
+ * shared across assets themselves.
  */
 public interface AssetUpdateProcessor {
 
@@ -2,45 +2,140 @@ package org.openremote.manager.datapoint;
 
 import org.hibernate.Session;
 import org.hibernate.jdbc.AbstractReturningWork;
+import org.hibernate.jdbc.ReturningWork;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
 import org.openremote.container.persistence.PersistenceService;
 import org.openremote.container.timer.TimerService;
 import org.openremote.container.web.WebService;
 import org.openremote.manager.asset.AssetProcessingException;
+import org.openremote.manager.asset.AssetProcessingService;
 import org.openremote.manager.asset.AssetStorageService;
 import org.openremote.manager.asset.AssetUpdateProcessor;
+import org.openremote.manager.concurrent.ManagerExecutorService;
 import org.openremote.manager.security.ManagerIdentityService;
 import org.openremote.model.asset.Asset;
 import org.openremote.model.asset.AssetAttribute;
+import org.openremote.model.asset.AssetMeta;
 import org.openremote.model.attribute.AttributeEvent.Source;
 import org.openremote.model.attribute.AttributeRef;
 import org.openremote.model.datapoint.AssetDatapoint;
 import org.openremote.model.datapoint.Datapoint;
 import org.openremote.model.datapoint.DatapointInterval;
 import org.openremote.model.datapoint.NumberDatapoint;
+import org.openremote.model.value.ValueType;
 import org.postgresql.util.PGInterval;
 
 import javax.persistence.EntityManager;
 import java.sql.*;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static org.openremote.container.util.MapAccess.getInteger;
+import static org.openremote.container.util.MapAccess.getString;
+
 /**
  * Store and retrieve datapoints for asset attributes.
+ * <p>
+ * Number and boolean datapoints are periodically aggregated into daily rollups (minimum,
+ * maximum, sum and count), which are used to aggregate datapoints for {@link DatapointInterval#WEEK},
+ * {@link DatapointInterval#MONTH} and {@link DatapointInterval#YEAR}. Outdated datapoints are deleted
+ * according to {@link #DATAPOINTS_MAX_AGE_DAYS} and {@link AssetMeta#DATA_POINTS_MAX_AGE_DAYS}.
+ * <p>
+ * By default datapoints are stored in the transaction of the asset update, see {@link #DATAPOINTS_WRITE_MODE}
+ * to move datapoint storage off the asset processing path.
  */
 public class AssetDatapointService implements ContainerService, AssetUpdateProcessor {
 
     private static final Logger LOG = Logger.getLogger(AssetDatapointService.class.getName());
 
+    /**
+     * Default maximum age in days of stored datapoints, can be overridden for each attribute with {@link
+     * AssetMeta#DATA_POINTS_MAX_AGE_DAYS}. Zero keeps datapoints forever.
+     */
+    public static final String DATAPOINTS_MAX_AGE_DAYS = "DATAPOINTS_MAX_AGE_DAYS";
+    public static final int DATAPOINTS_MAX_AGE_DAYS_DEFAULT = 0;
+
+    /**
+     * Interval of updating rollups and deleting outdated datapoints. If set to zero, no rollups are maintained
+     * and all intervals are aggregated from raw datapoints.
+     */
+    public static final String DATAPOINTS_MAINTENANCE_INTERVAL_SECONDS = "DATAPOINTS_MAINTENANCE_INTERVAL_SECONDS";
+    public static final int DATAPOINTS_MAINTENANCE_INTERVAL_SECONDS_DEFAULT = 300;
+
+    /**
+     * How datapoints are written, see {@link WriteMode}.
+     */
+    public static final String DATAPOINTS_WRITE_MODE = "DATAPOINTS_WRITE_MODE";
+    public static final String DATAPOINTS_WRITE_MODE_DEFAULT = WriteMode.SYNC.name();
+    public static final String DATAPOINTS_WRITE_QUEUE_SIZE = "DATAPOINTS_WRITE_QUEUE_SIZE";
+    public static final int DATAPOINTS_WRITE_QUEUE_SIZE_DEFAULT = 10000;
+    public static final String DATAPOINTS_WRITE_BATCH_SIZE = "DATAPOINTS_WRITE_BATCH_SIZE";
+    public static final int DATAPOINTS_WRITE_BATCH_SIZE_DEFAULT = 500;
+
+    public enum WriteMode {
+        /**
+         * Datapoints are stored in the transaction of the asset update.
+         */
+        SYNC,
+        /**
+         * Datapoints are queued after the asset update was committed and stored in batches by a background
+         * writer, queued datapoints are discarded on shutdown.
+         */
+        ASYNC,
+        /**
+         * As {@link #ASYNC}, but all queued datapoints are stored on shutdown.
+         */
+        ASYNC_FLUSH_ON_SHUTDOWN
+    }
+
+    /**
+     * Resolution of rollups in table <code>ASSET_DATAPOINT_ROLLUP</code>, also the <code>date_trunc()</code> field.
+     */
+    public static final String ROLLUP_DAY = "DAY";
+
+    protected static final long ROLLUP_CHUNK_MILLIS = TimeUnit.DAYS.toMillis(7);
+    protected static final int ROLLUP_MAX_CHUNKS = 30;
+    protected static final int DELETE_CHUNK_SIZE = 10000;
+
     protected PersistenceService persistenceService;
+    protected TimerService timerService;
+    protected ManagerExecutorService executorService;
+    protected AssetProcessingService assetProcessingService;
+    protected int maxAgeDays;
+    protected int maintenanceIntervalSeconds;
+    protected boolean rollupEnabled;
+    protected ScheduledFuture maintenanceFuture;
+    protected WriteMode writeMode;
+    protected AssetDatapointWriter writer;
 
     @Override
     public void init(Container container) throws Exception {
         persistenceService = container.getService(PersistenceService.class);
+        timerService = container.getService(TimerService.class);
+        executorService = container.getService(ManagerExecutorService.class);
+        assetProcessingService = container.getService(AssetProcessingService.class);
+
+        maxAgeDays = getInteger(container.getConfig(), DATAPOINTS_MAX_AGE_DAYS, DATAPOINTS_MAX_AGE_DAYS_DEFAULT);
+        maintenanceIntervalSeconds = getInteger(
+            container.getConfig(), DATAPOINTS_MAINTENANCE_INTERVAL_SECONDS, DATAPOINTS_MAINTENANCE_INTERVAL_SECONDS_DEFAULT
+        );
+        rollupEnabled = maintenanceIntervalSeconds > 0;
+
+        writeMode = WriteMode.valueOf(getString(container.getConfig(), DATAPOINTS_WRITE_MODE, DATAPOINTS_WRITE_MODE_DEFAULT));
+        if (writeMode != WriteMode.SYNC) {
+            LOG.info("Writing datapoints asynchronously, mode: " + writeMode);
+            writer = new AssetDatapointWriter(
+                persistenceService,
+                getInteger(container.getConfig(), DATAPOINTS_WRITE_QUEUE_SIZE, DATAPOINTS_WRITE_QUEUE_SIZE_DEFAULT),
+                getInteger(container.getConfig(), DATAPOINTS_WRITE_BATCH_SIZE, DATAPOINTS_WRITE_BATCH_SIZE_DEFAULT)
+            );
+        }
 
         container.getService(WebService.class).getApiSingletons().add(
             new AssetDatapointResourceImpl(
@@ -55,10 +150,27 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
 
     @Override
     public void start(Container container) throws Exception {
+        if (writer != null) {
+            writer.start();
+        }
+        if (maintenanceIntervalSeconds > 0) {
+            maintenanceFuture = executorService.scheduleWithFixedDelay(
+                this::maintainDatapoints, maintenanceIntervalSeconds * 1000L, maintenanceIntervalSeconds * 1000L
+            );
+        } else if (maxAgeDays > 0) {
+            LOG.warning("Datapoint maintenance is disabled, outdated datapoints will not be deleted");
+        }
     }
 
     @Override
     public void stop(Container container) throws Exception {
+        if (maintenanceFuture != null) {
+            maintenanceFuture.cancel(true);
+            maintenanceFuture = null;
+        }
+        if (writer != null) {
+            writer.stop(writeMode == WriteMode.ASYNC_FLUSH_ON_SHUTDOWN);
+        }
     }
 
     @Override
@@ -72,11 +184,23 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
             && attribute.getStateEvent().get().getValue().isPresent()) { // Don't store datapoints with null value
             LOG.finest("Storing datapoint for: " + attribute);
             AssetDatapoint assetDatapoint = new AssetDatapoint(attribute.getStateEvent().get());
-            em.persist(assetDatapoint);
+            if (writer != null) {
+                // Only queue the datapoint if the asset update is committed
+                assetProcessingService.afterEventCommit(em, () -> writer.write(assetDatapoint));
+            } else {
+                em.persist(assetDatapoint);
+            }
         }
         return false;
     }
 
+    /**
+     * @return The asynchronous writer with queue and flush statistics, or <code>null</code> in {@link WriteMode#SYNC}.
+     */
+    public AssetDatapointWriter getWriter() {
+        return writer;
+    }
+
     public List<AssetDatapoint> getDatapoints(AttributeRef attributeRef) {
         return persistenceService.doReturningTransaction(entityManager -> entityManager.createQuery(
             "select dp from AssetDatapoint dp " +
@@ -105,6 +229,8 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                     String step;
                     String interval;
                     Function<Timestamp, String> labelFunction;
+                    // Long intervals are aggregated from daily rollups instead of raw datapoints
+                    boolean useRollups;
 
                     SimpleDateFormat dayFormat = new SimpleDateFormat("dd. MMM yyyy");
                     SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm");
@@ -114,30 +240,35 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                             step = "1 minute";
                             interval = "1 hour";
                             labelFunction = timeFormat::format;
+                            useRollups = false;
                             break;
                         case DAY:
                             truncateX = "hour";
                             step = "1 hour";
                             interval = "1 day";
                             labelFunction = timeFormat::format;
+                            useRollups = false;
                             break;
                         case WEEK:
                             truncateX = "day";
                             step = "1 day";
                             interval = "7 day";
                             labelFunction = dayFormat::format;
+                            useRollups = rollupEnabled;
                             break;
                         case MONTH:
                             truncateX = "day";
                             step = "1 day";
                             interval = "1 month";
                             labelFunction = dayFormat::format;
+                            useRollups = rollupEnabled;
                             break;
                         case YEAR:
                             truncateX = "month";
                             step = "1 month";
                             interval = "1 year";
                             labelFunction = dayFormat::format;
+                            useRollups = rollupEnabled;
                             break;
                         default:
                             throw new IllegalArgumentException("Can't handle interval: " + datapointInterval);
@@ -151,26 +282,42 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                         "       from generate_series(to_timestamp(?) - ?, to_timestamp(?), ?) GS " +
                         "       ) TS " +
                         "  left join ( " +
-                        "       select " +
-                        "           date_trunc(?, to_timestamp(TIMESTAMP / 1000))::timestamp as TS, ");
+                        "       select ");
 
                     switch (attribute.getTypeOrThrow().getValueType()) {
                         case NUMBER:
-                            query.append(" AVG(VALUE::text::numeric) as AVG_VALUE ");
-                            break;
                         case BOOLEAN:
-                            query.append(" AVG(case when VALUE::text::boolean is true then 1 else 0 end) as AVG_VALUE ");
                             break;
                         default:
                             throw new IllegalArgumentException("Can't aggregate number datapoints for type of: " + attribute);
                     }
 
-                    query.append(" from ASSET_DATAPOINT " +
-                        "         where " +
-                        "           to_timestamp(TIMESTAMP / 1000) >= to_timestamp(?) - ? " +
-                        "           and " +
-                        "           to_timestamp(TIMESTAMP / 1000) <= to_timestamp(?) " +
-                        "           and " +
+                    if (useRollups) {
+                        query.append(" date_trunc(?, to_timestamp(BUCKET / 1000))::timestamp as TS, " +
+                            " SUM(SUM_VALUE) / SUM(COUNT_VALUE) as AVG_VALUE " +
+                            " from ASSET_DATAPOINT_ROLLUP " +
+                            "         where " +
+                            "           RESOLUTION = '" + ROLLUP_DAY + "' " +
+                            "           and " +
+                            "           BUCKET >= (extract(epoch from date_trunc('day', to_timestamp(?) - ?)) * 1000)::int8 " +
+                            "           and " +
+                            "           BUCKET <= ? ");
+                    } else {
+                        query.append(" date_trunc(?, to_timestamp(TIMESTAMP / 1000))::timestamp as TS, ");
+                        if (attribute.getTypeOrThrow().getValueType() == ValueType.NUMBER) {
+                            query.append(" AVG(VALUE::text::numeric) as AVG_VALUE ");
+                        } else {
+                            query.append(" AVG(case when VALUE::text::boolean is true then 1 else 0 end) as AVG_VALUE ");
+                        }
+                        // Compare the raw timestamp column so the index can be used
+                        query.append(" from ASSET_DATAPOINT " +
+                            "         where " +
+                            "           TIMESTAMP >= (extract(epoch from to_timestamp(?) - ?) * 1000)::int8 " +
+                            "           and " +
+                            "           TIMESTAMP <= ? ");
+                    }
+
+                    query.append("           and " +
                         "           ENTITY_ID = ? and ATTRIBUTE_NAME = ? " +
                         "         group by TS " +
                         "  ) DP using (TS) " +
@@ -188,7 +335,7 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                         st.setString(6, truncateX);
                         st.setLong(7, timestampSeconds);
                         st.setObject(8, new PGInterval(interval));
-                        st.setLong(9, timestampSeconds);
+                        st.setLong(9, timestamp);
                         st.setString(10, attributeRef.getEntityId());
                         st.setString(11, attributeRef.getAttributeName());
 
@@ -207,6 +354,202 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
         );
     }
 
+    /**
+     * Updates rollups and deletes outdated datapoints, called periodically.
+     */
+    protected void maintainDatapoints() {
+        // Not ready on startup
+        if (persistenceService.getEntityManagerFactory() == null)
+            return;
+        try {
+            long now = timerService.getCurrentTimeMillis();
+            if (rollupEnabled) {
+                updateRollups(ROLLUP_DAY, now);
+            }
+            deleteOutdatedDatapoints(now);
+        } catch (Exception ex) {
+            LOG.log(Level.WARNING, "Error maintaining datapoints", ex);
+        }
+    }
+
+    /**
+     * Aggregates datapoints into buckets of the given resolution, starting with the most recent existing bucket.
+     * This bucket might have been incomplete when it was last aggregated, so it's replaced. Datapoints inserted
+     * with a timestamp before the most recent bucket are not aggregated. Each chunk of datapoints is aggregated
+     * in its own transaction, the number of chunks per call is limited so a large backlog (e.g. after upgrading
+     * an existing database) is processed over several calls.
+     */
+    protected void updateRollups(String resolution, long now) {
+        String truncate = resolution.toLowerCase(Locale.ROOT);
+        Long from = doReturningWork(connection -> getRollupWatermark(connection, resolution));
+
+        for (int i = 0; i < ROLLUP_MAX_CHUNKS; i++) {
+            final long chunkFrom = from != null ? from : 0L;
+            // Skip gaps without datapoints
+            Long next = doReturningWork(connection -> {
+                try (PreparedStatement st = connection.prepareStatement(
+                    "select (extract(epoch from date_trunc(?, to_timestamp(min(TIMESTAMP) / 1000))) * 1000)::int8 " +
+                        "from ASSET_DATAPOINT where TIMESTAMP >= ?"
+                )) {
+                    st.setString(1, truncate);
+                    st.setLong(2, chunkFrom);
+                    try (ResultSet rs = st.executeQuery()) {
+                        return rs.next() && rs.getObject(1) != null ? rs.getLong(1) : null;
+                    }
+                }
+            });
+            if (next == null)
+                return;
+            long start = Math.max(chunkFrom, next);
+            if (start > now)
+                return;
+            long end = start + ROLLUP_CHUNK_MILLIS;
+
+            int rows = doReturningWork(connection -> {
+                try (PreparedStatement st = connection.prepareStatement(
+                    "insert into ASSET_DATAPOINT_ROLLUP " +
+                        "(ENTITY_ID, ATTRIBUTE_NAME, RESOLUTION, BUCKET, MIN_VALUE, MAX_VALUE, SUM_VALUE, COUNT_VALUE) " +
+                        "select ENTITY_ID, ATTRIBUTE_NAME, ?, BUCKET, " +
+                        "min(NUMBER_VALUE), max(NUMBER_VALUE), sum(NUMBER_VALUE), count(NUMBER_VALUE) " +
+                        "from (" +
+                        "  select ENTITY_ID, ATTRIBUTE_NAME, " +
+                        "  (extract(epoch from date_trunc(?, to_timestamp(TIMESTAMP / 1000))) * 1000)::int8 as BUCKET, " +
+                        "  case jsonb_typeof(VALUE) " +
+                        "    when 'number' then VALUE::text::float8 " +
+                        "    else case when VALUE::text::boolean is true then 1 else 0 end " +
+                        "  end as NUMBER_VALUE " +
+                        "  from ASSET_DATAPOINT " +
+                        "  where TIMESTAMP >= ? and TIMESTAMP < ? " +
+                        "  and jsonb_typeof(VALUE) in ('number', 'boolean')" +
+                        ") DP " +
+                        "group by ENTITY_ID, ATTRIBUTE_NAME, BUCKET " +
+                        "on conflict (ENTITY_ID, ATTRIBUTE_NAME, RESOLUTION, BUCKET) do update set " +
+                        "MIN_VALUE = excluded.MIN_VALUE, MAX_VALUE = excluded.MAX_VALUE, " +
+                        "SUM_VALUE = excluded.SUM_VALUE, COUNT_VALUE = excluded.COUNT_VALUE"
+                )) {
+                    st.setString(1, resolution);
+                    st.setString(2, truncate);
+                    st.setLong(3, start);
+                    st.setLong(4, end);
+                    return st.executeUpdate();
+                }
+            });
+            LOG.finest("Updated " + rows + " datapoint rollups of resolution '" + resolution + "' starting at: " + start);
+
+            if (end > now)
+                return;
+            from = end;
+        }
+    }
+
+    /**
+     * @return The start of the most recent rollup bucket of the given resolution, or <code>null</code> if there are no rollups.
+     */
+    protected Long getRollupWatermark(Connection connection, String resolution) throws SQLException {
+        try (PreparedStatement st = connection.prepareStatement(
+            "select max(BUCKET) from ASSET_DATAPOINT_ROLLUP where RESOLUTION = ?"
+        )) {
+            st.setString(1, resolution);
+            try (ResultSet rs = st.executeQuery()) {
+                return rs.next() && rs.getObject(1) != null ? rs.getLong(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Deletes datapoints older than the {@link #DATAPOINTS_MAX_AGE_DAYS} default or the {@link
+     * AssetMeta#DATA_POINTS_MAX_AGE_DAYS} of their attribute. Datapoints are deleted in chunks, each in its
+     * own transaction. If rollups are enabled, datapoints which have not been aggregated yet are not deleted.
+     */
+    protected void deleteOutdatedDatapoints(long now) {
+        Map<AttributeRef, Integer> attributeMaxAgeDays = doReturningWork(connection -> {
+            Map<AttributeRef, Integer> result = new HashMap<>();
+            try (PreparedStatement st = connection.prepareStatement(
+                "select A.ID, AX.key, AM.value #>> '{value}' " +
+                    "from ASSET A, jsonb_each(A.ATTRIBUTES) as AX, jsonb_array_elements(AX.VALUE #> '{meta}') as AM " +
+                    "where A.META_ITEMS @> jsonb_build_array(jsonb_build_object('name', ?::text)) " +
+                    "and AM.value #>> '{name}' = ?"
+            )) {
+                st.setString(1, AssetMeta.DATA_POINTS_MAX_AGE_DAYS.getUrn());
+                st.setString(2, AssetMeta.DATA_POINTS_MAX_AGE_DAYS.getUrn());
+                try (ResultSet rs = st.executeQuery()) {
+                    while (rs.next()) {
+                        try {
+                            result.put(new AttributeRef(rs.getString(1), rs.getString(2)), (int) Double.parseDouble(rs.getString(3)));
+                        } catch (RuntimeException ex) {
+                            LOG.fine("Ignoring invalid " + AssetMeta.DATA_POINTS_MAX_AGE_DAYS + " of attribute '" + rs.getString(2) + "' of asset: " + rs.getString(1));
+                        }
+                    }
+                }
+            }
+            return result;
+        });
+
+        if (attributeMaxAgeDays.isEmpty() && maxAgeDays <= 0)
+            return;
+
+        long maxTimestamp = now;
+        if (rollupEnabled) {
+            Long watermark = doReturningWork(connection -> getRollupWatermark(connection, ROLLUP_DAY));
+            if (watermark == null)
+                return;
+            maxTimestamp = watermark;
+        }
+
+        for (Map.Entry<AttributeRef, Integer> entry : attributeMaxAgeDays.entrySet()) {
+            long before = Math.min(maxTimestamp, now - TimeUnit.DAYS.toMillis(entry.getValue()));
+            AttributeRef attributeRef = entry.getKey();
+            deleteInChunks(
+                "ENTITY_ID = ? and ATTRIBUTE_NAME = ? and TIMESTAMP < ?",
+                attributeRef.getEntityId(), attributeRef.getAttributeName(), before
+            );
+        }
+
+        if (maxAgeDays > 0) {
+            long before = Math.min(maxTimestamp, now - TimeUnit.DAYS.toMillis(maxAgeDays));
+            if (attributeMaxAgeDays.isEmpty()) {
+                deleteInChunks("TIMESTAMP < ?", before);
+            } else {
+                // Exclude attributes with their own maximum age
+                String[] excluded = attributeMaxAgeDays.keySet().stream()
+                    .map(attributeRef -> attributeRef.getEntityId() + ":" + attributeRef.getAttributeName())
+                    .toArray(String[]::new);
+                deleteInChunks("TIMESTAMP < ? and not (ENTITY_ID || ':' || ATTRIBUTE_NAME) = any(?)", before, excluded);
+            }
+        }
+    }
+
+    protected void deleteInChunks(String condition, Object... parameters) {
+        int deleted;
+        long total = 0;
+        do {
+            deleted = doReturningWork(connection -> {
+                try (PreparedStatement st = connection.prepareStatement(
+                    "delete from ASSET_DATAPOINT where ctid in (" +
+                        "select ctid from ASSET_DATAPOINT where " + condition + " limit " + DELETE_CHUNK_SIZE +
+                        ")"
+                )) {
+                    for (int i = 0; i < parameters.length; i++) {
+                        if (parameters[i] instanceof String[]) {
+                            st.setArray(i + 1, connection.createArrayOf("text", (String[]) parameters[i]));
+                        } else {
+                            st.setObject(i + 1, parameters[i]);
+                        }
+                    }
+                    return st.executeUpdate();
+                }
+            });
+            total += deleted;
+        } while (deleted >= DELETE_CHUNK_SIZE);
+        if (total > 0) {
+            LOG.fine("Deleted outdated datapoints where '" + condition + "': " + total);
+        }
+    }
+
+    protected <R> R doReturningWork(ReturningWork<R> work) {
+        return persistenceService.doReturningTransaction(em -> em.unwrap(Session.class).doReturningWork(work));
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "{" +
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.datapoint;
+
+import org.hibernate.Session;
+import org.openremote.container.concurrent.ContainerThreadFactory;
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.model.datapoint.AssetDatapoint;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes {@link AssetDatapoint}s on a background thread, in batches with multi-row inserts.
+ * <p>
+ * Datapoints are queued in a bounded buffer, when it is full the calling thread blocks until the writer
+ * thread made space. Datapoints of assets which have been deleted in the meantime and duplicate datapoints
+ * are ignored. If a batch can't be written, its datapoints are lost.
+ */
+public class AssetDatapointWriter {
+
+    private static final Logger LOG = Logger.getLogger(AssetDatapointWriter.class.getName());
+
+    protected final PersistenceService persistenceService;
+    protected final BlockingQueue<AssetDatapoint> queue;
+    protected final int batchSize;
+    protected final AtomicLong flushCount = new AtomicLong();
+    protected final AtomicLong flushNanosTotal = new AtomicLong();
+    protected final AtomicLong writtenCount = new AtomicLong();
+    protected final AtomicLong failedCount = new AtomicLong();
+    protected volatile long lastFlushNanos;
+    protected volatile boolean running;
+    protected Thread writerThread;
+
+    public AssetDatapointWriter(PersistenceService persistenceService, int queueSize, int batchSize) {
+        this.persistenceService = persistenceService;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        writerThread = new ContainerThreadFactory("Datapoint writer").newThread(this::writeQueued);
+        writerThread.start();
+    }
+
+    /**
+     * Stops the writer thread after the current batch was written.
+     *
+     * @param flush If the remaining queued datapoints should be written before returning, otherwise they are discarded.
+     */
+    public synchronized void stop(boolean flush) {
+        if (!running)
+            return;
+        running = false;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+
+        List<AssetDatapoint> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (flush) {
+            for (int i = 0; i < remaining.size(); i += batchSize) {
+                flush(remaining.subList(i, Math.min(remaining.size(), i + batchSize)));
+            }
+        } else if (!remaining.isEmpty()) {
+            LOG.warning("Discarding queued datapoints on shutdown: " + remaining.size());
+        }
+        LOG.info("Stopped " + this);
+    }
+
+    /**
+     * Queues the datapoint, blocks while the queue is full.
+     */
+    public void write(AssetDatapoint datapoint) {
+        try {
+            queue.put(datapoint);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failedCount.incrementAndGet();
+            LOG.warning("Interrupted while queueing datapoint, discarding: " + datapoint);
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getLastFlushMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastFlushNanos);
+    }
+
+    public double getAverageFlushMillis() {
+        long count = flushCount.get();
+        return count > 0 ? flushNanosTotal.get() / (double) count / 1000000d : 0;
+    }
+
+    protected void writeQueued() {
+        List<AssetDatapoint> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                AssetDatapoint first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                flush(batch);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception ex) {
+                LOG.log(Level.WARNING, "Error writing datapoints", ex);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    protected void flush(List<AssetDatapoint> batch) {
+        if (batch.isEmpty())
+            return;
+        long start = System.nanoTime();
+        try {
+            persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+                StringBuilder sql = new StringBuilder(
+                    "insert into ASSET_DATAPOINT (TIMESTAMP, ENTITY_ID, ATTRIBUTE_NAME, VALUE) " +
+                        "select DP.TIMESTAMP, DP.ENTITY_ID, DP.ATTRIBUTE_NAME, DP.VALUE from (values "
+                );
+                for (int i = 0; i < batch.size(); i++) {
+                    sql.append(i > 0 ? ", " : "").append("(?::int8, ?, ?, ?::jsonb)");
+                }
+                sql.append(") DP (TIMESTAMP, ENTITY_ID, ATTRIBUTE_NAME, VALUE) " +
+                    "where exists (select 1 from ASSET A where A.ID = DP.ENTITY_ID) " +
+                    "on conflict do nothing");
+
+                try (PreparedStatement st = connection.prepareStatement(sql.toString())) {
+                    int index = 1;
+                    for (AssetDatapoint datapoint : batch) {
+                        st.setLong(index++, datapoint.getTimestamp());
+                        st.setString(index++, datapoint.getEntityId());
+                        st.setString(index++, datapoint.getAttributeName());
+                        st.setString(index++, datapoint.getValue().toJson());
+                    }
+                    st.executeUpdate();
+                }
+            }));
+            writtenCount.addAndGet(batch.size());
+        } catch (Exception ex) {
+            failedCount.addAndGet(batch.size());
+            LOG.log(Level.WARNING, "Error writing batch of datapoints, discarding: " + batch.size(), ex);
+        } finally {
+            long nanos = System.nanoTime() - start;
+            lastFlushNanos = nanos;
+            flushNanosTotal.addAndGet(nanos);
+            flushCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "queueSize=" + getQueueSize() +
+            ", written=" + getWrittenCount() +
+            ", failed=" + getFailedCount() +
+            ", flushes=" + getFlushCount() +
+            ", averageFlushMillis=" + getAverageFlushMillis() +
+            '}';
+    }
+}
@@ -120,7 +120,8 @@ public class ClientEventService implements ContainerService {
 
         eventSubscriptions = new EventSubscriptions(
             container.getService(TimerService.class),
-            container.getService(ManagerExecutorService.class)
+            container.getService(ManagerExecutorService.class),
+            this::sendToSession
         );
 
         MessageBrokerSetupService messageBrokerSetupService = container.getService(MessageBrokerSetupService.class);
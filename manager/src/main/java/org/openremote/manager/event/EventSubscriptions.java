@@ -21,57 +21,101 @@ package org.openremote.manager.event;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Message;
+import org.apache.camel.NoTypeConversionAvailableException;
 import org.apache.camel.impl.DefaultMessage;
 import org.openremote.container.timer.TimerService;
 import org.openremote.container.web.socket.WebsocketConstants;
 import org.openremote.manager.concurrent.ManagerExecutorService;
+import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.attribute.AttributeRef;
 import org.openremote.model.event.shared.CancelEventSubscription;
 import org.openremote.model.event.shared.EventSubscription;
 import org.openremote.model.event.shared.SharedEvent;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.openremote.manager.event.ClientEventService.HEADER_ACCESS_RESTRICTED;
 
 /**
  * Manages subscriptions to events for WebSocket sessions.
+ * <p>
+ * Subscriptions are indexed by event type and, if they have an {@link AttributeEvent.EntityIdFilter}, by asset
+ * identifier. Publishing an event only evaluates the subscriptions which can match, without locking. Changes of
+ * subscriptions are serialized, the index is always updated after the subscription of a session.
+ * <p>
+ * If a subscription has {@link EventSubscription#getThrottleMillis}, {@link AttributeEvent}s are delivered to
+ * the session at most once per interval and attribute, the latest event is delivered at the end of the interval.
+ * Renewing a subscription continues its throttle intervals. The throttle state of an attribute is discarded
+ * when its interval has ended, intervals are measured with the {@link TimerService} clock.
  */
 public class EventSubscriptions {
 
     private static final Logger LOG = Logger.getLogger(EventSubscriptions.class.getName());
 
     final protected TimerService timerService;
-    final protected Map<String, SessionSubscriptions> sessionSubscriptions = new HashMap<>();
-
-    class SessionSubscriptions extends HashSet<SessionSubscription> {
-        public void removeExpired() {
-            removeIf(sessionSubscription -> {
-                    boolean expired = sessionSubscription.isExpired();
-                    if (expired) {
-                        LOG.fine("Removing expired; " + sessionSubscription.subscription);
-                    }
-                    return expired;
-                }
-            );
+    final protected ManagerExecutorService executorService;
+    final protected BiConsumer<String, SharedEvent> sessionSender;
+    final protected Map<String, SessionSubscriptions> sessionSubscriptions = new ConcurrentHashMap<>();
+    final protected Map<String, EventTypeSubscriptions> eventTypeSubscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * The subscriptions of a session, there can only be one subscription per event type.
+     */
+    class SessionSubscriptions extends ConcurrentHashMap<String, SessionSubscription> {
+    }
+
+    /**
+     * Index of all subscriptions of an event type.
+     */
+    static class EventTypeSubscriptions {
+        final Set<SessionSubscription> unindexed = ConcurrentHashMap.newKeySet();
+        final Map<String, Set<SessionSubscription>> byEntityId = new ConcurrentHashMap<>();
+
+        void add(SessionSubscription sessionSubscription) {
+            String[] entityIds = sessionSubscription.getIndexedEntityIds();
+            if (entityIds == null) {
+                unindexed.add(sessionSubscription);
+                return;
+            }
+            for (String entityId : entityIds) {
+                byEntityId.computeIfAbsent(entityId, id -> ConcurrentHashMap.newKeySet()).add(sessionSubscription);
+            }
         }
 
-        public void update(boolean restrictedUser, EventSubscription eventSubscription) {
-            cancel(eventSubscription.getEventType());
-            add(new SessionSubscription(restrictedUser, timerService.getCurrentTimeMillis(), eventSubscription));
+        void remove(SessionSubscription sessionSubscription) {
+            String[] entityIds = sessionSubscription.getIndexedEntityIds();
+            if (entityIds == null) {
+                unindexed.remove(sessionSubscription);
+                return;
+            }
+            for (String entityId : entityIds) {
+                byEntityId.computeIfPresent(entityId, (id, subscriptions) -> {
+                    subscriptions.remove(sessionSubscription);
+                    return subscriptions.isEmpty() ? null : subscriptions;
+                });
+            }
         }
 
-        public void cancel(String eventType) {
-            removeIf(sessionSubscription -> sessionSubscription.subscription.getEventType().equals(eventType));
+        boolean isEmpty() {
+            return unindexed.isEmpty() && byEntityId.isEmpty();
         }
     }
 
     class SessionSubscription {
+        final String sessionKey;
         final boolean restrictedUser;
         final long timestamp;
         final EventSubscription subscription;
+        // Guarded by this
+        final Map<AttributeRef, ThrottledAttribute> throttledAttributes = new HashMap<>();
+        volatile boolean cancelled;
 
-        public SessionSubscription(boolean restrictedUser, long timestamp, EventSubscription subscription) {
+        public SessionSubscription(String sessionKey, boolean restrictedUser, long timestamp, EventSubscription subscription) {
+            this.sessionKey = sessionKey;
             this.restrictedUser = restrictedUser;
             this.timestamp = timestamp;
             this.subscription = subscription;
@@ -88,15 +132,155 @@ public class EventSubscriptions {
             return subscription.getInternalConsumer() == null
                 && timestamp + (EventSubscription.RENEWAL_PERIOD_SECONDS * 1000) < timerService.getCurrentTimeMillis();
         }
+
+        boolean isThrottled(SharedEvent event) {
+            return subscription.getThrottleMillis() > 0 && event instanceof AttributeEvent;
+        }
+
+        /**
+         * @return <code>true</code> if the event must not be delivered now, it will be delivered when the
+         * throttle interval of its attribute ends unless a later event replaces it.
+         */
+        boolean throttle(AttributeEvent event) {
+            long now = timerService.getCurrentTimeMillis();
+            AttributeRef attributeRef = event.getAttributeRef();
+            long delay;
+            synchronized (this) {
+                // State was moved to the renewed subscription, deliver what arrives late for this one
+                if (cancelled)
+                    return false;
+                ThrottledAttribute throttled = throttledAttributes.computeIfAbsent(attributeRef, ref -> new ThrottledAttribute());
+                if (throttled.pending == null && now - throttled.lastDelivered >= subscription.getThrottleMillis()) {
+                    throttled.lastDelivered = now;
+                    return false;
+                }
+                boolean scheduled = throttled.pending != null;
+                throttled.pending = event;
+                if (scheduled)
+                    return true;
+                delay = Math.max(0, throttled.lastDelivered + subscription.getThrottleMillis() - now);
+            }
+            executorService.schedule(() -> deliverThrottled(attributeRef), delay);
+            return true;
+        }
+
+        void deliverThrottled(AttributeRef attributeRef) {
+            AttributeEvent event;
+            synchronized (this) {
+                // A renewed subscription takes over the pending event
+                if (cancelled)
+                    return;
+                ThrottledAttribute throttled = throttledAttributes.get(attributeRef);
+                if (throttled == null || throttled.pending == null)
+                    return;
+                event = throttled.pending;
+                throttled.pending = null;
+                throttled.lastDelivered = timerService.getCurrentTimeMillis();
+            }
+            deliver(event);
+        }
+
+        void deliver(AttributeEvent event) {
+            LOG.fine("Delivering throttled event to subscribed session '" + sessionKey + "': " + event);
+            try {
+                sessionSender.accept(sessionKey, event);
+            } catch (Exception ex) {
+                LOG.log(Level.FINE, "Error delivering throttled event to session: " + sessionKey, ex);
+            }
+        }
+
+        /**
+         * Continues the throttle intervals of the replaced subscription, its pending events are delivered when
+         * the intervals end, or immediately if this subscription isn't throttled. Must be called after the
+         * replaced subscription was cancelled and before this subscription is indexed.
+         */
+        void takeOver(SessionSubscription replaced) {
+            Map<AttributeRef, ThrottledAttribute> replacedAttributes;
+            synchronized (replaced) {
+                replacedAttributes = new HashMap<>(replaced.throttledAttributes);
+                replaced.throttledAttributes.clear();
+            }
+            long now = timerService.getCurrentTimeMillis();
+            for (Map.Entry<AttributeRef, ThrottledAttribute> entry : replacedAttributes.entrySet()) {
+                AttributeRef attributeRef = entry.getKey();
+                ThrottledAttribute throttled = entry.getValue();
+                if (throttled.pending != null
+                    && subscription.getFilter() != null && !subscription.getFilter().apply(throttled.pending)) {
+                    throttled.pending = null;
+                }
+                if (throttled.isExpired(now, subscription.getThrottleMillis()))
+                    continue;
+                if (subscription.getThrottleMillis() <= 0) {
+                    if (throttled.pending != null) {
+                        AttributeEvent event = throttled.pending;
+                        executorService.execute(() -> deliver(event));
+                    }
+                    continue;
+                }
+                synchronized (this) {
+                    throttledAttributes.put(attributeRef, throttled);
+                }
+                if (throttled.pending != null) {
+                    long delay = Math.max(0, throttled.lastDelivered + subscription.getThrottleMillis() - now);
+                    executorService.schedule(() -> deliverThrottled(attributeRef), delay);
+                }
+            }
+        }
+
+        /**
+         * Discards the state of attributes without pending event whose throttle interval has ended, the next event
+         * of such an attribute is delivered immediately anyway.
+         */
+        synchronized void pruneThrottledAttributes() {
+            if (throttledAttributes.isEmpty())
+                return;
+            long now = timerService.getCurrentTimeMillis();
+            throttledAttributes.values().removeIf(throttled -> throttled.isExpired(now, subscription.getThrottleMillis()));
+        }
+
+        /**
+         * @return The asset identifiers this subscription can match, or <code>null</code> if it's not restricted to assets.
+         */
+        String[] getIndexedEntityIds() {
+            if (subscription.getFilter() instanceof AttributeEvent.EntityIdFilter) {
+                String[] entityIds = ((AttributeEvent.EntityIdFilter) subscription.getFilter()).getEntityId();
+                return entityIds != null ? entityIds : new String[0];
+            }
+            return null;
+        }
     }
 
-    public EventSubscriptions(TimerService timerService, ManagerExecutorService executorService) {
+    static class ThrottledAttribute {
+        long lastDelivered;
+        AttributeEvent pending;
+
+        boolean isExpired(long now, long throttleMillis) {
+            return pending == null && now - lastDelivered >= throttleMillis;
+        }
+    }
+
+    /**
+     * @param sessionSender Delivers throttled events to a session, outside of the publishing route.
+     */
+    public EventSubscriptions(TimerService timerService,
+                              ManagerExecutorService executorService,
+                              BiConsumer<String, SharedEvent> sessionSender) {
         LOG.info("Starting background task checking for expired event subscriptions from clients");
         this.timerService = timerService;
+        this.executorService = executorService;
+        this.sessionSender = sessionSender;
         executorService.scheduleAtFixedRate(() -> {
             synchronized (this.sessionSubscriptions) {
                 for (SessionSubscriptions subscriptions : sessionSubscriptions.values()) {
-                    subscriptions.removeExpired();
+                    for (SessionSubscription sessionSubscription : subscriptions.values()) {
+                        if (sessionSubscription.isExpired()) {
+                            LOG.fine("Removing expired; " + sessionSubscription.subscription);
+                            subscriptions.remove(sessionSubscription.subscription.getEventType(), sessionSubscription);
+                            removeFromIndex(sessionSubscription);
+                        } else {
+                            sessionSubscription.pruneThrottledAttributes();
+                        }
+                    }
                 }
             }
         }, 5000, 1000);
@@ -108,7 +292,17 @@ public class EventSubscriptions {
             LOG.fine("For session '" + sessionKey + "', updating: " + subscription);
             SessionSubscriptions sessionSubscriptions =
                 this.sessionSubscriptions.computeIfAbsent(sessionKey, k -> new SessionSubscriptions());
-            sessionSubscriptions.update(restrictedUser, subscription);
+            SessionSubscription sessionSubscription =
+                new SessionSubscription(sessionKey, restrictedUser, timerService.getCurrentTimeMillis(), subscription);
+            SessionSubscription replaced = sessionSubscriptions.put(subscription.getEventType(), sessionSubscription);
+            if (replaced != null) {
+                removeFromIndex(replaced);
+                // Renewal must not drop pending events or restart the throttle intervals
+                sessionSubscription.takeOver(replaced);
+            }
+            eventTypeSubscriptions
+                .computeIfAbsent(subscription.getEventType(), eventType -> new EventTypeSubscriptions())
+                .add(sessionSubscription);
         }
     }
 
@@ -118,7 +312,10 @@ public class EventSubscriptions {
                 return;
             LOG.fine("For session '" + sessionKey + "', cancelling: " + subscription);
             SessionSubscriptions sessionSubscriptions = this.sessionSubscriptions.get(sessionKey);
-            sessionSubscriptions.cancel(subscription.getEventType());
+            SessionSubscription cancelled = sessionSubscriptions.remove(subscription.getEventType());
+            if (cancelled != null) {
+                removeFromIndex(cancelled);
+            }
         }
     }
 
@@ -126,11 +323,25 @@ public class EventSubscriptions {
         synchronized (this.sessionSubscriptions) {
             if (this.sessionSubscriptions.containsKey(sessionKey)) {
                 LOG.fine("Cancelling all subscriptions for session: " + sessionKey);
-                this.sessionSubscriptions.remove(sessionKey);
+                SessionSubscriptions sessionSubscriptions = this.sessionSubscriptions.remove(sessionKey);
+                sessionSubscriptions.values().forEach(this::removeFromIndex);
             }
         }
     }
 
+    protected void removeFromIndex(SessionSubscription sessionSubscription) {
+        sessionSubscription.cancelled = true;
+        String eventType = sessionSubscription.subscription.getEventType();
+        eventTypeSubscriptions.computeIfPresent(eventType, (type, subscriptions) -> {
+            subscriptions.remove(sessionSubscription);
+            return subscriptions.isEmpty() ? null : subscriptions;
+        });
+    }
+
+    /**
+     * Creates a message for each session subscribed to the event. The event is serialized only once, all
+     * messages share the same serialized body. Messages only carry the headers required for delivery.
+     */
     @SuppressWarnings("unchecked")
     public <T extends SharedEvent> List<Message> splitForSubscribers(Exchange exchange) {
         List<Message> messageList = new ArrayList<>();
@@ -138,37 +349,61 @@ public class EventSubscriptions {
         if (event == null)
             return messageList;
 
+        EventTypeSubscriptions subscriptions = eventTypeSubscriptions.get(event.getEventType());
+        if (subscriptions == null)
+            return messageList;
+
+        String serializedEvent = null;
+        String coalesceKey = event instanceof AttributeEvent
+            ? event.getEventType() + ":" + ((AttributeEvent) event).getAttributeRef()
+            : null;
+
         boolean accessibleForRestrictedUsers = exchange.getIn().getHeader(HEADER_ACCESS_RESTRICTED, false, Boolean.class);
 
-        Set<Map.Entry<String, SessionSubscriptions>> sessionSubscriptionsSet;
-        synchronized (this.sessionSubscriptions) {
-            sessionSubscriptionsSet = new HashSet<>(sessionSubscriptions.entrySet());
+        Collection<SessionSubscription> candidates = subscriptions.unindexed;
+        if (event instanceof AttributeEvent && !subscriptions.byEntityId.isEmpty()) {
+            Set<SessionSubscription> entitySubscriptions =
+                subscriptions.byEntityId.get(((AttributeEvent) event).getEntityId());
+            if (entitySubscriptions != null) {
+                candidates = new ArrayList<>(candidates);
+                candidates.addAll(entitySubscriptions);
+            }
         }
 
-        for (Map.Entry<String, SessionSubscriptions> entry : sessionSubscriptionsSet) {
-            String sessionKey = entry.getKey();
-            SessionSubscriptions subscriptions = entry.getValue();
-
-            for (SessionSubscription sessionSubscription : subscriptions) {
+        for (SessionSubscription sessionSubscription : candidates) {
+            String sessionKey = sessionSubscription.sessionKey;
 
-                if (!sessionSubscription.matches(accessibleForRestrictedUsers, event))
-                    continue;
+            if (!sessionSubscription.matches(accessibleForRestrictedUsers, event))
+                continue;
 
-                if (sessionSubscription.subscription.getFilter() == null
-                    || sessionSubscription.subscription.getFilter().apply(event)) {
-                    LOG.fine("Creating message for subscribed session '" + sessionKey + "': " + event);
-                    if (sessionSubscription.subscription.getInternalConsumer() == null) {
-                        Message msg = new DefaultMessage();
-                        msg.setBody(event); // Don't copy the event, use same reference
-                        msg.setHeaders(new HashMap<>(exchange.getIn().getHeaders())); // Copy headers
-                        msg.setHeader(WebsocketConstants.SESSION_KEY, sessionKey);
-                        messageList.add(msg);
-                    } else {
-                        sessionSubscription.subscription.getInternalConsumer().accept(event);
+            if (sessionSubscription.subscription.getFilter() == null
+                || sessionSubscription.subscription.getFilter().apply(event)) {
+                LOG.fine("Creating message for subscribed session '" + sessionKey + "': " + event);
+                if (sessionSubscription.subscription.getInternalConsumer() == null) {
+                    if (sessionSubscription.isThrottled(event) && sessionSubscription.throttle((AttributeEvent) event))
+                        continue;
+                    if (serializedEvent == null) {
+                        try {
+                            serializedEvent = exchange.getContext().getTypeConverter().mandatoryConvertTo(
+                                String.class, exchange, event
+                            );
+                        } catch (NoTypeConversionAvailableException ex) {
+                            throw new IllegalStateException("Can't serialize event: " + event, ex);
+                        }
+                    }
+                    Message msg = new DefaultMessage();
+                    msg.setBody(serializedEvent);
+                    msg.setHeader(WebsocketConstants.SESSION_KEY, sessionKey);
+                    if (coalesceKey != null) {
+                        // Only the latest state of an attribute must be delivered to a slow client
+                        msg.setHeader(WebsocketConstants.COALESCE_KEY, coalesceKey);
                     }
+                    messageList.add(msg);
+                } else {
+                    sessionSubscription.subscription.getInternalConsumer().accept(event);
                 }
             }
         }
         return messageList;
     }
-}
\ No newline at end of file
+}
@@ -26,10 +26,14 @@ import org.openremote.model.http.RequestParams;
 import org.openremote.model.value.ObjectValue;
 
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 
 public class MapResourceImpl extends WebResource implements MapResource {
 
+    public static final int TILE_MAX_AGE_SECONDS = 86400;
+
     protected final MapService mapService;
     protected final ManagerIdentityService identityService;
 
@@ -49,10 +53,19 @@ public class MapResourceImpl extends WebResource implements MapResource {
     @Override
     public byte[] getTile(int zoom, int column, int row) {
         byte[] tile = mapService.getMapTile(zoom, column, row);
-        if (tile != null) {
-            return tile;
-        } else {
+        if (tile == null) {
             throw new WebApplicationException(Response.Status.NOT_FOUND);
         }
+
+        // Tiles only change when the tile data is replaced, clients revalidate with the tag
+        EntityTag eTag = new EntityTag(mapService.getMapTileETag(zoom, column, row));
+        String ifNoneMatch = httpHeaders.getHeaderString(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && (ifNoneMatch.contains(eTag.toString()) || ifNoneMatch.trim().equals("*"))) {
+            throw new WebApplicationException(Response.notModified(eTag).build());
+        }
+
+        response.setHeader(HttpHeaders.ETAG, eTag.toString());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "private, max-age=" + TILE_MAX_AGE_SECONDS);
+        return tile;
     }
 }
@@ -19,6 +19,9 @@
  */
 package org.openremote.manager.map;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
 import org.openremote.container.web.WebService;
@@ -27,6 +30,7 @@ import org.openremote.manager.web.ManagerWebService;
 import org.openremote.model.value.ArrayValue;
 import org.openremote.model.value.ObjectValue;
 import org.openremote.model.value.Values;
+import org.sqlite.SQLiteConfig;
 
 import javax.ws.rs.core.UriBuilder;
 import java.nio.file.Files;
@@ -38,8 +42,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.container.util.MapAccess.getString;
 
 public class MapService implements ContainerService {
@@ -50,12 +58,55 @@ public class MapService implements ContainerService {
     public static final String MAP_TILES_PATH_DEFAULT = "deployment/manager/map/mapdata.mbtiles";
     public static final String MAP_SETTINGS_PATH = "MAP_SETTINGS_PATH";
     public static final String MAP_SETTINGS_PATH_DEFAULT = "deployment/manager/map/mapsettings.json";
+    /**
+     * Number of read-only connections to the tile database, tiles are read concurrently.
+     */
+    public static final String MAP_TILES_CONNECTIONS = "MAP_TILES_CONNECTIONS";
+    public static final int MAP_TILES_CONNECTIONS_DEFAULT = 4;
+    /**
+     * Maximum total size of tiles cached in memory, <code>0</code> disables the cache.
+     */
+    public static final String MAP_TILES_CACHE_SIZE_MB = "MAP_TILES_CACHE_SIZE_MB";
+    public static final int MAP_TILES_CACHE_SIZE_MB_DEFAULT = 64;
+
+    public static final String TILE_QUERY =
+        "select TILE_DATA from TILES where ZOOM_LEVEL = ? and TILE_COLUMN = ? and TILE_ROW = ?";
+
+    /**
+     * A pooled connection with its prepared tile query, only used by one thread at a time.
+     */
+    protected static class TileConnection {
+        final protected Connection connection;
+        final protected PreparedStatement tileQuery;
+
+        public TileConnection(Connection connection) throws Exception {
+            this.connection = connection;
+            this.tileQuery = connection.prepareStatement(TILE_QUERY);
+        }
 
-    // Shared SQL connection is fine concurrently in SQLite
-    protected Connection connection;
+        public void close() {
+            try {
+                tileQuery.close();
+                connection.close();
+            } catch (Exception ex) {
+                LOG.warning("Error closing connection: " + ex);
+            }
+        }
+    }
+
+    protected BlockingQueue<TileConnection> connections;
+    protected Cache<String, byte[]> tileCache;
 
     protected Path mapTilesPath;
     protected Path mapSettingsPath;
+    protected int connectionCount;
+    protected int tileCacheSizeMb;
+
+    // The tile data file is not modified while running, tiles are versioned by its modification time
+    protected String tilesVersion;
+    protected ObjectValue metadata;
+    protected ObjectValue mapSettingsFile;
+    protected long mapSettingsLastModified;
 
     @Override
     public void init(Container container) throws Exception {
@@ -73,6 +124,9 @@ public class MapService implements ContainerService {
             );
         }
 
+        connectionCount = Math.max(1, getInteger(container.getConfig(), MAP_TILES_CONNECTIONS, MAP_TILES_CONNECTIONS_DEFAULT));
+        tileCacheSizeMb = Math.max(0, getInteger(container.getConfig(), MAP_TILES_CACHE_SIZE_MB, MAP_TILES_CACHE_SIZE_MB_DEFAULT));
+
         container.getService(WebService.class).getApiSingletons().add(
             new MapResourceImpl(this, container.getService(ManagerIdentityService.class))
         );
@@ -82,28 +136,43 @@ public class MapService implements ContainerService {
     public void start(Container container) throws Exception {
         LOG.info("Starting map service with tile data: " + mapTilesPath.toAbsolutePath());
         Class.forName(org.sqlite.JDBC.class.getName());
-        connection = DriverManager.getConnection("jdbc:sqlite:" + mapTilesPath.toAbsolutePath());
+
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        connections = new ArrayBlockingQueue<>(connectionCount);
+        for (int i = 0; i < connectionCount; i++) {
+            connections.add(new TileConnection(
+                DriverManager.getConnection("jdbc:sqlite:" + mapTilesPath.toAbsolutePath(), config.toProperties())
+            ));
+        }
+
+        tileCache = CacheBuilder.newBuilder()
+            .maximumWeight(tileCacheSizeMb * 1024L * 1024L)
+            .<String, byte[]>weigher((key, tile) -> tile.length)
+            .recordStats()
+            .build();
+
+        tilesVersion = Long.toHexString(Files.getLastModifiedTime(mapTilesPath).toMillis());
+        metadata = readMetadata();
     }
 
     @Override
     public void stop(Container container) throws Exception {
-        if (connection != null) {
-            connection.close();
+        if (tileCache != null) {
+            LOG.info("Map tile cache: " + tileCache.stats());
+            tileCache.invalidateAll();
+        }
+        if (connections != null) {
+            TileConnection tileConnection;
+            while ((tileConnection = connections.poll()) != null) {
+                tileConnection.close();
+            }
         }
     }
 
     public ObjectValue getMapSettings(String realm, UriBuilder baseUriBuilder) {
-        ObjectValue mapSettings;
-
         // Mix settings from file with database metadata, and some hardcoded magic
-        try {
-            String mapSettingsJson = new String(Files.readAllBytes(mapSettingsPath), "utf-8");
-            mapSettings = Values.<ObjectValue>parse(mapSettingsJson).orElseThrow(() ->
-                new RuntimeException("Error parsing map settings: " + mapSettingsPath.toAbsolutePath())
-            );
-        } catch (Exception ex) {
-            throw new RuntimeException("Error parsing map settings: " + mapSettingsPath.toAbsolutePath(), ex);
-        }
+        ObjectValue mapSettings = getMapSettingsFile().deepCopy();
 
         ObjectValue style = mapSettings.getObject("style").orElseThrow(() ->
             new RuntimeException("Missing 'style' field in map settings style: " + mapSettingsPath.toAbsolutePath())
@@ -134,20 +203,48 @@ public class MapService implements ContainerService {
         ObjectValue sources = Values.createObject();
         style.put("sources", sources);
 
-        ObjectValue vectorTiles = Values.createObject();
+        ObjectValue vectorTiles = metadata.deepCopy();
         sources.put("vector_tiles", vectorTiles);
 
-        vectorTiles.put("type", "vector");
-
         ArrayValue tilesArray = Values.createArray();
         String tileUrl = baseUriBuilder.clone().replacePath(realm).path("map/tile").build().toString() + "/{z}/{x}/{y}";
         tilesArray.set(0, tileUrl);
         vectorTiles.put("tiles", tilesArray);
 
+        return mapSettings;
+    }
+
+    /**
+     * @return The parsed settings file, parsed again only if it was modified.
+     */
+    protected synchronized ObjectValue getMapSettingsFile() {
+        try {
+            long lastModified = Files.getLastModifiedTime(mapSettingsPath).toMillis();
+            if (mapSettingsFile == null || lastModified != mapSettingsLastModified) {
+                String mapSettingsJson = new String(Files.readAllBytes(mapSettingsPath), "utf-8");
+                mapSettingsFile = Values.<ObjectValue>parse(mapSettingsJson).orElseThrow(() ->
+                    new RuntimeException("Error parsing map settings: " + mapSettingsPath.toAbsolutePath())
+                );
+                mapSettingsLastModified = lastModified;
+            }
+            return mapSettingsFile;
+        } catch (Exception ex) {
+            throw new RuntimeException("Error parsing map settings: " + mapSettingsPath.toAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * @return The vector tiles source with the metadata of the tile database.
+     */
+    protected ObjectValue readMetadata() {
+        ObjectValue vectorTiles = Values.createObject();
+        vectorTiles.put("type", "vector");
+
+        TileConnection tileConnection = borrowConnection();
         PreparedStatement query = null;
         ResultSet result = null;
         try {
-            query = connection.prepareStatement("select NAME, VALUE from METADATA");
+            query = tileConnection.connection.prepareStatement("select NAME, VALUE from METADATA");
             result = query.executeQuery();
 
             Map<String, String> resultMap = new HashMap<>();
@@ -173,28 +270,44 @@ public class MapService implements ContainerService {
             throw new RuntimeException("Error opening database: " + this, ex);
         } finally {
             closeQuietly(query, result);
+            connections.add(tileConnection);
         }
+        return vectorTiles;
+    }
 
-        return mapSettings;
+    /**
+     * @return A tag identifying the content of the tile, the same for all tiles of the current tile data.
+     */
+    public String getMapTileETag(int zoom, int column, int row) {
+        return tilesVersion + "-" + zoom + "-" + column + "-" + row;
     }
 
     public byte[] getMapTile(int zoom, int column, int row) {
         // Flip y, oh why
-        row = new Double(Math.pow(2, zoom) - 1 - row).intValue();
+        int flippedRow = new Double(Math.pow(2, zoom) - 1 - row).intValue();
 
-        PreparedStatement query = null;
+        String key = zoom + "/" + column + "/" + flippedRow;
+        byte[] tile = tileCache.getIfPresent(key);
+        if (tile != null)
+            return tile;
+
+        tile = readMapTile(zoom, column, flippedRow);
+        if (tile != null) {
+            tileCache.put(key, tile);
+        }
+        return tile;
+    }
+
+    protected byte[] readMapTile(int zoom, int column, int row) {
+        TileConnection tileConnection = borrowConnection();
         ResultSet result = null;
         try {
-            query = connection.prepareStatement(
-                "select TILE_DATA from TILES where ZOOM_LEVEL = ? and TILE_COLUMN = ? and TILE_ROW = ?"
-            );
-
             int index = 0;
-            query.setInt(++index, zoom);
-            query.setInt(++index, column);
-            query.setInt(++index, row);
+            tileConnection.tileQuery.setInt(++index, zoom);
+            tileConnection.tileQuery.setInt(++index, column);
+            tileConnection.tileQuery.setInt(++index, row);
 
-            result = query.executeQuery();
+            result = tileConnection.tileQuery.executeQuery();
 
             if (result.next()) {
                 return result.getBytes(1);
@@ -204,10 +317,27 @@ public class MapService implements ContainerService {
         } catch (Exception ex) {
             throw new RuntimeException(ex);
         } finally {
-            closeQuietly(query, result);
+            closeQuietly(null, result);
+            connections.add(tileConnection);
         }
     }
 
+    protected TileConnection borrowConnection() {
+        try {
+            TileConnection tileConnection = connections.poll(30, TimeUnit.SECONDS);
+            if (tileConnection == null)
+                throw new IllegalStateException("Timeout waiting for map tile database connection");
+            return tileConnection;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for map tile database connection", ex);
+        }
+    }
+
+    public CacheStats getTileCacheStats() {
+        return tileCache.stats();
+    }
+
     protected void closeQuietly(PreparedStatement query, ResultSet result) {
         try {
             if (result != null) {
@@ -228,4 +358,4 @@ public class MapService implements ContainerService {
             ", mapSettingsPath=" + mapSettingsPath +
             '}';
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.openremote.model.attribute.AttributeType;
+import org.openremote.model.geo.GeoJSONPoint;
+import org.openremote.model.query.filter.LocationPredicate;
+import org.openremote.model.query.filter.RadialLocationPredicate;
+import org.openremote.model.query.filter.RectangularLocationPredicate;
+import org.openremote.model.rules.AssetState;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Spatial index of {@link AttributeType#LOCATION} asset states with a point value, on a grid of
+ * {@link #CELL_DEGREES} latitude and longitude cells.
+ * <p>
+ * Radial and rectangular location predicates are answered by visiting only the cells overlapping the bounding box
+ * of the predicate, or only the occupied cells if that is cheaper. Negated predicates can't use the index.
+ */
+public class AssetLocationIndex {
+
+    // About 11km at the equator, a few cells cover a typical geofence
+    public static final double CELL_DEGREES = 0.1;
+
+    protected static class Entry {
+
+        final protected AssetState assetState;
+        final protected double lat;
+        final protected double lng;
+        final protected long cell;
+
+        public Entry(AssetState assetState, double lat, double lng) {
+            this.assetState = assetState;
+            this.lat = lat;
+            this.lng = lng;
+            this.cell = getCell(getCellIndex(lat), getCellIndex(lng));
+        }
+    }
+
+    final protected Map<String, Entry> byId = new HashMap<>();
+    final protected Map<Long, Set<Entry>> byCell = new HashMap<>();
+
+    /**
+     * Adds the asset state if it is a location with a point value, replacing the indexed location of the asset.
+     */
+    public void put(AssetState assetState) {
+        remove(assetState);
+        GeoJSONPoint point = isLocation(assetState)
+            ? assetState.getValue().flatMap(GeoJSONPoint::fromValue).orElse(null)
+            : null;
+        if (point == null)
+            return;
+        Entry entry = new Entry(assetState, point.getY(), point.getX());
+        byId.put(assetState.getId(), entry);
+        byCell.computeIfAbsent(entry.cell, cell -> new LinkedHashSet<>()).add(entry);
+    }
+
+    public void remove(AssetState assetState) {
+        if (!isLocation(assetState))
+            return;
+        Entry entry = byId.remove(assetState.getId());
+        if (entry == null)
+            return;
+        Set<Entry> entries = byCell.get(entry.cell);
+        if (entries != null) {
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                byCell.remove(entry.cell);
+            }
+        }
+    }
+
+    public void clear() {
+        byId.clear();
+        byCell.clear();
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * @return The located asset states matching the predicate, or <code>null</code> if the index can't be used.
+     */
+    public Collection<AssetState> getCandidates(LocationPredicate predicate) {
+        if (predicate instanceof RadialLocationPredicate) {
+            RadialLocationPredicate radial = (RadialLocationPredicate) predicate;
+            if (radial.negated)
+                return null;
+
+            // Bounding box of the circle, widened by the error of the spherical distance
+            double angularRadius = radial.radius * (1 + AssetQueryPredicate.HAVERSINE_ERROR) / AssetQueryPredicate.EARTH_RADIUS_METERS;
+            double latDelta = Math.toDegrees(angularRadius);
+            double latMin = radial.lat - latDelta;
+            double latMax = radial.lat + latDelta;
+            double lngMin = -180;
+            double lngMax = 180;
+            double sinLngDelta = Math.sin(angularRadius) / Math.cos(Math.toRadians(radial.lat));
+            if (latMin > -90 && latMax < 90 && sinLngDelta < 1) {
+                double lngDelta = Math.toDegrees(Math.asin(sinLngDelta));
+                // Don't wrap around the antimeridian, search all longitudes instead
+                if (radial.lng - lngDelta >= -180 && radial.lng + lngDelta <= 180) {
+                    lngMin = radial.lng - lngDelta;
+                    lngMax = radial.lng + lngDelta;
+                }
+            }
+            return find(latMin, lngMin, latMax, lngMax, entry ->
+                AssetQueryPredicate.isWithinRadius(radial.lat, radial.lng, entry.lat, entry.lng, radial.radius)
+            );
+        } else if (predicate instanceof RectangularLocationPredicate) {
+            RectangularLocationPredicate rectangular = (RectangularLocationPredicate) predicate;
+            if (rectangular.negated)
+                return null;
+            return find(rectangular.latMin, rectangular.lngMin, rectangular.latMax, rectangular.lngMax, entry ->
+                AssetQueryPredicate.isWithinRectangle(
+                    rectangular.latMin, rectangular.lngMin, rectangular.latMax, rectangular.lngMax, entry.lat, entry.lng
+                )
+            );
+        }
+        return null;
+    }
+
+    protected Collection<AssetState> find(double latMin, double lngMin, double latMax, double lngMax, Predicate<Entry> predicate) {
+        List<AssetState> result = new ArrayList<>();
+        if (latMin > latMax || lngMin > lngMax || byCell.isEmpty())
+            return result;
+
+        int latCellMin = getCellIndex(Math.max(latMin, -90));
+        int latCellMax = getCellIndex(Math.min(latMax, 90));
+        int lngCellMin = getCellIndex(Math.max(lngMin, -180));
+        int lngCellMax = getCellIndex(Math.min(lngMax, 180));
+        long cellCount = (long) (latCellMax - latCellMin + 1) * (lngCellMax - lngCellMin + 1);
+
+        if (cellCount > byCell.size()) {
+            // Fewer cells are occupied than covered by the box
+            for (Map.Entry<Long, Set<Entry>> cell : byCell.entrySet()) {
+                int latCell = (int) (cell.getKey() >> 32);
+                int lngCell = (int) (long) cell.getKey();
+                if (latCell >= latCellMin && latCell <= latCellMax && lngCell >= lngCellMin && lngCell <= lngCellMax) {
+                    addMatches(result, cell.getValue(), predicate);
+                }
+            }
+        } else {
+            for (int latCell = latCellMin; latCell <= latCellMax; latCell++) {
+                for (int lngCell = lngCellMin; lngCell <= lngCellMax; lngCell++) {
+                    Set<Entry> entries = byCell.get(getCell(latCell, lngCell));
+                    if (entries != null) {
+                        addMatches(result, entries, predicate);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    protected static void addMatches(List<AssetState> result, Collection<Entry> entries, Predicate<Entry> predicate) {
+        for (Entry entry : entries) {
+            if (predicate.test(entry)) {
+                result.add(entry.assetState);
+            }
+        }
+    }
+
+    protected static boolean isLocation(AssetState assetState) {
+        return AttributeType.LOCATION.getName().equals(assetState.getAttributeName());
+    }
+
+    protected static int getCellIndex(double degrees) {
+        return (int) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    protected static long getCell(int latCell, int lngCell) {
+        return ((long) latCell << 32) | (lngCell & 0xffffffffL);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "assetStates=" + byId.size() +
+            ", cells=" + byCell.size() +
+            '}';
+    }
+}
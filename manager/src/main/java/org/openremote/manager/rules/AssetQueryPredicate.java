@@ -20,7 +20,6 @@
 package org.openremote.manager.rules;
 
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Envelope;
 import org.geotools.referencing.GeodeticCalculator;
 import org.openremote.model.query.BaseAssetQuery;
 import org.openremote.model.query.BaseAssetQuery.*;
@@ -42,6 +41,12 @@ import static org.openremote.model.query.BaseAssetQuery.Operator.LESS_THAN;
  */
 public class AssetQueryPredicate implements Predicate<AssetState> {
 
+    // Mean radius of the WGS84 ellipsoid
+    public static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    // Haversine distances on a sphere differ less than this from orthodromic distances on the WGS84 ellipsoid
+    public static final double HAVERSINE_ERROR = 0.01;
+
     final protected BaseAssetQuery query;
 
     public AssetQueryPredicate(BaseAssetQuery query) {
@@ -219,26 +224,55 @@ public class AssetQueryPredicate implements Predicate<AssetState> {
     protected Predicate<Coordinate> asPredicate(LocationPredicate predicate) {
         return coordinate -> {
             if (predicate instanceof RadialLocationPredicate) {
-                //TODO geotools version to gradle properties
                 RadialLocationPredicate radialLocationPredicate = (RadialLocationPredicate) predicate;
-                GeodeticCalculator calculator = new GeodeticCalculator();
-                calculator.setStartingGeographicPoint(radialLocationPredicate.lng, radialLocationPredicate.lat);
-                calculator.setDestinationGeographicPoint(coordinate.y, coordinate.x);
-                return calculator.getOrthodromicDistance() < radialLocationPredicate.radius;
+                return isWithinRadius(
+                    radialLocationPredicate.lat, radialLocationPredicate.lng, coordinate.x, coordinate.y, radialLocationPredicate.radius
+                );
             } else if (predicate instanceof RectangularLocationPredicate) {
                 // Again this is a euclidean plane so doesn't work perfectly for WGS lat/lng - the bigger the rectangle to less accurate it is)
                 RectangularLocationPredicate rectangularLocationPredicate = (RectangularLocationPredicate) predicate;
-                Envelope envelope = new Envelope(rectangularLocationPredicate.latMin,
+                return isWithinRectangle(
+                    rectangularLocationPredicate.latMin,
                     rectangularLocationPredicate.lngMin,
                     rectangularLocationPredicate.latMax,
-                    rectangularLocationPredicate.lngMax);
-                return envelope.contains(coordinate);
+                    rectangularLocationPredicate.lngMax,
+                    coordinate.x,
+                    coordinate.y
+                );
             } else {
                 throw new UnsupportedOperationException("Location predicate '" + query.location.getClass().getSimpleName() + "' not supported in rules matching");
             }
         };
     }
 
+    /**
+     * Tests the haversine distance first, only points close to the radius are tested with the orthodromic distance
+     * on the WGS84 ellipsoid, which is much slower to calculate.
+     */
+    public static boolean isWithinRadius(double lat, double lng, double pointLat, double pointLng, double radius) {
+        double distance = getHaversineDistance(lat, lng, pointLat, pointLng);
+        if (distance < radius * (1 - HAVERSINE_ERROR))
+            return true;
+        if (distance > radius * (1 + HAVERSINE_ERROR))
+            return false;
+        //TODO geotools version to gradle properties
+        GeodeticCalculator calculator = new GeodeticCalculator();
+        calculator.setStartingGeographicPoint(lng, lat);
+        calculator.setDestinationGeographicPoint(pointLng, pointLat);
+        return calculator.getOrthodromicDistance() < radius;
+    }
+
+    public static boolean isWithinRectangle(double latMin, double lngMin, double latMax, double lngMax, double pointLat, double pointLng) {
+        return pointLat >= latMin && pointLat <= latMax && pointLng >= lngMin && pointLng <= lngMax;
+    }
+
+    public static double getHaversineDistance(double lat1, double lng1, double lat2, double lng2) {
+        double sinLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinLng = Math.sin(Math.toRadians(lng2 - lng1) / 2);
+        double a = sinLat * sinLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLng * sinLng;
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
     protected Predicate<AssetState> asPredicate(AttributePredicate predicate) {
         return assetState -> {
             if (predicate.name != null && !asPredicate(predicate.name).test(assetState.getAttributeName()))
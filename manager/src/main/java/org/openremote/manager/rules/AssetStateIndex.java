@@ -0,0 +1,242 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.query.BaseAssetQuery;
+import org.openremote.model.query.filter.AttributePredicate;
+import org.openremote.model.query.filter.StringPredicate;
+import org.openremote.model.rules.AssetState;
+
+import java.util.*;
+
+/**
+ * Secondary indexes of {@link AssetState} facts by asset identifier, asset identifier and attribute name, attribute
+ * name, asset type, parent identifier, and realm identifier, and a {@link AssetLocationIndex} of locations.
+ * <p>
+ * The query planner of {@link #getCandidates} picks the smallest set of candidates from the indexes usable for a
+ * query, the candidates must still be tested with the full query. Only predicates with an exact and case-sensitive
+ * match can use an index.
+ */
+public class AssetStateIndex {
+
+    /**
+     * The candidates of a query and the index they were selected from.
+     */
+    public static class Candidates {
+
+        final protected String index;
+        final protected Collection<AssetState> assetStates;
+
+        public Candidates(String index, Collection<AssetState> assetStates) {
+            this.index = index;
+            this.assetStates = assetStates;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        public Collection<AssetState> getAssetStates() {
+            return assetStates;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                "index='" + index + '\'' +
+                ", assetStates=" + assetStates.size() +
+                '}';
+        }
+    }
+
+    final protected Map<AttributeRef, AssetState> byAttributeRef = new HashMap<>();
+    final protected Map<String, Set<AssetState>> byId = new HashMap<>();
+    final protected Map<String, Set<AssetState>> byAttributeName = new HashMap<>();
+    final protected Map<String, Set<AssetState>> byType = new HashMap<>();
+    final protected Map<String, Set<AssetState>> byParentId = new HashMap<>();
+    final protected Map<String, Set<AssetState>> byRealmId = new HashMap<>();
+    final protected AssetLocationIndex locationIndex = new AssetLocationIndex();
+
+    /**
+     * Adds the asset state, replacing the indexed asset state of the same asset attribute.
+     */
+    public void put(AssetState assetState) {
+        remove(assetState);
+        byAttributeRef.put(getAttributeRef(assetState), assetState);
+        add(byId, assetState.getId(), assetState);
+        add(byAttributeName, assetState.getAttributeName(), assetState);
+        add(byType, assetState.getTypeString(), assetState);
+        add(byParentId, assetState.getParentId(), assetState);
+        add(byRealmId, assetState.getRealmId(), assetState);
+        locationIndex.put(assetState);
+    }
+
+    /**
+     * Removes the indexed asset state of the same asset attribute, its asset might have been moved so it is removed
+     * with the keys of the indexed instance.
+     */
+    public void remove(AssetState assetState) {
+        AssetState indexed = byAttributeRef.remove(getAttributeRef(assetState));
+        if (indexed == null)
+            return;
+        remove(byId, indexed.getId(), indexed);
+        remove(byAttributeName, indexed.getAttributeName(), indexed);
+        remove(byType, indexed.getTypeString(), indexed);
+        remove(byParentId, indexed.getParentId(), indexed);
+        remove(byRealmId, indexed.getRealmId(), indexed);
+        locationIndex.remove(indexed);
+    }
+
+    public void clear() {
+        byAttributeRef.clear();
+        byId.clear();
+        byAttributeName.clear();
+        byType.clear();
+        byParentId.clear();
+        byRealmId.clear();
+        locationIndex.clear();
+    }
+
+    public int size() {
+        return byAttributeRef.size();
+    }
+
+    public Collection<AssetState> getByAttributeName(String attributeName) {
+        return get(byAttributeName, attributeName);
+    }
+
+    /**
+     * @return The smallest set of candidates for the query, or <code>null</code> if no index can be used.
+     */
+    public Candidates getCandidates(BaseAssetQuery query) {
+        Candidates best = null;
+
+        String attributeName = null;
+        if (query.attribute != null) {
+            for (AttributePredicate attributePredicate : query.attribute) {
+                if (attributePredicate != null && (attributeName = getExactValue(attributePredicate.name)) != null)
+                    break;
+            }
+        }
+
+        if (query.ids != null) {
+            if (attributeName != null) {
+                List<AssetState> assetStates = new ArrayList<>(query.ids.size());
+                for (String id : new LinkedHashSet<>(query.ids)) {
+                    AssetState assetState = id != null ? byAttributeRef.get(new AttributeRef(id, attributeName)) : null;
+                    if (assetState != null) {
+                        assetStates.add(assetState);
+                    }
+                }
+                // Can't get more selective than this
+                return new Candidates("attributeRef", assetStates);
+            }
+            best = select(best, "id", getUnion(byId, query.ids));
+        }
+
+        if (attributeName != null) {
+            best = select(best, "attributeName", get(byAttributeName, attributeName));
+        }
+
+        String type = getExactValue(query.type);
+        if (type != null) {
+            best = select(best, "type", get(byType, type));
+        }
+
+        if (query.parent != null && query.parent.id != null) {
+            best = select(best, "parentId", get(byParentId, query.parent.id));
+        }
+
+        if (query.tenant != null && query.tenant.realmId != null) {
+            best = select(best, "realmId", get(byRealmId, query.tenant.realmId));
+        }
+
+        if (query.location != null) {
+            Collection<AssetState> located = locationIndex.getCandidates(query.location);
+            if (located != null) {
+                best = select(best, "location", located);
+            }
+        }
+
+        return best;
+    }
+
+    protected static Candidates select(Candidates best, String index, Collection<AssetState> assetStates) {
+        return best == null || assetStates.size() < best.assetStates.size() ? new Candidates(index, assetStates) : best;
+    }
+
+    protected static String getExactValue(StringPredicate predicate) {
+        return predicate != null && predicate.match == BaseAssetQuery.Match.EXACT && predicate.caseSensitive
+            ? predicate.value
+            : null;
+    }
+
+    protected static AttributeRef getAttributeRef(AssetState assetState) {
+        return new AttributeRef(assetState.getId(), assetState.getAttributeName());
+    }
+
+    protected static Collection<AssetState> get(Map<String, Set<AssetState>> index, String key) {
+        Set<AssetState> assetStates = index.get(key);
+        return assetStates != null ? assetStates : Collections.emptySet();
+    }
+
+    protected static Collection<AssetState> getUnion(Map<String, Set<AssetState>> index, Collection<String> keys) {
+        if (keys.size() == 1) {
+            return get(index, keys.iterator().next());
+        }
+        List<AssetState> assetStates = new ArrayList<>();
+        for (String key : new LinkedHashSet<>(keys)) {
+            assetStates.addAll(get(index, key));
+        }
+        return assetStates;
+    }
+
+    protected static void add(Map<String, Set<AssetState>> index, String key, AssetState assetState) {
+        if (key == null)
+            return;
+        index.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(assetState);
+    }
+
+    protected static void remove(Map<String, Set<AssetState>> index, String key, AssetState assetState) {
+        if (key == null)
+            return;
+        Set<AssetState> assetStates = index.get(key);
+        if (assetStates != null) {
+            assetStates.remove(assetState);
+            if (assetStates.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "assetStates=" + size() +
+            ", ids=" + byId.size() +
+            ", attributeNames=" + byAttributeName.size() +
+            ", types=" + byType.size() +
+            ", parentIds=" + byParentId.size() +
+            ", realmIds=" + byRealmId.size() +
+            ", locations=" + locationIndex.size() +
+            '}';
+    }
+}
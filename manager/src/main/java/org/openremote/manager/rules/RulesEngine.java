@@ -19,8 +19,11 @@
  */
 package org.openremote.manager.rules;
 
+import org.jeasy.rules.api.Rules;
 import org.jeasy.rules.core.InferenceRulesEngine;
 import org.jeasy.rules.core.RulesEngineParameters;
+import org.openremote.container.concurrent.ContainerPartitionedExecutor;
+import org.openremote.container.concurrent.GlobalLock;
 import org.openremote.container.timer.TimerService;
 import org.openremote.manager.asset.AssetProcessingService;
 import org.openremote.manager.asset.AssetStorageService;
@@ -36,14 +39,25 @@ import org.openremote.model.query.filter.LocationPredicate;
 import org.openremote.model.rules.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static org.openremote.container.concurrent.GlobalLock.withLock;
 import static org.openremote.manager.rules.RulesetDeployment.Status.*;
 
+/**
+ * Fires the rules of its {@link RulesetDeployment}s against its {@link RulesFacts}.
+ * <p>
+ * Each engine has its own lock, which guards its facts and deployments, and is fired on its own lane of the shared
+ * firing executor, so independent engines fire concurrently. Fact changes never wait for a firing to complete:
+ * they are queued and applied by whichever thread holds or next acquires the lock of the engine, in order. The
+ * {@link AssetLocationPredicateProcessor} is notified on the lane of the engine, without holding its lock.
+ */
 public class RulesEngine<T extends Ruleset> {
 
     /**
@@ -76,27 +90,44 @@ public class RulesEngine<T extends Ruleset> {
     // Separate logger for periodic stats printer
     public static final Logger STATS_LOG = Logger.getLogger("org.openremote.rules.RulesEngineStats");
 
+    // In incremental evaluation mode, how often rules are evaluated again for the changes made by their actions
+    public static final int MAX_INCREMENTAL_EVALUATION_ROUNDS = 10;
+
     final protected TimerService timerService;
     final protected ManagerExecutorService executorService;
     final protected AssetStorageService assetStorageService;
+    final protected ContainerPartitionedExecutor firingExecutor;
 
     final protected RulesEngineId<T> id;
     final protected Assets assetsFacade;
     final protected Users usersFacade;
     final protected NotificationsFacade notificationFacade;
     final protected AssetLocationPredicateProcessor assetLocationPredicatesConsumer;
+    final protected boolean incrementalEvaluation;
+
+    final protected ReentrantLock lock = new ReentrantLock(true);
+    final protected Queue<Runnable> factChanges = new ConcurrentLinkedQueue<>();
+    final protected AtomicBoolean firePending = new AtomicBoolean();
 
     final protected Map<Long, RulesetDeployment> deployments = new LinkedHashMap<>();
     final protected RulesFacts facts;
     final protected InferenceRulesEngine engine;
 
-    protected boolean running;
+    protected volatile boolean running;
     protected boolean trackLocationPredicates;
-    protected ScheduledFuture fireTimer;
+    protected boolean evaluateAllRules;
+    protected volatile ScheduledFuture fireTimer;
     protected ScheduledFuture statsTimer;
 
+    // Wakes the engine when the next temporary fact expires, only accessed while holding the lock
+    protected ScheduledFuture expiryTimer;
+    protected long expiryTimerTimestamp;
+
+    // Copy of the deployments, for status checks without holding the lock
+    protected volatile List<RulesetDeployment> deploymentList = Collections.emptyList();
+
     // Only used to optimize toString(), contains the details of this engine
-    protected String deploymentInfo;
+    protected volatile String deploymentInfo;
 
     // Only used in tests to prevent scheduled firing of engine
     protected boolean disableTemporaryFactExpiration = false;
@@ -104,13 +135,16 @@ public class RulesEngine<T extends Ruleset> {
     public RulesEngine(TimerService timerService,
                        ManagerIdentityService identityService,
                        ManagerExecutorService executorService,
+                       ContainerPartitionedExecutor firingExecutor,
                        AssetStorageService assetStorageService,
                        AssetProcessingService assetProcessingService,
                        NotificationService notificationService,
                        RulesEngineId<T> id,
-                       AssetLocationPredicateProcessor assetLocationPredicatesConsumer) {
+                       AssetLocationPredicateProcessor assetLocationPredicatesConsumer,
+                       boolean incrementalEvaluation) {
         this.timerService = timerService;
         this.executorService = executorService;
+        this.firingExecutor = firingExecutor;
         this.assetStorageService = assetStorageService;
         this.id = id;
         AssetsFacade<T> assetsFacade = new AssetsFacade<>(id, assetStorageService, assetProcessingService::sendAttributeEvent);
@@ -118,8 +152,10 @@ public class RulesEngine<T extends Ruleset> {
         this.usersFacade = new UsersFacade<>(id, assetStorageService, notificationService, identityService);
         this.notificationFacade = new NotificationsFacade<>(id, notificationService);
         this.assetLocationPredicatesConsumer = assetLocationPredicatesConsumer;
+        this.incrementalEvaluation = incrementalEvaluation;
 
         this.facts = new RulesFacts(assetsFacade, this, RULES_LOG);
+        this.facts.setTrackChanges(incrementalEvaluation);
         engine = new InferenceRulesEngine(
             // Skip any other rules after the first failed rule (exception thrown in condition or action)
             new RulesEngineParameters(false, true, false, RulesEngineParameters.DEFAULT_RULE_PRIORITY_THRESHOLD)
@@ -135,14 +171,14 @@ public class RulesEngine<T extends Ruleset> {
      * @return a shallow copy of the asset state facts.
      */
     public Set<AssetState> getAssetStates() {
-        return new HashSet<>(facts.getAssetStates());
+        return withLockReturning(toString() + "::getAssetStates", () -> new HashSet<>(facts.getAssetStates()));
     }
 
     /**
      * @return a shallow copy of the asset event facts.
      */
     public List<TemporaryFact<AssetState>> getAssetEvents() {
-        return new ArrayList<>(facts.getAssetEvents());
+        return withLockReturning(toString() + "::getAssetEvents", () -> new ArrayList<>(facts.getAssetEvents()));
     }
 
     public boolean isRunning() {
@@ -150,7 +186,7 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     public boolean isError() {
-        for (RulesetDeployment deployment : deployments.values()) {
+        for (RulesetDeployment deployment : deploymentList) {
             if (deployment.status == COMPILATION_ERROR || deployment.getStatus() == EXECUTION_ERROR) {
                 return true;
             }
@@ -161,7 +197,7 @@ public class RulesEngine<T extends Ruleset> {
     public RuntimeException getError() {
         List<RulesetDeployment> deploymentsWithCompilationError = new ArrayList<>();
         List<RulesetDeployment> deploymentsWithExecutionError = new ArrayList<>();
-        for (RulesetDeployment deployment : deployments.values()) {
+        for (RulesetDeployment deployment : deploymentList) {
             if (deployment.getStatus() == COMPILATION_ERROR) {
                 deploymentsWithCompilationError.add(deployment);
             } else if (deployment.getStatus() == EXECUTION_ERROR) {
@@ -184,7 +220,7 @@ public class RulesEngine<T extends Ruleset> {
      * started.
      */
     public boolean isDeployed() {
-        return deployments.values().stream().allMatch(rd -> rd.getStatus() == DEPLOYED);
+        return deploymentList.stream().allMatch(rd -> rd.getStatus() == DEPLOYED);
     }
 
     public void addRuleset(T ruleset) {
@@ -193,7 +229,10 @@ public class RulesEngine<T extends Ruleset> {
             LOG.finest("Ruleset is empty so no rules to deploy");
             return;
         }
+        withLock(toString() + "::addRuleset", () -> addRulesetLocked(ruleset));
+    }
 
+    protected void addRulesetLocked(T ruleset) {
         RulesetDeployment deployment = deployments.get(ruleset.getId());
 
         stop();
@@ -227,9 +266,15 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     /**
-     * @return <code>true</code> if this rules engine has no deployments.
+     * @return <code>true</code> if this rules engine has no deployments, <code>false</code> if it has deployments
+     * or the thread was interrupted while waiting for the lock.
      */
     public boolean removeRuleset(Ruleset ruleset) {
+        Boolean removed = withLockReturning(toString() + "::removeRuleset", () -> removeRulesetLocked(ruleset));
+        return removed != null && removed;
+    }
+
+    protected boolean removeRulesetLocked(Ruleset ruleset) {
         if (!deployments.containsKey(ruleset.getId())) {
             LOG.finer("Ruleset cannot be retracted as it was never deployed: " + ruleset);
             return deployments.size() == 0;
@@ -263,6 +308,10 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     public void start() {
+        withLock(toString() + "::start", this::startLocked);
+    }
+
+    protected void startLocked() {
         if (isRunning()) {
             return;
         }
@@ -280,6 +329,7 @@ public class RulesEngine<T extends Ruleset> {
         LOG.info("Starting: " + this);
         running = true;
         trackLocationPredicates = true;
+        evaluateAllRules = true;
         fire();
 
         // Start a background stats printer if INFO level logging is enabled
@@ -294,39 +344,73 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     public void fire() {
-        withLock(toString() + "::scheduleFire", () -> {
-            // Schedule a firing within the guaranteed expiration time (so not immediately), and
-            // only if the last firing is done. This effectively limits how often the rules engine
-            // will fire, only once within the guaranteed minimum expiration time.
-            if (fireTimer == null || fireTimer.isDone()) {
-                LOG.fine("Scheduling rules firing on: " + this);
-                fireTimer = executorService.schedule(
-                    () -> withLock(RulesEngine.this.toString() + "::fire", () -> {
-
-                        // Are temporary facts present before rules are fired?
-                        boolean hadTemporaryFactsBefore = facts.hasTemporaryFacts();
-
-                        // Process rules for all deployments
-                        fireAllDeployments();
-
-                        // If there are temporary facts, or if there were some before and
-                        // now they are gone, schedule a new firing to guarantee processing
-                        // of expired and removed temporary facts
-                        if ((facts.hasTemporaryFacts() || (hadTemporaryFactsBefore && !facts.hasTemporaryFacts()))
-                            && !disableTemporaryFactExpiration) {
-                            LOG.fine("Temporary facts require firing rules on: " + this);
-                            executorService.schedule(this::fire, 0);
-                        } else if (!disableTemporaryFactExpiration) {
-                            LOG.fine("No temporary facts present/changed when firing rules on: " + this);
-                        }
-
-                    }),
-                    TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS
-                                                    );
+        // Schedule a firing within the guaranteed expiration time (so not immediately), and
+        // only if no firing is pending. This effectively limits how often the rules engine
+        // will fire, only once within the guaranteed minimum expiration time. The firing is
+        // executed on the lane of this engine, so firings of one engine never overlap.
+        if (firePending.compareAndSet(false, true)) {
+            LOG.fine("Scheduling rules firing on: " + this);
+            fireTimer = executorService.schedule(
+                () -> firingExecutor.execute(id, this::fireScheduled),
+                TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS
+            );
+        }
+    }
+
+    protected void fireScheduled() {
+        // Changes made from now on require another firing
+        firePending.set(false);
+
+        withLock(toString() + "::fire", () -> {
+
+            // Are temporary facts present before rules are fired?
+            boolean hadTemporaryFactsBefore = facts.hasTemporaryFacts();
+
+            // Process rules for all deployments
+            fireAllDeployments();
+
+            if (disableTemporaryFactExpiration || !running) {
+                return;
+            }
+
+            // If there are temporary facts, wake up when the next one expires; if there were
+            // some before and now they are gone, schedule a new firing to guarantee processing
+            // of removed temporary facts
+            Optional<Long> nextExpiryTimestamp = facts.getNextExpiryTimestamp();
+            if (nextExpiryTimestamp.isPresent()) {
+                LOG.fine("Temporary facts require firing rules on: " + this);
+                scheduleExpiry(nextExpiryTimestamp.get());
+            } else if (hadTemporaryFactsBefore) {
+                LOG.fine("Temporary facts removed, firing rules on: " + this);
+                fire();
+            } else {
+                LOG.fine("No temporary facts present/changed when firing rules on: " + this);
             }
         });
     }
 
+    protected void scheduleExpiry(long expiryTimestamp) {
+        if (timerService.getClock() == TimerService.Clock.PSEUDO) {
+            // The pseudo clock can be advanced at any time, poll for expired facts instead
+            fire();
+            return;
+        }
+
+        if (expiryTimer != null) {
+            if (expiryTimerTimestamp == expiryTimestamp && !expiryTimer.isDone())
+                return;
+            expiryTimer.cancel(false);
+        }
+
+        // A fact has expired after its expiry timestamp, and firing is delayed by the guaranteed minimum expiration
+        long delayMillis = Math.max(
+            0,
+            expiryTimestamp + 1 - timerService.getCurrentTimeMillis() - TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS
+        );
+        expiryTimerTimestamp = expiryTimestamp;
+        expiryTimer = executorService.schedule(this::fire, delayMillis);
+    }
+
     protected void fireAllDeployments() {
         if (!running) {
             return;
@@ -343,7 +427,46 @@ public class RulesEngine<T extends Ruleset> {
         // Remove any expired temporary facts
         facts.removeExpiredTemporaryFacts();
 
+        if (!incrementalEvaluation) {
+            fireDeployments(clock, null);
+        } else {
+            // All rules must be evaluated after start and when location predicates are collected, otherwise
+            // only the rules depending on changed facts, until their actions stop changing facts
+            boolean evaluateAll = evaluateAllRules || trackLocationPredicates;
+            evaluateAllRules = false;
+            int rounds = 0;
+            do {
+                RulesFacts.FactChanges changes = facts.takeChanges();
+                RULES_LOG.finest("Incremental evaluation of " + changes + " on: " + this);
+                if (!fireDeployments(clock, evaluateAll ? null : changes))
+                    break;
+                evaluateAll = false;
+            } while (running && facts.hasChanges() && ++rounds < MAX_INCREMENTAL_EVALUATION_ROUNDS);
+
+            if (running && facts.hasChanges()) {
+                LOG.fine("Facts still changing after " + rounds + " incremental evaluation rounds, firing again on: " + this);
+                fire();
+            }
+        }
+
+        if (trackLocationPredicates) {
+            trackLocationPredicates = false;
+            if (assetLocationPredicatesConsumer != null) {
+                processLocationRules(facts.stopTrackingLocationRules());
+            }
+        }
+    }
+
+    /**
+     * @param changes In incremental evaluation mode the facts changed since the last firing, or <code>null</code> to
+     *                evaluate all rules.
+     * @return <code>false</code> if firing failed and the engine was stopped.
+     */
+    protected boolean fireDeployments(RulesClock clock, RulesFacts.FactChanges changes) {
         for (RulesetDeployment deployment : deployments.values()) {
+            Rules rules = incrementalEvaluation ? deployment.getRules(changes) : deployment.getRules();
+            if (rules.isEmpty())
+                continue;
             try {
                 RULES_LOG.fine("Firing rules @" + clock + " of: " + deployment);
 
@@ -357,7 +480,7 @@ public class RulesEngine<T extends Ruleset> {
                 facts.reset();
 
                 long startTimestamp = System.currentTimeMillis();
-                engine.fire(deployment.getRules(), facts);
+                engine.fire(rules, facts);
                 RULES_LOG.fine("Rules executed in: " + (System.currentTimeMillis() - startTimestamp) + "ms");
 
             } catch (Exception ex) {
@@ -371,19 +494,13 @@ public class RulesEngine<T extends Ruleset> {
                 stop();
 
                 // TODO We skip any other deployment when we hit the first error, good idea?
-                break;
+                return false;
             } finally {
                 // Reset facts after this firing (loop detection etc.)
                 facts.reset();
             }
         }
-
-        if (trackLocationPredicates) {
-            trackLocationPredicates = false;
-            if (assetLocationPredicatesConsumer != null) {
-                processLocationRules(facts.stopTrackingLocationRules());
-            }
-        }
+        return true;
     }
 
     public void stop() {
@@ -391,46 +508,128 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     public void stop(boolean systemShutdownInProgress) {
+        withLock(toString() + "::stop", () -> stopLocked(systemShutdownInProgress));
+    }
+
+    protected void stopLocked(boolean systemShutdownInProgress) {
         if (!isRunning()) {
             return;
         }
         LOG.info("Stopping: " + this);
         if (fireTimer != null) {
-            fireTimer.cancel(true);
+            fireTimer.cancel(false);
             fireTimer = null;
         }
+        firePending.set(false);
+        if (expiryTimer != null) {
+            expiryTimer.cancel(false);
+            expiryTimer = null;
+        }
         if (statsTimer != null) {
             statsTimer.cancel(true);
             statsTimer = null;
         }
         running = false;
 
-        if (!systemShutdownInProgress && assetLocationPredicatesConsumer != null) {
-            assetLocationPredicatesConsumer.accept(this, null);
+        if (!systemShutdownInProgress) {
+            processLocationRules(null);
         }
     }
 
     public void updateFact(AssetState assetState, boolean fireImmediately) {
-        facts.putAssetState(assetState);
-        trackLocationPredicates = trackLocationPredicates || assetState.getAttributeName().equals("location");
+        queueFactChange(() -> {
+            facts.putAssetState(assetState);
+            trackLocationPredicates = trackLocationPredicates || assetState.getAttributeName().equals("location");
+        });
         if (fireImmediately) {
             fire();
         }
     }
 
     public void removeFact(AssetState assetState) {
-        facts.removeAssetState(assetState);
-        trackLocationPredicates = trackLocationPredicates || assetState.getAttributeName().equals("location");
+        queueFactChange(() -> {
+            facts.removeAssetState(assetState);
+            trackLocationPredicates = trackLocationPredicates || assetState.getAttributeName().equals("location");
+        });
         fire();
     }
 
     public void insertFact(String expires, AssetState assetState) {
-        facts.insertAssetEvent(expires, assetState);
-        trackLocationPredicates = trackLocationPredicates || assetState.getAttributeName().equals("location");
+        queueFactChange(() -> {
+            facts.insertAssetEvent(expires, assetState);
+            trackLocationPredicates = trackLocationPredicates || assetState.getAttributeName().equals("location");
+        });
         fire();
     }
 
+    /**
+     * Queues the fact change and applies it immediately if the lock of this engine is available, otherwise the
+     * current holder of the lock applies it when releasing the lock.
+     */
+    protected void queueFactChange(Runnable change) {
+        factChanges.add(change);
+        applyQueuedFactChanges();
+    }
+
+    protected void applyQueuedFactChanges() {
+        // Another thread might have queued a change after the holder of the lock applied the queue
+        while (!factChanges.isEmpty() && lock.tryLock()) {
+            try {
+                applyFactChanges();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the lock.
+     */
+    protected void applyFactChanges() {
+        Runnable change;
+        while ((change = factChanges.poll()) != null) {
+            change.run();
+        }
+    }
+
+    protected void withLock(String info, Runnable runnable) {
+        withLockReturning(info, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * Obtain the lock of this engine within {@link GlobalLock#getLockTimeoutMillis()} or throw {@link
+     * IllegalStateException}, queued fact changes are applied before the guarded code is executed. If the thread is
+     * interrupted while waiting, the guarded code is not executed, the interrupt status is restored and
+     * <code>null</code> is returned.
+     */
+    protected <R> R withLockReturning(String info, Supplier<R> supplier) {
+        try {
+            if (!lock.tryLock(GlobalLock.getLockTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException(
+                    "Could not acquire lock after waiting " + GlobalLock.getLockTimeoutMillis() + "ms: " + info
+                );
+            }
+        } catch (InterruptedException ex) {
+            LOG.log(Level.FINEST, "Interrupted while waiting for lock: " + info);
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try {
+            applyFactChanges();
+            return supplier.get();
+        } finally {
+            lock.unlock();
+            if (!lock.isHeldByCurrentThread()) {
+                applyQueuedFactChanges();
+            }
+        }
+    }
+
     protected void updateDeploymentInfo() {
+        deploymentList = new ArrayList<>(deployments.values());
         deploymentInfo = Arrays.toString(
             deployments.values().stream()
                 .map(RulesetDeployment::toString)
@@ -466,7 +665,8 @@ public class RulesEngine<T extends Ruleset> {
      */
     protected void processLocationRules(List<AssetStateLocationPredicates> assetStateLocationPredicates) {
         if (assetLocationPredicatesConsumer != null) {
-            assetLocationPredicatesConsumer.accept(this, assetStateLocationPredicates);
+            // In order on the lane of this engine, after the lock has been released
+            firingExecutor.execute(id, () -> assetLocationPredicatesConsumer.accept(this, assetStateLocationPredicates));
         }
     }
 
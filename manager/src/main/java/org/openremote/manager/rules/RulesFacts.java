@@ -25,6 +25,9 @@ import org.jeasy.rules.api.RuleListener;
 import org.openremote.model.query.AssetQuery;
 import org.openremote.model.attribute.AttributeEvent;
 import org.openremote.model.attribute.AttributeExecuteStatus;
+import org.openremote.model.attribute.AttributeType;
+import org.openremote.model.query.BaseAssetQuery;
+import org.openremote.model.query.filter.AttributePredicate;
 import org.openremote.model.query.filter.LocationPredicate;
 import org.openremote.model.rules.AssetState;
 import org.openremote.model.rules.Assets;
@@ -49,31 +52,227 @@ public class RulesFacts extends Facts implements RuleListener {
 
     public static final int INITIAL_CAPACITY = 100000;
 
+    // Matching fewer candidate asset states in parallel costs more than it saves
+    public static final int PARALLEL_MATCH_THRESHOLD = 10000;
+
     public static final String CLOCK = "INTERNAL_CLOCK";
     public static final String ASSET_STATES = "INTERNAL_ASSET_STATES";
     public static final String ASSET_EVENTS = "INTERNAL_ASSET_EVENTS";
     public static final String EXECUTION_VARS = "INTERNAL_EXECUTION_VAR";
     public static final String ANONYMOUS_FACTS = "ANONYMOUS_FACTS";
 
+    // Beyond these limits, any asset state change is considered relevant
+    public static final int MAX_TRACKED_ASSET_STATE_CHANGES = 1000;
+    public static final int MAX_RULE_ASSET_STATE_DEPENDENCIES = 100;
+
+    /**
+     * The facts changed since changes were last taken, only tracked in incremental evaluation mode.
+     */
+    public static class FactChanges {
+
+        final protected Set<AssetState> assetStates;
+        final protected boolean allAssetStates;
+        final protected boolean otherFacts;
+
+        public FactChanges(Set<AssetState> assetStates, boolean allAssetStates, boolean otherFacts) {
+            this.assetStates = assetStates;
+            this.allAssetStates = allAssetStates;
+            this.otherFacts = otherFacts;
+        }
+
+        public boolean isEmpty() {
+            return assetStates.isEmpty() && !allAssetStates && !otherFacts;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                "assetStates=" + assetStates.size() +
+                ", allAssetStates=" + allAssetStates +
+                ", otherFacts=" + otherFacts +
+                '}';
+        }
+    }
+
+    /**
+     * An asset state restriction of an {@link AssetQuery}, only asset states with the given identifiers, type, and
+     * attribute name can match the query. These properties of an asset state never change, so a query result can
+     * only change when an asset state with these properties changes.
+     */
+    public static class AssetStateDependency {
+
+        final protected Set<String> ids;
+        final protected String type;
+        final protected String attributeName;
+
+        public AssetStateDependency(BaseAssetQuery query) {
+            this.ids = query.ids != null ? new HashSet<>(query.ids) : null;
+            this.type = AssetStateIndex.getExactValue(query.type);
+            String attributeName = null;
+            if (query.attribute != null) {
+                for (AttributePredicate attributePredicate : query.attribute) {
+                    if (attributePredicate != null && (attributeName = AssetStateIndex.getExactValue(attributePredicate.name)) != null)
+                        break;
+                }
+            }
+            this.attributeName = attributeName;
+        }
+
+        public boolean matches(AssetState assetState) {
+            return (ids == null || ids.contains(assetState.getId()))
+                && (type == null || type.equals(assetState.getTypeString()))
+                && (attributeName == null || attributeName.equals(assetState.getAttributeName()));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            AssetStateDependency that = (AssetStateDependency) o;
+            return Objects.equals(ids, that.ids) &&
+                Objects.equals(type, that.type) &&
+                Objects.equals(attributeName, that.attributeName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ids, type, attributeName);
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                "ids=" + ids +
+                ", type='" + type + '\'' +
+                ", attributeName='" + attributeName + '\'' +
+                '}';
+        }
+    }
+
+    /**
+     * The facts read by the condition of a rule in its last evaluation. Asset state dependencies are inferred from
+     * the queries of {@link #matchAssetState} and {@link #matchAssetEvent}, reading any other fact or the clock
+     * makes the rule depend on all facts. A rule which has not been evaluated yet depends on all facts.
+     */
+    public static class RuleDependencies {
+
+        protected boolean allFacts = true;
+        protected boolean allAssetStates;
+        final protected Set<AssetStateDependency> assetStates = new HashSet<>();
+
+        protected void reset() {
+            allFacts = false;
+            allAssetStates = false;
+            assetStates.clear();
+        }
+
+        protected void addAssetState(AssetStateDependency dependency) {
+            if (allAssetStates)
+                return;
+            assetStates.add(dependency);
+            if (assetStates.size() > MAX_RULE_ASSET_STATE_DEPENDENCIES) {
+                allAssetStates = true;
+                assetStates.clear();
+            }
+        }
+
+        /**
+         * @return <code>true</code> if the condition of the rule might evaluate differently after the changes.
+         */
+        public boolean isAffectedBy(FactChanges changes) {
+            if (allFacts)
+                return true;
+            if (!allAssetStates && assetStates.isEmpty())
+                return false;
+            if (allAssetStates || changes.allAssetStates)
+                return !changes.assetStates.isEmpty() || changes.allAssetStates;
+            for (AssetState assetState : changes.assetStates) {
+                for (AssetStateDependency dependency : assetStates) {
+                    if (dependency.matches(assetState))
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                "allFacts=" + allFacts +
+                ", allAssetStates=" + allAssetStates +
+                ", assetStates=" + assetStates +
+                '}';
+        }
+    }
+
+    /**
+     * The expiry of a temporary fact, the name is {@link #ASSET_EVENTS}, {@link #ANONYMOUS_FACTS}, or the name of a
+     * named fact. Temporary facts which have been removed or replaced before they expire are skipped lazily.
+     */
+    protected static class Expiry implements Comparable<Expiry> {
+
+        final protected long expiryTimestamp;
+        final protected String name;
+        final protected TemporaryFact<?> fact;
+
+        public Expiry(String name, TemporaryFact<?> fact) {
+            this.expiryTimestamp = fact.getTimestamp() + fact.getExpirationMilliseconds();
+            this.name = name;
+            this.fact = fact;
+        }
+
+        public boolean isExpired(long currentTimestamp) {
+            return expiryTimestamp < currentTimestamp;
+        }
+
+        @Override
+        public int compareTo(Expiry that) {
+            return Long.compare(expiryTimestamp, that.expiryTimestamp);
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                "expiryTimestamp=" + expiryTimestamp +
+                ", name='" + name + '\'' +
+                ", fact=" + fact +
+                '}';
+        }
+    }
+
     final protected Assets assetsFacade;
     final protected Object loggingContext;
     final protected Logger LOG;
 
     public RulesClock clock;
 
-    final protected Map<String, Collection<AssetState>> assetIdIndex = new HashMap<>();
-    final protected Map<String, Collection<AssetState>> assetTypeIndex = new HashMap<>();
+    final protected AssetStateIndex assetStateIndex = new AssetStateIndex();
+
+    // Temporary facts ordered by expiry, so only expired facts are visited when expiring facts
+    final protected PriorityQueue<Expiry> expiryQueue = new PriorityQueue<>();
+
+    // Instances of the temporary anonymous facts, so the expiry queue can check their presence without a scan
+    final protected Set<Object> anonymousTemporaryFacts = Collections.newSetFromMap(new IdentityHashMap<>());
 
     protected int triggerCount;
     protected boolean trackLocationRules;
     protected Map<String, Set<LocationPredicate>> assetStateLocationPredicateMap = null;
 
+    // Incremental evaluation mode
+    protected boolean trackChanges;
+    protected Set<AssetState> changedAssetStates = new HashSet<>();
+    protected boolean changedAllAssetStates;
+    protected boolean changedOtherFacts;
+    protected RuleDependencies evaluatedRuleDependencies;
+    protected int internalFactAccess;
+
     public RulesFacts(Assets assetsFacade, Object loggingContext, Logger logger) {
         this.assetsFacade = assetsFacade;
         this.loggingContext = loggingContext;
         this.LOG = logger;
 
-        asMap().put(ASSET_STATES, new ArrayDeque(INITIAL_CAPACITY));
+        // Asset states are unique by asset attribute, a set makes replacing them cheap
+        asMap().put(ASSET_STATES, new LinkedHashSet(INITIAL_CAPACITY));
         asMap().put(ASSET_EVENTS, new ArrayDeque(INITIAL_CAPACITY));
         asMap().put(EXECUTION_VARS, new HashMap());
         asMap().put(ANONYMOUS_FACTS, new ArrayDeque(INITIAL_CAPACITY));
@@ -96,12 +295,74 @@ public class RulesFacts extends Facts implements RuleListener {
                          assetStateSetEntry.getValue())).collect(Collectors.toList());
     }
 
+    protected void setTrackChanges(boolean trackChanges) {
+        this.trackChanges = trackChanges;
+    }
+
+    /**
+     * @return The facts changed since the last call, the tracked changes are cleared.
+     */
+    protected FactChanges takeChanges() {
+        FactChanges changes = new FactChanges(changedAssetStates, changedAllAssetStates, changedOtherFacts);
+        changedAssetStates = new HashSet<>();
+        changedAllAssetStates = false;
+        changedOtherFacts = false;
+        return changes;
+    }
+
+    protected boolean hasChanges() {
+        return !changedAssetStates.isEmpty() || changedAllAssetStates || changedOtherFacts;
+    }
+
+    protected void assetStateChanged(AssetState assetState) {
+        if (!trackChanges || changedAllAssetStates)
+            return;
+        changedAssetStates.add(assetState);
+        if (changedAssetStates.size() > MAX_TRACKED_ASSET_STATE_CHANGES) {
+            changedAllAssetStates = true;
+            changedAssetStates.clear();
+        }
+    }
+
+    protected void otherFactChanged() {
+        if (trackChanges)
+            changedOtherFacts = true;
+    }
+
+    /**
+     * Evaluates the condition of the rule and records the facts it reads as its dependencies.
+     */
+    protected boolean evaluate(Rule rule, RuleDependencies dependencies) {
+        RuleDependencies previous = evaluatedRuleDependencies;
+        dependencies.reset();
+        evaluatedRuleDependencies = dependencies;
+        try {
+            return rule.evaluate(this);
+        } catch (RuntimeException ex) {
+            dependencies.allFacts = true;
+            throw ex;
+        } finally {
+            evaluatedRuleDependencies = previous;
+        }
+    }
+
+    protected void dependsOnAllFacts() {
+        if (evaluatedRuleDependencies != null && internalFactAccess == 0)
+            evaluatedRuleDependencies.allFacts = true;
+    }
+
+    protected void dependsOnAssetStates(BaseAssetQuery query) {
+        if (evaluatedRuleDependencies != null && internalFactAccess == 0)
+            evaluatedRuleDependencies.addAssetState(new AssetStateDependency(query));
+    }
+
     public void setClock(RulesClock clock) {
         this.clock = clock;
         asMap().put(CLOCK, clock);
     }
 
     public RulesClock getClock() {
+        dependsOnAllFacts();
         return clock;
     }
 
@@ -121,6 +382,7 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public Map<String, Object> getNamedFacts() {
+        dependsOnAllFacts();
         return asMap().entrySet().stream().filter(entry ->
             !entry.getKey().equals(CLOCK)
                 && !entry.getKey().equals(ASSET_STATES)
@@ -162,6 +424,9 @@ public class RulesFacts extends Facts implements RuleListener {
     @SuppressWarnings("unchecked")
     @Override
     public <T> T get(String name) {
+        if (!EXECUTION_VARS.equals(name)) {
+            dependsOnAllFacts();
+        }
         Object fact = super.get(name);
         if (fact != null && fact instanceof TemporaryFact) {
             TemporaryFact temporaryFact = (TemporaryFact) fact;
@@ -188,6 +453,10 @@ public class RulesFacts extends Facts implements RuleListener {
             LOG.finest("Fact change (UPDATE): " + name + " => " + fact + " - on: " + loggingContext);
         }
         super.put(name, fact);
+        if (fact instanceof TemporaryFact) {
+            expiryQueue.add(new Expiry(name, (TemporaryFact<?>) fact));
+        }
+        otherFactChanged();
         return this;
     }
 
@@ -195,8 +464,21 @@ public class RulesFacts extends Facts implements RuleListener {
         if (LOG.isLoggable(Level.FINEST)) {
             LOG.finest("Fact change (UPDATE): " + o + " - on: " + loggingContext);
         }
-        getAnonymousFacts().remove(o);
+        Iterator<Object> it = getAnonymousFacts().iterator();
+        while (it.hasNext()) {
+            Object fact = it.next();
+            if (Objects.equals(o, fact)) {
+                it.remove();
+                anonymousTemporaryFacts.remove(fact);
+                break;
+            }
+        }
         getAnonymousFacts().add(o);
+        if (o instanceof TemporaryFact) {
+            anonymousTemporaryFacts.add(o);
+            expiryQueue.add(new Expiry(ANONYMOUS_FACTS, (TemporaryFact<?>) o));
+        }
+        otherFactChanged();
         return this;
     }
 
@@ -206,17 +488,9 @@ public class RulesFacts extends Facts implements RuleListener {
         }
         getAssetStates().remove(assetState);
         getAssetStates().add(assetState);
+        assetStateIndex.put(assetState);
 
-        // Maintain index of all asset states for this asset by ID
-        assetIdIndex.putIfAbsent(assetState.getId(), new ArrayDeque<>());
-        assetIdIndex.get(assetState.getId()).remove(assetState);
-        assetIdIndex.get(assetState.getId()).add(assetState);
-
-        // Maintain index of all asset states for this asset by type
-        assetTypeIndex.putIfAbsent(assetState.getTypeString(), new ArrayDeque<>());
-        assetTypeIndex.get(assetState.getTypeString()).remove(assetState);
-        assetTypeIndex.get(assetState.getTypeString()).add(assetState);
-
+        assetStateChanged(assetState);
         return this;
     }
 
@@ -225,19 +499,9 @@ public class RulesFacts extends Facts implements RuleListener {
             LOG.finest("Fact change (DELETE): " + assetState + " - on: " + loggingContext);
         }
         getAssetStates().remove(assetState);
+        assetStateIndex.remove(assetState);
 
-        // Maintain index of all asset states for this asset by ID
-        Collection<AssetState> assetIdIndexCollection = assetIdIndex.get(assetState.getId());
-        if (assetIdIndexCollection != null) {
-            assetIdIndexCollection.remove(assetState);
-        }
-
-        // Maintain index of all asset states for this asset by type
-        Collection<AssetState> assetTypeIndexCollection = assetTypeIndex.get(assetState.getTypeString());
-        if (assetTypeIndexCollection != null) {
-            assetTypeIndexCollection.remove(assetState);
-        }
-
+        assetStateChanged(assetState);
         return this;
     }
 
@@ -251,6 +515,8 @@ public class RulesFacts extends Facts implements RuleListener {
             LOG.finest("Fact change (INSERT): " + fact + " - on: " + loggingContext);
         }
         getAssetEvents().add(fact);
+        expiryQueue.add(new Expiry(ASSET_EVENTS, fact));
+        assetStateChanged(assetState);
         return this;
     }
 
@@ -267,7 +533,11 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public RulesFacts putTemporary(long expires, Object value) {
-        getAnonymousFacts().add(new TemporaryFact<>((long) getClock().getTimestamp(), expires, value));
+        TemporaryFact<Object> fact = new TemporaryFact<>((long) getClock().getTimestamp(), expires, value);
+        getAnonymousFacts().add(fact);
+        anonymousTemporaryFacts.add(fact);
+        expiryQueue.add(new Expiry(ANONYMOUS_FACTS, fact));
+        otherFactChanged();
         return this;
     }
 
@@ -285,7 +555,18 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public boolean hasTemporaryFacts() {
-        return getTemporaryFacts().count() > 0;
+        return getNextExpiryTimestamp().isPresent();
+    }
+
+    /**
+     * @return The time when the next temporary fact expires, it is removed by the first firing after that time.
+     */
+    public Optional<Long> getNextExpiryTimestamp() {
+        Expiry expiry;
+        while ((expiry = expiryQueue.peek()) != null && !isPresent(expiry)) {
+            expiryQueue.poll();
+        }
+        return expiry != null ? Optional.of(expiry.expiryTimestamp) : Optional.empty();
     }
 
     public Stream<TemporaryFact> getTemporaryFacts() {
@@ -301,16 +582,21 @@ public class RulesFacts extends Facts implements RuleListener {
     @Override
     public RulesFacts remove(String name) {
         super.remove(name);
+        otherFactChanged();
         return this;
     }
 
     public RulesFacts remove(Object fact) {
-        getAnonymousFacts().removeIf(anonFact -> {
-            if (anonFact instanceof TemporaryFact) {
-                anonFact = ((TemporaryFact) anonFact).getFact();
+        Iterator<Object> it = getAnonymousFacts().iterator();
+        while (it.hasNext()) {
+            Object anonFact = it.next();
+            Object value = anonFact instanceof TemporaryFact ? ((TemporaryFact) anonFact).getFact() : anonFact;
+            if (value.equals(fact)) {
+                it.remove();
+                anonymousTemporaryFacts.remove(anonFact);
             }
-            return anonFact.equals(fact);
-        });
+        }
+        otherFactChanged();
         return this;
     }
 
@@ -426,15 +712,24 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public Stream<AssetState> matchAssetState(AssetQuery assetQuery) {
+        dependsOnAssetStates(assetQuery);
+        internalFactAccess++;
+        try {
+            return matchAssetStateInternal(assetQuery);
+        } finally {
+            internalFactAccess--;
+        }
+    }
 
+    protected Stream<AssetState> matchAssetStateInternal(AssetQuery assetQuery) {
         if (trackLocationRules) {
             if (assetQuery.location != null) {
                 LOG.fine("Location predicate found");
                 // Collect asset states only where the attribute is location (location predicates only make sense when the location
                 // attribute is exposed to rules - we don't support RULE_EVENT facts just RULE_STATE
                 if (assetStateLocationPredicateMap == null) {
-                    // TODO: Use static reference to well known location attribute when it is implemented
-                    Collection<AssetState> locationAssetStates = getAssetStates().stream().filter(assetState -> assetState.getAttributeName().equalsIgnoreCase("location")).collect(Collectors.toSet());
+                    // Includes asset states without a location value, unlike the location index
+                    Collection<AssetState> locationAssetStates = assetStateIndex.getByAttributeName(AttributeType.LOCATION.getName());
                     assetStateLocationPredicateMap = new HashMap<>(locationAssetStates.size());
                     locationAssetStates.forEach(assetState -> assetStateLocationPredicateMap.put(assetState.getId(), new HashSet<>()));
                 }
@@ -443,24 +738,17 @@ public class RulesFacts extends Facts implements RuleListener {
             }
         }
 
-        Predicate<AssetState> p = new AssetQueryPredicate(assetQuery);
-
-        // Match against all asset states by default
-        Stream<AssetState> assetStates = getAssetStates().stream();
-
-        // If the query is by asset ID, look up a smaller stream on asset ID index
-        Collection<AssetState> assetStatesForId;
-        if (assetQuery.ids != null && ((assetStatesForId = assetIdIndex.get(assetQuery.ids)) != null)) {
-            return assetStatesForId.stream().parallel().filter(p);
-        }
-
-        // If the query is by asset type, look up a smaller stream on asset type index
-        Collection<AssetState> assetStatesForType;
-        if (assetQuery.type != null && ((assetStatesForType = assetTypeIndex.get(assetQuery.type.value)) != null)) {
-            return assetStatesForType.stream().parallel().filter(p);
+        // Match against the smallest set of candidates from the indexes, or all asset states
+        AssetStateIndex.Candidates candidates = assetStateIndex.getCandidates(assetQuery);
+        Collection<AssetState> assetStates = candidates != null ? candidates.getAssetStates() : getAssetStates();
+        if (assetStates.isEmpty()) {
+            return Stream.empty();
         }
 
-        return assetStates.parallel().filter(p);
+        Predicate<AssetState> p = new AssetQueryPredicate(assetQuery);
+        return assetStates.size() >= PARALLEL_MATCH_THRESHOLD
+            ? assetStates.stream().parallel().filter(p)
+            : assetStates.stream().filter(p);
     }
 
     public Optional<TemporaryFact<AssetState>> matchFirstAssetEvent(AssetQuery assetQuery) {
@@ -472,9 +760,15 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public Stream<TemporaryFact<AssetState>> matchAssetEvent(AssetQuery assetQuery) {
-        Predicate<AssetState> p = new AssetQueryPredicate(assetQuery);
-        return getAssetEvents().stream().parallel()
-            .filter(fact -> matchFact(fact, AssetState.class, p).isPresent());
+        dependsOnAssetStates(assetQuery);
+        internalFactAccess++;
+        try {
+            Predicate<AssetState> p = new AssetQueryPredicate(assetQuery);
+            return getAssetEvents().stream().parallel()
+                .filter(fact -> matchFact(fact, AssetState.class, p).isPresent());
+        } finally {
+            internalFactAccess--;
+        }
     }
 
     public RulesFacts updateAssetState(String assetId, String attributeName, Value value) {
@@ -510,16 +804,8 @@ public class RulesFacts extends Facts implements RuleListener {
                     if (LOG.isLoggable(Level.FINEST)) {
                         LOG.finest("Fact change (INTERNAL DELETE): " + assetState + " - on: " + loggingContext);
                     }
-                    // Maintain index of all asset states for this asset by ID
-                    Collection<AssetState> assetIdIndexCollection = assetIdIndex.get(assetState.getId());
-                    if (assetIdIndexCollection != null) {
-                        assetIdIndexCollection.remove(assetState);
-                    }
-                    // Maintain index of all asset states for this asset by type
-                    Collection<AssetState> assetTypeIndexCollection = assetTypeIndex.get(assetState.getTypeString());
-                    if (assetTypeIndexCollection != null) {
-                        assetTypeIndexCollection.remove(assetState);
-                    }
+                    assetStateIndex.remove(assetState);
+                    assetStateChanged(assetState);
                 }
                 return invalid;
             });
@@ -532,41 +818,64 @@ public class RulesFacts extends Facts implements RuleListener {
         return this;
     }
 
+    @SuppressWarnings("unchecked")
     public void removeExpiredTemporaryFacts() {
         long currentTimestamp = (long) getClock().getTimestamp();
-        getAssetEvents().removeIf(fact -> {
-            boolean result = fact.isExpired(currentTimestamp);
-            if (result && LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Fact change (DELETE EXPIRED): " + fact + " - on: " + loggingContext);
-            }
-            return result;
-        });
-        asMap().entrySet().removeIf(entry -> {
-            if (entry.getKey().equals(CLOCK)
-                || entry.getKey().equals(ASSET_STATES)
-                || entry.getKey().equals(ASSET_EVENTS)
-                || entry.getKey().equals(EXECUTION_VARS)
-                || entry.getKey().equals(ANONYMOUS_FACTS)
-                || !(entry.getValue() instanceof TemporaryFact)) {
-                return false;
+        Expiry expiry;
+        while ((expiry = expiryQueue.peek()) != null && expiry.isExpired(currentTimestamp)) {
+            expiryQueue.poll();
+            if (!removeTemporaryFact(expiry)) {
+                continue;
             }
-            boolean result = ((TemporaryFact) entry.getValue()).isExpired(currentTimestamp);
-            if (result && LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Fact change (DELETE EXPIRED): " + entry.getValue() + " - on: " + loggingContext);
+            if (LOG.isLoggable(Level.FINEST)) {
+                LOG.finest("Fact change (DELETE EXPIRED): " + expiry.fact + " - on: " + loggingContext);
             }
-            return result;
-        });
-        getAnonymousFacts().removeIf(fact -> {
-            boolean result = false;
-            if (fact instanceof TemporaryFact) {
-                TemporaryFact temporaryFact = (TemporaryFact) fact;
-                result = temporaryFact.isExpired((long) getClock().getTimestamp());
+            if (ASSET_EVENTS.equals(expiry.name)) {
+                assetStateChanged(((TemporaryFact<AssetState>) expiry.fact).getFact());
+            } else {
+                otherFactChanged();
             }
-            if (result && LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Fact change (DELETE EXPIRED): " + fact + " - on: " + loggingContext);
+        }
+    }
+
+    protected boolean isPresent(Expiry expiry) {
+        switch (expiry.name) {
+            case ASSET_EVENTS:
+                // Asset events are only removed when they expire
+                return true;
+            case ANONYMOUS_FACTS:
+                return anonymousTemporaryFacts.contains(expiry.fact);
+            default:
+                return asMap().get(expiry.name) == expiry.fact;
+        }
+    }
+
+    protected boolean removeTemporaryFact(Expiry expiry) {
+        switch (expiry.name) {
+            case ASSET_EVENTS:
+                return removeInstance(getAssetEvents(), expiry.fact);
+            case ANONYMOUS_FACTS:
+                return anonymousTemporaryFacts.remove(expiry.fact) && removeInstance(getAnonymousFacts(), expiry.fact);
+            default:
+                if (asMap().get(expiry.name) != expiry.fact)
+                    return false;
+                asMap().remove(expiry.name);
+                return true;
+        }
+    }
+
+    /**
+     * Facts usually expire in the order they were added, so the instance is found near the head.
+     */
+    protected static boolean removeInstance(Collection<?> facts, Object fact) {
+        Iterator<?> it = facts.iterator();
+        while (it.hasNext()) {
+            if (it.next() == fact) {
+                it.remove();
+                return true;
             }
-            return result;
-        });
+        }
+        return false;
     }
 
     public boolean logFacts(Logger logger) {
@@ -22,6 +22,7 @@ package org.openremote.manager.rules;
 import org.apache.camel.builder.RouteBuilder;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
+import org.openremote.container.concurrent.ContainerPartitionedExecutor;
 import org.openremote.container.message.MessageBrokerSetupService;
 import org.openremote.container.persistence.PersistenceEvent;
 import org.openremote.container.persistence.PersistenceService;
@@ -48,12 +49,16 @@ import org.openremote.model.value.ObjectValue;
 
 import javax.persistence.EntityManager;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static java.util.logging.Level.FINEST;
 import static java.util.logging.Level.SEVERE;
@@ -61,6 +66,8 @@ import static org.openremote.container.concurrent.GlobalLock.withLock;
 import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
 import static org.openremote.container.persistence.PersistenceEvent.PERSISTENCE_TOPIC;
 import static org.openremote.container.persistence.PersistenceEvent.isPersistenceEventForEntityType;
+import static org.openremote.container.util.MapAccess.getBoolean;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.container.util.MapAccess.getString;
 import static org.openremote.model.AbstractValueTimestampHolder.VALUE_TIMESTAMP_FIELD_NAME;
 import static org.openremote.model.asset.AssetAttribute.attributesFromJson;
@@ -86,11 +93,27 @@ import static org.openremote.model.asset.AssetAttribute.getAddedOrModifiedAttrib
  * <li>Asset Rulesets (in hierarchical order from oldest ancestor down)</li>
  * </ol>
  * Processing order of rulesets with the same scope or same parent is not guaranteed.
+ * <p>
+ * Each {@link RulesEngine} has its own lock and is fired on its own lane of a bounded executor, see {@link
+ * #RULES_ENGINE_THREADS}, so engines of different scopes fire concurrently. Asset state updates are passed to the
+ * engines in scope without holding the {@link org.openremote.container.concurrent.GlobalLock} and without waiting
+ * for engines which are firing.
  */
 public class RulesService extends RouteBuilder implements ContainerService, AssetUpdateProcessor {
 
     public static final String RULE_EVENT_EXPIRES = "RULE_EVENT_EXPIRES";
     public static final String RULE_EVENT_EXPIRES_DEFAULT = "1h";
+    /**
+     * Only evaluate the rules whose conditions read facts which changed since the last firing, see
+     * {@link RulesFacts.RuleDependencies}. Rule conditions must only depend on facts, not on other state.
+     */
+    public static final String RULES_INCREMENTAL_EVALUATION = "RULES_INCREMENTAL_EVALUATION";
+    public static final boolean RULES_INCREMENTAL_EVALUATION_DEFAULT = false;
+    /**
+     * Number of lanes firing rules engines concurrently, an engine is always fired on the same lane.
+     */
+    public static final String RULES_ENGINE_THREADS = "RULES_ENGINE_THREADS";
+    public static final int RULES_ENGINE_THREADS_DEFAULT = Math.max(Runtime.getRuntime().availableProcessors(), 2);
     public static final int GEOFENCE_INIT_DEBOUNCE_MILLIS = 2000;
     private static final Logger LOG = Logger.getLogger(RulesService.class.getName());
     protected static List<GeofenceAssetAdapter> geofenceAssetAdapters;
@@ -104,8 +127,12 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
         geofenceAssetAdapters.sort(Comparator.comparingInt(GeofenceAssetAdapter::getPriority).reversed());
     }
 
-    protected final Map<String, RulesEngine<TenantRuleset>> tenantEngines = new HashMap<>();
-    protected final Map<String, RulesEngine<AssetRuleset>> assetEngines = new HashMap<>();
+    protected final Map<String, RulesEngine<TenantRuleset>> tenantEngines = new ConcurrentHashMap<>();
+    protected final Map<String, RulesEngine<AssetRuleset>> assetEngines = new ConcurrentHashMap<>();
+    // Engines are added and removed while holding the write lock, asset states are passed to engines while
+    // holding the read lock, so a new engine either imports an asset state or receives its update
+    protected final ReentrantReadWriteLock enginesLock = new ReentrantReadWriteLock();
+    protected ContainerPartitionedExecutor firingExecutor;
     protected TimerService timerService;
     protected ManagerExecutorService executorService;
     protected PersistenceService persistenceService;
@@ -114,7 +141,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
     protected AssetStorageService assetStorageService;
     protected NotificationService notificationService;
     protected AssetProcessingService assetProcessingService;
-    protected RulesEngine<GlobalRuleset> globalEngine;
+    protected volatile RulesEngine<GlobalRuleset> globalEngine;
     protected String[] activeTenantIds;
     protected BiConsumer<RulesEngine, List<RulesEngine.AssetStateLocationPredicates>> locationPredicateRulesConsumer;
     protected Map<RulesEngine, List<RulesEngine.AssetStateLocationPredicates>> engineAssetLocationPredicateMap = new HashMap<>();
@@ -123,8 +150,9 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
     // Keep global list of asset states that have been pushed to any engines
     // The objects are already in memory inside the rule engines but keeping them
     // here means we can quickly insert facts into newly started engines
-    protected Set<AssetState> assetStates = new HashSet<>();
+    protected Set<AssetState> assetStates = ConcurrentHashMap.newKeySet();
     protected String configEventExpires;
+    protected boolean incrementalEvaluation;
     protected ScheduledFuture geofenceInitScheduledFuture;
 
     @Override
@@ -148,6 +176,13 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
 
         container.getService(MessageBrokerSetupService.class).getContext().addRoutes(this);
         configEventExpires = getString(container.getConfig(), RULE_EVENT_EXPIRES, RULE_EVENT_EXPIRES_DEFAULT);
+        incrementalEvaluation = getBoolean(container.getConfig(), RULES_INCREMENTAL_EVALUATION, RULES_INCREMENTAL_EVALUATION_DEFAULT);
+        // Each engine has at most one pending firing, so the lane queues are not bounded
+        firingExecutor = new ContainerPartitionedExecutor(
+            "Rules engine",
+            Math.max(1, getInteger(container.getConfig(), RULES_ENGINE_THREADS, RULES_ENGINE_THREADS_DEFAULT)),
+            Integer.MAX_VALUE
+        );
     }
 
     @Override
@@ -214,18 +249,10 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
         deployAssetRulesets(rulesetStorageService.findEnabledAssetRulesets());
 
         LOG.info("Loading all assets with fact attributes to initialize state of rules engines");
-        Stream<Pair<Asset, Stream<AssetAttribute>>> assetRuleAttributes = findRuleStateAttributes();
-
         // Push each rule attribute as an asset update through the rule engine chain
         // that will ensure the insert only happens to the engines in scope
-        assetRuleAttributes
-            .forEach(pair -> {
-                Asset asset = pair.key;
-                pair.value.forEach(ruleAttribute -> {
-                    AssetState assetState = new AssetState(asset, ruleAttribute, Source.INTERNAL);
-                    updateAssetState(assetState, true, true);
-                });
-            });
+        // The states are collected first, so engines don't fire while the database cursor is still open
+        findRuleStates().forEach(assetState -> updateAssetState(assetState, true, true));
     }
 
     @Override
@@ -242,16 +269,24 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             }
 
             // TODO: Do rule engines need to be stopped on shutdown
-            assetEngines.forEach((assetId, rulesEngine) -> rulesEngine.stop(true));
-            assetEngines.clear();
-            tenantEngines.forEach((realm, rulesEngine) -> rulesEngine.stop(true));
-            tenantEngines.clear();
-
-            if (globalEngine != null) {
-                globalEngine.stop(true);
-                globalEngine = null;
-            }
+            List<RulesEngine> rulesEngines = withEnginesLock(true, () -> {
+                List<RulesEngine> removed = new ArrayList<>(assetEngines.values());
+                assetEngines.clear();
+                removed.addAll(tenantEngines.values());
+                tenantEngines.clear();
+                if (globalEngine != null) {
+                    removed.add(globalEngine);
+                    globalEngine = null;
+                }
+                return removed;
+            });
+            rulesEngines.forEach(rulesEngine -> rulesEngine.stop(true));
         });
+
+        firingExecutor.shutdownNow();
+        if (!firingExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+            LOG.warning("Rules engine lanes did not terminate in time");
+        }
     }
 
     @Override
@@ -311,21 +346,29 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             }
 
             if (wasEnabled) {
-                // Remove tenant rules engine for this tenant if it exists
-                RulesEngine<TenantRuleset> tenantRulesEngine = tenantEngines.get(tenant.getId());
-                if (tenantRulesEngine != null) {
-                    tenantRulesEngine.stop();
-                    tenantEngines.remove(tenant.getId());
-                }
+                List<RulesEngine> rulesEngines = withEnginesLock(true, () -> {
+                    List<RulesEngine> removed = new ArrayList<>();
+
+                    // Remove tenant rules engine for this tenant if it exists
+                    RulesEngine<TenantRuleset> tenantRulesEngine = tenantEngines.remove(tenant.getId());
+                    if (tenantRulesEngine != null) {
+                        removed.add(tenantRulesEngine);
+                    }
+
+                    // Remove any asset rules engines for assets in this realm
+                    assetEngines.entrySet().removeIf(entry -> {
+                        boolean inRealm =
+                            entry.getValue().getId().getRealmId().map(id -> id.equals(tenant.getId())).orElse(false);
+                        if (inRealm) {
+                            removed.add(entry.getValue());
+                        }
+                        return inRealm;
+                    });
+                    return removed;
+                });
 
-                // Remove any asset rules engines for assets in this realm
-                assetEngines.values().stream()
-                    .filter(re -> re.getId().getRealmId().map(id -> id.equals(tenant.getId())).orElse(false))
-                    .forEach(RulesEngine::stop);
-                assetEngines.entrySet().removeIf(entry ->
-                                                     entry.getValue().getId().getRealmId().map(id -> id.equals(tenant.getId())).orElse(
-                                                         false)
-                                                );
+                // Engines which are firing are waited for after the engines are no longer in scope
+                rulesEngines.forEach(RulesEngine::stop);
 
             } else {
                 // Create tenant rules engines for this tenant if it has any rulesets
@@ -495,31 +538,43 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
 
             // Global rules have access to everything in the system
             if (globalEngine == null) {
-                globalEngine = new RulesEngine<>(
+                RulesEngine<GlobalRuleset> newEngine = new RulesEngine<>(
                     timerService,
                     identityService,
                     executorService,
+                    firingExecutor,
                     assetStorageService,
                     assetProcessingService,
                     notificationService,
                     new RulesEngineId<>(),
-                    this::onEngineLocationRulesChanged
+                    this::onEngineLocationRulesChanged,
+                    incrementalEvaluation
                 );
+                withEnginesLock(true, () -> {
+                    globalEngine = newEngine;
+                });
             }
 
-            globalEngine.addRuleset(ruleset);
-            return created ? globalEngine : null;
+            // Deployment waits for the engine if it is firing, without blocking fact changes
+            RulesEngine<GlobalRuleset> rulesEngine = globalEngine;
+            rulesEngine.addRuleset(ruleset);
+            return created ? rulesEngine : null;
         });
     }
 
     protected void undeployGlobalRuleset(GlobalRuleset ruleset) {
         withLock(getClass().getSimpleName() + "::undeployGlobalRuleset", () -> {
-            if (globalEngine == null) {
+            RulesEngine<GlobalRuleset> rulesEngine = globalEngine;
+            if (rulesEngine == null) {
                 return;
             }
 
-            if (globalEngine.removeRuleset(ruleset)) {
-                globalEngine = null;
+            if (rulesEngine.removeRuleset(ruleset)) {
+                withEnginesLock(true, () -> {
+                    if (globalEngine == rulesEngine) {
+                        globalEngine = null;
+                    }
+                });
             }
         });
     }
@@ -529,20 +584,22 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             final boolean[] created = {false};
 
             // Look for existing rules engines for this tenant
-            RulesEngine<TenantRuleset> tenentRulesEngine = tenantEngines
+            RulesEngine<TenantRuleset> tenentRulesEngine = withEnginesLock(true, () -> tenantEngines
                 .computeIfAbsent(ruleset.getRealmId(), (realmId) -> {
                     created[0] = true;
                     return new RulesEngine<>(
                         timerService,
                         identityService,
                         executorService,
+                        firingExecutor,
                         assetStorageService,
                         assetProcessingService,
                         notificationService,
                         new RulesEngineId<>(realmId),
-                        this::onEngineLocationRulesChanged
+                        this::onEngineLocationRulesChanged,
+                        incrementalEvaluation
                     );
-                });
+                }));
 
             tenentRulesEngine.addRuleset(ruleset);
 
@@ -558,7 +615,9 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             }
 
             if (rulesEngine.removeRuleset(ruleset)) {
-                tenantEngines.remove(ruleset.getRealmId());
+                withEnginesLock(true, () -> {
+                    tenantEngines.remove(ruleset.getRealmId(), rulesEngine);
+                });
             }
         });
     }
@@ -596,20 +655,22 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             final boolean[] created = {false};
 
             // Look for existing rules engine for this asset
-            RulesEngine<AssetRuleset> assetRulesEngine = assetEngines
+            RulesEngine<AssetRuleset> assetRulesEngine = withEnginesLock(true, () -> assetEngines
                 .computeIfAbsent(ruleset.getAssetId(), (assetId) -> {
                     created[0] = true;
                     return new RulesEngine<>(
                         timerService,
                         identityService,
                         executorService,
+                        firingExecutor,
                         assetStorageService,
                         assetProcessingService,
                         notificationService,
                         new RulesEngineId<>(ruleset.getRealmId(), assetId),
-                        this::onEngineLocationRulesChanged
+                        this::onEngineLocationRulesChanged,
+                        incrementalEvaluation
                     );
-                });
+                }));
 
             assetRulesEngine.addRuleset(ruleset);
             return created[0] ? assetRulesEngine : null;
@@ -624,13 +685,15 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             }
 
             if (assetRulesEngine.removeRuleset(ruleset)) {
-                assetEngines.remove(ruleset.getAssetId());
+                withEnginesLock(true, () -> {
+                    assetEngines.remove(ruleset.getAssetId(), assetRulesEngine);
+                });
             }
         });
     }
 
     protected void insertAssetEvent(AssetState assetState, String expires) {
-        withLock(getClass().getSimpleName() + "::insertAssetEvent", () -> {
+        withEnginesLock(false, () -> {
             // Get the chain of rule engines that we need to pass through
             List<RulesEngine> rulesEngines = getEnginesInScope(assetState.getRealmId(), assetState.getPath());
 
@@ -655,7 +718,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
     }
 
     protected void updateAssetState(AssetState assetState, boolean skipStatusCheck, boolean fireImmediately) {
-        withLock(getClass().getSimpleName() + "::updateAssetState", () -> {
+        withEnginesLock(false, () -> {
             // TODO: implement rules processing error state handling
 
             LOG.fine("Updating asset state: " + assetState);
@@ -685,19 +748,43 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
     }
 
     protected void retractAssetState(AssetState assetState) {
-        // Get the chain of rule engines that we need to pass through
-        List<RulesEngine> rulesEngines = getEnginesInScope(assetState.getRealmId(), assetState.getPath());
+        withEnginesLock(false, () -> {
+            // Get the chain of rule engines that we need to pass through
+            List<RulesEngine> rulesEngines = getEnginesInScope(assetState.getRealmId(), assetState.getPath());
 
-        // Remove asset state with same attribute ref
-        assetStates.remove(assetState);
+            // Remove asset state with same attribute ref
+            assetStates.remove(assetState);
 
-        if (rulesEngines.size() == 0) {
-            LOG.fine("Ignoring as there are no matching rules engines: " + assetState);
-        }
+            if (rulesEngines.size() == 0) {
+                LOG.fine("Ignoring as there are no matching rules engines: " + assetState);
+            }
 
-        // Pass through each rules engine
-        for (RulesEngine rulesEngine : rulesEngines) {
-            rulesEngine.removeFact(assetState);
+            // Pass through each rules engine
+            for (RulesEngine rulesEngine : rulesEngines) {
+                rulesEngine.removeFact(assetState);
+            }
+        });
+    }
+
+    protected void withEnginesLock(boolean write, Runnable runnable) {
+        withEnginesLock(write, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * Engines don't acquire the global lock or the engines lock while holding their own lock, so this lock can be
+     * acquired while holding the global lock. The lock only guards the engine references, it must not be held while
+     * waiting for the lock of an engine, so fact changes never wait for an engine which is firing.
+     */
+    protected <R> R withEnginesLock(boolean write, Supplier<R> supplier) {
+        Lock lock = write ? enginesLock.writeLock() : enginesLock.readLock();
+        lock.lock();
+        try {
+            return supplier.get();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -734,20 +821,26 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
         return rulesEngines;
     }
 
-    protected Stream<Pair<Asset, Stream<AssetAttribute>>> findRuleStateAttributes() {
-        List<Asset> assets = assetStorageService.findAll(
+    /**
+     * Streams the assets with rule state attributes from the database, only their rule states are kept in memory.
+     */
+    protected List<AssetState> findRuleStates() {
+        return assetStorageService.streamAll(
             new AssetQuery()
                 .select(new AssetQuery.Select(AssetQuery.Include.ALL))
                 .attributeMeta(
                     new AttributeMetaPredicate(
                         AssetMeta.RULE_STATE,
                         new BooleanPredicate(true))
-                              ));
-
-        return assets.stream()
-            .map((Asset asset) ->
-                     new Pair<>(asset, asset.getAttributesStream().filter(AssetAttribute::isRuleState))
-                );
+                              ),
+            assets -> assets
+                .flatMap((Asset asset) ->
+                             asset.getAttributesStream()
+                                 .filter(AssetAttribute::isRuleState)
+                                 .map(ruleAttribute -> new AssetState(asset, ruleAttribute, Source.INTERNAL))
+                        )
+                .collect(Collectors.toList())
+        );
     }
 
     /**
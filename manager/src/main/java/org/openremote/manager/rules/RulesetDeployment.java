@@ -26,6 +26,7 @@ import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import org.codehaus.groovy.control.CompilerConfiguration;
 import org.jeasy.rules.api.Action;
 import org.jeasy.rules.api.Condition;
+import org.jeasy.rules.api.Facts;
 import org.jeasy.rules.api.Rule;
 import org.jeasy.rules.api.Rules;
 import org.jeasy.rules.core.RuleBuilder;
@@ -37,7 +38,9 @@ import org.openremote.model.rules.Ruleset;
 import org.openremote.model.rules.Users;
 
 import javax.script.*;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -95,6 +98,60 @@ public class RulesetDeployment {
         }
     }
 
+    /**
+     * Delegates to a rule in incremental evaluation mode, recording the facts read by its condition.
+     */
+    public static class TrackedRule implements Rule {
+
+        final protected Rule rule;
+        final protected RulesFacts.RuleDependencies dependencies = new RulesFacts.RuleDependencies();
+
+        public TrackedRule(Rule rule) {
+            this.rule = rule;
+        }
+
+        public RulesFacts.RuleDependencies getDependencies() {
+            return dependencies;
+        }
+
+        @Override
+        public String getName() {
+            return rule.getName();
+        }
+
+        @Override
+        public String getDescription() {
+            return rule.getDescription();
+        }
+
+        @Override
+        public int getPriority() {
+            return rule.getPriority();
+        }
+
+        @Override
+        public boolean evaluate(Facts facts) {
+            return facts instanceof RulesFacts
+                ? ((RulesFacts) facts).evaluate(rule, dependencies)
+                : rule.evaluate(facts);
+        }
+
+        @Override
+        public void execute(Facts facts) throws Exception {
+            rule.execute(facts);
+        }
+
+        @Override
+        public int compareTo(Rule other) {
+            return rule.compareTo(other);
+        }
+
+        @Override
+        public String toString() {
+            return rule.toString();
+        }
+    }
+
     // TODO Finish groovy sandbox
     static class GroovyDenyAllFilter extends GroovyValueFilter {
         @Override
@@ -135,8 +192,9 @@ public class RulesetDeployment {
     final protected String name;
     final protected long version;
     final protected Rules rules = new Rules();
-    protected Status status;
-    protected Throwable error;
+    protected List<TrackedRule> trackedRules;
+    protected volatile Status status;
+    protected volatile Throwable error;
 
     public RulesetDeployment(long id, String name, long version) {
         this.id = id;
@@ -160,6 +218,26 @@ public class RulesetDeployment {
         return rules;
     }
 
+    /**
+     * @param changes The facts changed since the last firing, or <code>null</code> to get all rules.
+     * @return The rules for incremental evaluation, only those which might be affected by the changes.
+     */
+    public Rules getRules(RulesFacts.FactChanges changes) {
+        if (trackedRules == null) {
+            trackedRules = new ArrayList<>();
+            for (Rule rule : rules) {
+                trackedRules.add(new TrackedRule(rule));
+            }
+        }
+        Rules result = new Rules();
+        for (TrackedRule trackedRule : trackedRules) {
+            if (changes == null || trackedRule.getDependencies().isAffectedBy(changes)) {
+                result.register(trackedRule);
+            }
+        }
+        return result;
+    }
+
     public boolean registerRules(Ruleset ruleset, Assets assetsFacade, Users usersFacade, NotificationsFacade notificationFacade) {
         RulesEngine.LOG.info("Evaluating ruleset deployment: " + ruleset);
         switch (ruleset.getLang()) {
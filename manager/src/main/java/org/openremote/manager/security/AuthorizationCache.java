@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.security;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.camel.builder.RouteBuilder;
+import org.openremote.container.persistence.PersistenceEvent;
+import org.openremote.model.asset.Asset;
+import org.openremote.model.asset.UserAsset;
+import org.openremote.model.security.Tenant;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.openremote.container.persistence.PersistenceEvent.PERSISTENCE_TOPIC;
+
+/**
+ * Caches the database lookups of authorization checks, such as restricted user flags, tenants, user asset links,
+ * and the realms of assets.
+ * <p>
+ * Entries expire after a fixed time and are invalidated when a {@link UserConfiguration}, {@link UserAsset},
+ * {@link Tenant}, or {@link Asset} is modified. Tenants are managed by Keycloak, modifications made directly in
+ * Keycloak are only visible after expiry.
+ */
+public class AuthorizationCache extends RouteBuilder {
+
+    final protected Cache<String, Boolean> restrictedUsers;
+    final protected Cache<String, Optional<Tenant>> tenantsById;
+    final protected Cache<String, Optional<Tenant>> tenantsByRealm;
+    final protected Cache<String, Boolean> userAssets;
+    final protected Cache<String, Optional<String>> assetRealms;
+
+    /**
+     * @param expireSeconds Expiry of entries, caching is disabled if <code>0</code>.
+     * @param maximumSize   Maximum number of entries of each cache.
+     */
+    public AuthorizationCache(int expireSeconds, int maximumSize) {
+        this.restrictedUsers = createCache(expireSeconds, maximumSize);
+        this.tenantsById = createCache(expireSeconds, maximumSize);
+        this.tenantsByRealm = createCache(expireSeconds, maximumSize);
+        this.userAssets = createCache(expireSeconds, maximumSize);
+        this.assetRealms = createCache(expireSeconds, maximumSize);
+    }
+
+    protected static <K, V> Cache<K, V> createCache(int expireSeconds, int maximumSize) {
+        return CacheBuilder.newBuilder()
+            .expireAfterWrite(Math.max(0, expireSeconds), TimeUnit.SECONDS)
+            .maximumSize(expireSeconds > 0 ? maximumSize : 0)
+            .recordStats()
+            .build();
+    }
+
+    @Override
+    public void configure() throws Exception {
+        from(PERSISTENCE_TOPIC)
+            .routeId("AuthorizationCacheInvalidation")
+            .process(exchange -> invalidate(exchange.getIn().getBody(PersistenceEvent.class).getEntity()));
+    }
+
+    public boolean isRestrictedUser(String userId, Supplier<Boolean> loader) {
+        return get(restrictedUsers, userId, loader);
+    }
+
+    public Tenant getTenantForRealmId(String realmId, Supplier<Tenant> loader) {
+        return get(tenantsById, realmId, () -> Optional.ofNullable(loader.get())).orElse(null);
+    }
+
+    public Tenant getTenantForRealm(String realm, Supplier<Tenant> loader) {
+        return get(tenantsByRealm, realm, () -> Optional.ofNullable(loader.get())).orElse(null);
+    }
+
+    public boolean isUserAsset(String userId, String assetId, Supplier<Boolean> loader) {
+        return get(userAssets, getUserAssetKey(userId, assetId), loader);
+    }
+
+    /**
+     * @return The realm name of the asset or <code>null</code> if the asset doesn't exist.
+     */
+    public String getAssetRealm(String assetId, Supplier<String> loader) {
+        return get(assetRealms, assetId, () -> Optional.ofNullable(loader.get())).orElse(null);
+    }
+
+    public void invalidate(Object entity) {
+        if (entity instanceof UserConfiguration) {
+            restrictedUsers.invalidate(((UserConfiguration) entity).getUserId());
+        } else if (entity instanceof UserAsset) {
+            UserAsset.Id id = ((UserAsset) entity).getId();
+            userAssets.invalidate(getUserAssetKey(id.getUserId(), id.getAssetId()));
+        } else if (entity instanceof Tenant) {
+            tenantsById.invalidateAll();
+            tenantsByRealm.invalidateAll();
+        } else if (entity instanceof Asset) {
+            invalidateAsset(((Asset) entity).getId());
+        }
+    }
+
+    public void invalidateAsset(String assetId) {
+        if (assetId == null)
+            return;
+        assetRealms.invalidate(assetId);
+        // User asset links are deleted with the asset
+        String keySuffix = getUserAssetKey("", assetId);
+        userAssets.asMap().keySet().removeIf(key -> key.endsWith(keySuffix));
+    }
+
+    public void invalidateAll() {
+        restrictedUsers.invalidateAll();
+        tenantsById.invalidateAll();
+        tenantsByRealm.invalidateAll();
+        userAssets.invalidateAll();
+        assetRealms.invalidateAll();
+    }
+
+    public Map<String, CacheStats> getStats() {
+        Map<String, CacheStats> stats = new LinkedHashMap<>();
+        stats.put("restrictedUsers", restrictedUsers.stats());
+        stats.put("tenantsById", tenantsById.stats());
+        stats.put("tenantsByRealm", tenantsByRealm.stats());
+        stats.put("userAssets", userAssets.stats());
+        stats.put("assetRealms", assetRealms.stats());
+        return stats;
+    }
+
+    protected static String getUserAssetKey(String userId, String assetId) {
+        return userId + ":" + assetId;
+    }
+
+    protected static <K, V> V get(Cache<K, V> cache, K key, Supplier<V> loader) {
+        try {
+            return cache.get(key, loader::get);
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "stats=" + getStats() +
+            '}';
+    }
+}
@@ -20,6 +20,7 @@
 package org.openremote.manager.security;
 
 import org.openremote.container.Container;
+import org.openremote.container.message.MessageBrokerSetupService;
 import org.openremote.container.persistence.PersistenceService;
 import org.openremote.container.security.IdentityService;
 import org.openremote.container.timer.TimerService;
@@ -29,15 +30,32 @@ import javax.persistence.EntityManager;
 import java.util.Locale;
 import java.util.logging.Logger;
 
+import static org.openremote.container.util.MapAccess.getInteger;
+
 public class ManagerIdentityService extends IdentityService {
 
     private static final Logger LOG = Logger.getLogger(ManagerIdentityService.class.getName());
 
+    /**
+     * Expiry of cached authorization lookups, <code>0</code> disables the cache.
+     */
+    public static final String AUTHORIZATION_CACHE_EXPIRE_SECONDS = "AUTHORIZATION_CACHE_EXPIRE_SECONDS";
+    public static final int AUTHORIZATION_CACHE_EXPIRE_SECONDS_DEFAULT = 60;
+    public static final String AUTHORIZATION_CACHE_SIZE = "AUTHORIZATION_CACHE_SIZE";
+    public static final int AUTHORIZATION_CACHE_SIZE_DEFAULT = 10000;
+
     protected ManagerIdentityProvider identityProvider;
     protected PersistenceService persistenceService;
+    protected AuthorizationCache authorizationCache;
 
     @Override
     public void init(Container container) throws Exception {
+        authorizationCache = new AuthorizationCache(
+            getInteger(container.getConfig(), AUTHORIZATION_CACHE_EXPIRE_SECONDS, AUTHORIZATION_CACHE_EXPIRE_SECONDS_DEFAULT),
+            getInteger(container.getConfig(), AUTHORIZATION_CACHE_SIZE, AUTHORIZATION_CACHE_SIZE_DEFAULT)
+        );
+        container.getService(MessageBrokerSetupService.class).getContext().addRoutes(authorizationCache);
+
         super.init(container);
         persistenceService = container.getService(PersistenceService.class);
 
@@ -50,17 +68,27 @@ public class ManagerIdentityService extends IdentityService {
 
     }
 
+    @Override
+    public void stop(Container container) throws Exception {
+        super.stop(container);
+        LOG.info("Authorization cache: " + authorizationCache);
+    }
+
     public ManagerIdentityProvider getIdentityProvider() {
         return identityProvider;
     }
 
+    public AuthorizationCache getAuthorizationCache() {
+        return authorizationCache;
+    }
+
     @Override
     public ManagerIdentityProvider createIdentityProvider(Container container, String identityProviderType) {
         if (identityProvider == null) {
             switch (identityProviderType.toLowerCase(Locale.ROOT)) {
                 case "keycloak":
                     LOG.info("Enabling Keycloak identity provider");
-                    this.identityProvider = new ManagerKeycloakIdentityProvider(getExternalServerUri(), container);
+                    this.identityProvider = new ManagerKeycloakIdentityProvider(getExternalServerUri(), container, authorizationCache);
                     break;
                 case "basic":
                     LOG.info("Enabling basic identity provider");
@@ -87,7 +115,10 @@ public class ManagerIdentityService extends IdentityService {
     }
 
     public UserConfiguration mergeUserConfiguration(UserConfiguration userConfiguration) {
-        return persistenceService.doReturningTransaction(entityManager -> mergeUserConfiguration(entityManager, userConfiguration));
+        UserConfiguration result = persistenceService.doReturningTransaction(entityManager -> mergeUserConfiguration(entityManager, userConfiguration));
+        // Don't wait for the persistence event, the caller might check access right away
+        authorizationCache.invalidate(result);
+        return result;
     }
 
     protected UserConfiguration mergeUserConfiguration(EntityManager em, UserConfiguration userConfiguration) {
@@ -66,9 +66,11 @@ public class ManagerKeycloakIdentityProvider extends KeycloakIdentityProvider im
     final protected TimerService timerService;
     final protected MessageBrokerService messageBrokerService;
     final protected ClientEventService clientEventService;
+    final protected AuthorizationCache authorizationCache;
 
-    public ManagerKeycloakIdentityProvider(UriBuilder externalServerUri, Container container) {
+    public ManagerKeycloakIdentityProvider(UriBuilder externalServerUri, Container container, AuthorizationCache authorizationCache) {
         super(KEYCLOAK_CLIENT_ID, externalServerUri, container);
+        this.authorizationCache = authorizationCache;
 
         this.devMode = container.isDevMode();
         this.timerService = container.getService(TimerService.class);
@@ -342,17 +344,19 @@ public class ManagerKeycloakIdentityProvider extends KeycloakIdentityProvider im
 
     @Override
     public Tenant getTenantForRealm(String realm) {
-        return persistenceService.doReturningTransaction(em -> {
+        return authorizationCache.getTenantForRealm(realm, () -> persistenceService.doReturningTransaction(em -> {
             List<Tenant> result =
                 em.createQuery("select t from Tenant t where t.realm = :realm", Tenant.class)
                     .setParameter("realm", realm).getResultList();
             return result.size() > 0 ? result.get(0) : null;
-        });
+        }));
     }
 
     @Override
     public Tenant getTenantForRealmId(String realmId) {
-        return persistenceService.doReturningTransaction(em -> em.find(Tenant.class, realmId));
+        return authorizationCache.getTenantForRealmId(realmId, () ->
+            persistenceService.doReturningTransaction(em -> em.find(Tenant.class, realmId))
+        );
     }
 
     @Override
@@ -433,8 +437,10 @@ public class ManagerKeycloakIdentityProvider extends KeycloakIdentityProvider im
 
     @Override
     public boolean isRestrictedUser(String userId) {
-        UserConfiguration userConfiguration = persistenceService.doReturningTransaction(em -> em.find(UserConfiguration.class, userId));
-        return userConfiguration != null && userConfiguration.isRestricted();
+        return authorizationCache.isRestrictedUser(userId, () -> {
+            UserConfiguration userConfiguration = persistenceService.doReturningTransaction(em -> em.find(UserConfiguration.class, userId));
+            return userConfiguration != null && userConfiguration.isRestricted();
+        });
     }
 
     @Override
@@ -518,6 +524,8 @@ public class ManagerKeycloakIdentityProvider extends KeycloakIdentityProvider im
     }
 
     protected void publishModification(PersistenceEvent.Cause cause, Tenant tenant) {
+        authorizationCache.invalidate(tenant);
+
         // Fire persistence event although we don't use database for Tenant CUD but call Keycloak API
         PersistenceEvent persistenceEvent = new PersistenceEvent<>(cause, tenant, new String[0], null);
 
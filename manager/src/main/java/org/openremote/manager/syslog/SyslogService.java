@@ -19,6 +19,7 @@
  */
 package org.openremote.manager.syslog;
 
+import org.hibernate.Session;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
 import org.openremote.container.persistence.PersistenceService;
@@ -30,30 +31,66 @@ import org.openremote.model.syslog.SyslogCategory;
 import org.openremote.model.syslog.SyslogEvent;
 import org.openremote.model.syslog.SyslogLevel;
 
+import java.sql.PreparedStatement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Handler;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
+import static org.openremote.container.util.MapAccess.getInteger;
+
 /**
  * Act as a JUL handler, publishes (some) log messages on the client event bus, stores
  * (some, depending on {@link SyslogConfig}) log messages in the database.
+ * <p>
+ * Log messages are stored in batches from a fixed-size buffer, when the buffer is full the oldest messages are
+ * dropped. Publishing on the client event bus is limited to a maximum number of messages per second, messages
+ * over the limit are dropped. Both drops are counted and reported, so a log storm doesn't add load to the system.
  */
 public class SyslogService extends Handler implements ContainerService {
 
     private static final Logger LOG = Logger.getLogger(SyslogService.class.getName());
 
+    public static final String SYSLOG_BUFFER_SIZE = "SYSLOG_BUFFER_SIZE";
+    public static final int SYSLOG_BUFFER_SIZE_DEFAULT = 10000;
+    public static final String SYSLOG_PUBLISH_MAX_PER_SECOND = "SYSLOG_PUBLISH_MAX_PER_SECOND";
+    public static final int SYSLOG_PUBLISH_MAX_PER_SECOND_DEFAULT = 100;
+    public static final String SYSLOG_DELETE_CHUNK_SIZE = "SYSLOG_DELETE_CHUNK_SIZE";
+    public static final int SYSLOG_DELETE_CHUNK_SIZE_DEFAULT = 5000;
+
+    // Must fit the columns, or the whole batch is rejected
+    public static final int MESSAGE_MAX_LENGTH = 131072;
+    public static final int SUBCATEGORY_MAX_LENGTH = 1024;
+
     protected ManagerExecutorService executorService;
     protected PersistenceService persistenceService;
     protected ClientEventService clientEventService;
 
     protected SyslogConfig config;
 
-    final protected List<SyslogEvent> batch = new ArrayList<>();
+    // Ring buffer of events waiting to be stored, guarded by lock
+    final protected Object lock = new Object();
+    protected SyslogEvent[] buffer;
+    protected int bufferHead;
+    protected int bufferCount;
+
+    protected int publishMaxPerSecond;
+    protected long publishWindowStart;
+    protected int publishWindowCount;
+
+    protected int deleteChunkSize;
+
+    final protected AtomicLong storeDroppedCount = new AtomicLong();
+    final protected AtomicLong publishDroppedCount = new AtomicLong();
+    final protected AtomicLong storedCount = new AtomicLong();
+    protected long reportedStoreDroppedCount;
+    protected long reportedPublishDroppedCount;
+
     protected ScheduledFuture flushBatchFuture;
     protected ScheduledFuture deleteOldFuture;
 
@@ -82,6 +119,14 @@ public class SyslogService extends Handler implements ContainerService {
             );
         }
 
+        synchronized (lock) {
+            buffer = new SyslogEvent[Math.max(1, getInteger(container.getConfig(), SYSLOG_BUFFER_SIZE, SYSLOG_BUFFER_SIZE_DEFAULT))];
+            bufferHead = 0;
+            bufferCount = 0;
+            publishMaxPerSecond = getInteger(container.getConfig(), SYSLOG_PUBLISH_MAX_PER_SECOND, SYSLOG_PUBLISH_MAX_PER_SECOND_DEFAULT);
+        }
+        deleteChunkSize = Math.max(1, getInteger(container.getConfig(), SYSLOG_DELETE_CHUNK_SIZE, SYSLOG_DELETE_CHUNK_SIZE_DEFAULT));
+
         // Default config: Store all INFO messages for five days
         config = new SyslogConfig(
             SyslogLevel.INFO, SyslogCategory.values(), 60 * 24 * 5
@@ -95,21 +140,7 @@ public class SyslogService extends Handler implements ContainerService {
             flushBatchFuture = executorService.scheduleAtFixedRate(this::flushBatch, 10 * 1000, 3 * 1000);
 
             // Clear outdated events every minute
-            deleteOldFuture = executorService.scheduleAtFixedRate(() -> {
-                // Not ready on startup
-                if (persistenceService.getEntityManagerFactory() == null)
-                    return;
-                final int maxAgeMinutes;
-                synchronized (batch) {
-                    maxAgeMinutes = config.getStoredMaxAgeMinutes();
-                }
-                persistenceService.doTransaction(em -> {
-                    em.createQuery(
-                        "delete from SyslogEvent e " +
-                            "where to_timestamp(e.timestamp/1000) < now() - make_interval(0, 0, 0, 0, 0, :minutes, 0)"
-                    ).setParameter("minutes", maxAgeMinutes).executeUpdate();
-                });
-            }, 60 * 1000, 60 * 1000);
+            deleteOldFuture = executorService.scheduleAtFixedRate(this::deleteOld, 60 * 1000, 60 * 1000);
         }
     }
 
@@ -123,6 +154,7 @@ public class SyslogService extends Handler implements ContainerService {
             deleteOldFuture.cancel(true);
             deleteOldFuture = null;
         }
+        LOG.info("Stopped " + this);
     }
 
     @Override
@@ -138,20 +170,20 @@ public class SyslogService extends Handler implements ContainerService {
         SyslogEvent syslogEvent = SyslogCategory.mapSyslogEvent(record);
         if (syslogEvent != null) {
             store(syslogEvent);
-            if (clientEventService != null)
+            if (clientEventService != null && isPublishAllowed())
                 clientEventService.publishEvent(syslogEvent);
         }
     }
 
     public void setConfig(SyslogConfig config) {
-        synchronized (batch) {
+        synchronized (lock) {
             LOG.info("Using: " + config);
             this.config = config;
         }
     }
 
     public SyslogConfig getConfig() {
-        synchronized (batch) {
+        synchronized (lock) {
             return config;
         }
     }
@@ -159,9 +191,12 @@ public class SyslogService extends Handler implements ContainerService {
     public void clearStoredEvents() {
         if (persistenceService == null)
             return;
-        synchronized (batch) {
-            persistenceService.doTransaction(em -> em.createQuery("delete from SyslogEvent e").executeUpdate());
+        synchronized (lock) {
+            Arrays.fill(buffer, null);
+            bufferHead = 0;
+            bufferCount = 0;
         }
+        persistenceService.doTransaction(em -> em.createQuery("delete from SyslogEvent e").executeUpdate());
     }
 
     public List<SyslogEvent> getLastStoredEvents(SyslogLevel level, final int limit) {
@@ -177,6 +212,24 @@ public class SyslogService extends Handler implements ContainerService {
         });
     }
 
+    /**
+     * @return The number of events not stored because the buffer was full.
+     */
+    public long getStoreDroppedCount() {
+        return storeDroppedCount.get();
+    }
+
+    /**
+     * @return The number of events not published on the client event bus because of the rate limit.
+     */
+    public long getPublishDroppedCount() {
+        return publishDroppedCount.get();
+    }
+
+    public long getStoredCount() {
+        return storedCount.get();
+    }
+
     protected void store(SyslogEvent syslogEvent) {
         if (persistenceService == null)
             return;
@@ -185,42 +238,143 @@ public class SyslogService extends Handler implements ContainerService {
         if (persistenceService.getEntityManagerFactory() == null) {
             return;
         }
-        boolean isLoggable =
-            config.getStoredLevel().isLoggable(syslogEvent)
-                && Arrays.asList(config.getStoredCategories()).contains(syslogEvent.getCategory());
-        if (isLoggable) {
-            synchronized (batch) {
-                batch.add(syslogEvent);
+        synchronized (lock) {
+            boolean isLoggable =
+                config.getStoredLevel().isLoggable(syslogEvent)
+                    && Arrays.asList(config.getStoredCategories()).contains(syslogEvent.getCategory());
+            if (!isLoggable)
+                return;
+            if (bufferCount == buffer.length) {
+                // Overwrite the oldest event
+                buffer[bufferHead] = syslogEvent;
+                bufferHead = (bufferHead + 1) % buffer.length;
+                storeDroppedCount.incrementAndGet();
+            } else {
+                buffer[(bufferHead + bufferCount) % buffer.length] = syslogEvent;
+                bufferCount++;
+            }
+        }
+    }
+
+    protected boolean isPublishAllowed() {
+        synchronized (lock) {
+            if (publishMaxPerSecond <= 0)
+                return true;
+            long now = System.currentTimeMillis();
+            if (now - publishWindowStart >= 1000) {
+                publishWindowStart = now;
+                publishWindowCount = 0;
+            }
+            if (publishWindowCount < publishMaxPerSecond) {
+                publishWindowCount++;
+                return true;
+            }
+        }
+        publishDroppedCount.incrementAndGet();
+        return false;
+    }
+
+    protected List<SyslogEvent> drainBuffer() {
+        synchronized (lock) {
+            List<SyslogEvent> events = new ArrayList<>(bufferCount);
+            for (int i = 0; i < bufferCount; i++) {
+                int index = (bufferHead + i) % buffer.length;
+                events.add(buffer[index]);
+                buffer[index] = null;
             }
+            bufferHead = 0;
+            bufferCount = 0;
+            return events;
         }
     }
 
     protected void flushBatch() {
         if (persistenceService == null)
             return;
-        synchronized (batch) {
-            final List<SyslogEvent> transientEvents = new ArrayList<>(batch);
-            batch.clear();
-            if (transientEvents.size() == 0)
-                return;
-            LOG.fine("Flushing syslog batch: " + transientEvents.size());
-            persistenceService.doTransaction(em -> {
-                try {
+
+        // Report outside of the lock, these messages are logged through this handler
+        reportDropped();
+
+        final List<SyslogEvent> transientEvents = drainBuffer();
+        if (transientEvents.size() == 0)
+            return;
+        LOG.fine("Flushing syslog batch: " + transientEvents.size());
+        try {
+            persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+                try (PreparedStatement st = connection.prepareStatement(
+                    "insert into SYSLOG_EVENT (ID, TIMESTAMP, CATEGORY, LEVEL, MESSAGE, SUBCATEGORY) " +
+                        "values (nextval('OPENREMOTE_SEQUENCE'), ?, ?, ?, ?, ?)"
+                )) {
                     for (SyslogEvent e : transientEvents) {
-                        em.persist(e);
+                        st.setLong(1, e.getTimestamp());
+                        st.setString(2, e.getCategory().name());
+                        st.setInt(3, e.getLevel().ordinal());
+                        st.setString(4, truncate(e.getMessage(), MESSAGE_MAX_LENGTH));
+                        st.setString(5, truncate(e.getSubCategoryOptional().orElse(null), SUBCATEGORY_MAX_LENGTH));
+                        st.addBatch();
                     }
-                    em.flush();
-                } catch (RuntimeException ex) {
-                    // This is not a big problem, it may happen on shutdown of database connections during tests, just inform the user
-                    // TODO Or is it a serious problem and we need to escalate? In any case, just throwing the ex is not good
-                    LOG.info("Error flushing syslog to database, some events are lost: " + ex);
+                    st.executeBatch();
                 }
-            });
+            }));
+            storedCount.addAndGet(transientEvents.size());
+        } catch (RuntimeException ex) {
+            // This is not a big problem, it may happen on shutdown of database connections during tests, just inform the user
+            // TODO Or is it a serious problem and we need to escalate? In any case, just throwing the ex is not good
+            LOG.info("Error flushing syslog to database, some events are lost: " + ex);
         }
     }
 
+    /**
+     * Deletes events older than the configured maximum age, in chunks so the table isn't locked for long.
+     */
+    protected void deleteOld() {
+        // Not ready on startup
+        if (persistenceService.getEntityManagerFactory() == null)
+            return;
+        final int maxAgeMinutes;
+        synchronized (lock) {
+            maxAgeMinutes = config.getStoredMaxAgeMinutes();
+        }
+        final long maxTimestamp = System.currentTimeMillis() - maxAgeMinutes * 60 * 1000L;
+        int deleted;
+        do {
+            deleted = persistenceService.doReturningTransaction(em -> em.unwrap(Session.class).doReturningWork(connection -> {
+                try (PreparedStatement st = connection.prepareStatement(
+                    "delete from SYSLOG_EVENT where ID in " +
+                        "(select ID from SYSLOG_EVENT where TIMESTAMP < ? limit ?)"
+                )) {
+                    st.setLong(1, maxTimestamp);
+                    st.setInt(2, deleteChunkSize);
+                    return st.executeUpdate();
+                }
+            }));
+        } while (deleted >= deleteChunkSize && !Thread.currentThread().isInterrupted());
+    }
+
+    protected void reportDropped() {
+        long storeDropped = storeDroppedCount.get();
+        long publishDropped = publishDroppedCount.get();
+        if (storeDropped != reportedStoreDroppedCount || publishDropped != reportedPublishDroppedCount) {
+            LOG.warning(
+                "Syslog buffer overflow or publish rate limit reached, dropped stored events: "
+                    + (storeDropped - reportedStoreDroppedCount)
+                    + ", dropped published events: " + (publishDropped - reportedPublishDroppedCount)
+            );
+            reportedStoreDroppedCount = storeDropped;
+            reportedPublishDroppedCount = publishDropped;
+        }
+    }
+
+    protected static String truncate(String value, int maxLength) {
+        return value != null && value.length() > maxLength ? value.substring(0, maxLength) : value;
+    }
+
     @Override
     public String toString() {
-        return getClass().getSimpleName() + "{}";
+        return getClass().getSimpleName() + "{" +
+            "stored=" + getStoredCount() +
+            ", storeDropped=" + getStoreDroppedCount() +
+            ", publishDropped=" + getPublishDroppedCount() +
+            '}';
     }
 }
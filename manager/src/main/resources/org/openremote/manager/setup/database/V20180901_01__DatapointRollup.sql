@@ -0,0 +1,27 @@
+/*
+  Chart queries select datapoints of a single attribute in a time range, the primary key starts
+  with the timestamp and can't be used for this.
+ */
+create index ASSET_DATAPOINT_ATTRIBUTE_TIMESTAMP_IDX on ASSET_DATAPOINT (ENTITY_ID, ATTRIBUTE_NAME, TIMESTAMP);
+
+/*
+  Aggregates of number and boolean datapoints, maintained by AssetDatapointService.
+  Boolean values are aggregated as 1 (true) and 0 (false), BUCKET is the start of the aggregation
+  period in epoch milliseconds.
+ */
+create table ASSET_DATAPOINT_ROLLUP (
+  ENTITY_ID      varchar(36)  not null,
+  ATTRIBUTE_NAME varchar(255) not null,
+  RESOLUTION     varchar(10)  not null,
+  BUCKET         int8         not null,
+  MIN_VALUE      float8       not null,
+  MAX_VALUE      float8       not null,
+  SUM_VALUE      float8       not null,
+  COUNT_VALUE    int8         not null,
+  primary key (ENTITY_ID, ATTRIBUTE_NAME, RESOLUTION, BUCKET)
+);
+
+create index ASSET_DATAPOINT_ROLLUP_RESOLUTION_BUCKET_IDX on ASSET_DATAPOINT_ROLLUP (RESOLUTION, BUCKET);
+
+alter table ASSET_DATAPOINT_ROLLUP
+  add foreign key (ENTITY_ID) references ASSET (ID) on delete cascade;
@@ -0,0 +1,66 @@
+/*
+  Materialized tree path of each asset, the identifier of the asset followed by the identifiers of
+  its parents up to the root. Maintained by triggers when an asset is inserted or moved, assets with
+  children can't be deleted so no maintenance is required on delete.
+ */
+alter table ASSET
+  add column PATH text [];
+
+update ASSET set PATH = GET_ASSET_TREE_PATH(ID);
+
+alter table ASSET
+  alter column PATH set not null;
+
+create index ASSET_PATH_IDX on ASSET using gin (PATH);
+
+create or replace function UPDATE_ASSET_PATH()
+  returns trigger as
+$$
+begin
+  if NEW.PARENT_ID is null then
+    NEW.PATH := array [text(NEW.ID)];
+  else
+    NEW.PATH := array [text(NEW.ID)] || (select P.PATH from ASSET P where P.ID = NEW.PARENT_ID);
+  end if;
+  return NEW;
+end;
+$$
+language plpgsql;
+
+create or replace function UPDATE_DESCENDANT_ASSET_PATHS()
+  returns trigger as
+$$
+begin
+  update ASSET A
+  set PATH = A.PATH [1 : array_position(A.PATH, text(NEW.ID)) - 1] || NEW.PATH
+  where A.PATH @> array [text(NEW.ID)] and A.ID <> NEW.ID;
+  return null;
+end;
+$$
+language plpgsql;
+
+create trigger ASSET_PATH_INSERT
+  before insert on ASSET
+  for each row execute procedure UPDATE_ASSET_PATH();
+
+create trigger ASSET_PATH_UPDATE
+  before update of PARENT_ID on ASSET
+  for each row
+  when (OLD.PARENT_ID is distinct from NEW.PARENT_ID)
+  execute procedure UPDATE_ASSET_PATH();
+
+create trigger ASSET_DESCENDANT_PATH_UPDATE
+  after update of PARENT_ID on ASSET
+  for each row
+  when (OLD.PARENT_ID is distinct from NEW.PARENT_ID)
+  execute procedure UPDATE_DESCENDANT_ASSET_PATHS();
+
+/*
+  Kept for existing callers, now a lookup of the materialized path.
+ */
+create or replace function GET_ASSET_TREE_PATH(ASSET_ID text)
+  returns text [] as
+$$
+select A.PATH from ASSET A where A.ID = ASSET_ID;
+$$
+language sql stable;
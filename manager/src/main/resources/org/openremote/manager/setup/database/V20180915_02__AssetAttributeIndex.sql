@@ -0,0 +1,55 @@
+/*
+  Indexed projections of the ATTRIBUTES column, maintained by a trigger whenever attributes are written:
+
+  ATTRIBUTE_NAMES are the names of all attributes of the asset.
+
+  META_ITEMS is an array of all meta items of all attributes of the asset, used for containment
+  queries such as finding all assets with an AGENT_LINK to a protocol configuration.
+
+  Attribute value updates don't change the projections, so the indexes don't prevent HOT updates.
+ */
+alter table ASSET
+  add column ATTRIBUTE_NAMES text [] not null default '{}',
+  add column META_ITEMS jsonb not null default '[]';
+
+create or replace function GET_ASSET_ATTRIBUTE_NAMES(ATTRIBUTES jsonb)
+  returns text [] as
+$$
+select case when jsonb_typeof(ATTRIBUTES) = 'object'
+  then array(select jsonb_object_keys(ATTRIBUTES))
+  else '{}' :: text [] end;
+$$
+language sql immutable;
+
+create or replace function GET_ASSET_META_ITEMS(ATTRIBUTES jsonb)
+  returns jsonb as
+$$
+select coalesce(jsonb_agg(AM.value), '[]' :: jsonb)
+from jsonb_each(case when jsonb_typeof(ATTRIBUTES) = 'object' then ATTRIBUTES else '{}' :: jsonb end) as AX,
+     jsonb_array_elements(
+       case when jsonb_typeof(AX.value -> 'meta') = 'array' then AX.value -> 'meta' else '[]' :: jsonb end
+     ) as AM;
+$$
+language sql immutable;
+
+create or replace function UPDATE_ASSET_ATTRIBUTE_INDEX()
+  returns trigger as
+$$
+begin
+  NEW.ATTRIBUTE_NAMES := GET_ASSET_ATTRIBUTE_NAMES(NEW.ATTRIBUTES);
+  NEW.META_ITEMS := GET_ASSET_META_ITEMS(NEW.ATTRIBUTES);
+  return NEW;
+end;
+$$
+language plpgsql;
+
+update ASSET
+set ATTRIBUTE_NAMES = GET_ASSET_ATTRIBUTE_NAMES(ATTRIBUTES),
+  META_ITEMS        = GET_ASSET_META_ITEMS(ATTRIBUTES);
+
+create index ASSET_ATTRIBUTE_NAMES_IDX on ASSET using gin (ATTRIBUTE_NAMES);
+create index ASSET_META_ITEMS_IDX on ASSET using gin (META_ITEMS jsonb_path_ops);
+
+create trigger ASSET_ATTRIBUTE_INDEX_UPDATE
+  before insert or update of ATTRIBUTES on ASSET
+  for each row execute procedure UPDATE_ASSET_ATTRIBUTE_INDEX();
@@ -0,0 +1,4 @@
+/*
+  Retention of syslog events deletes by timestamp, in chunks.
+ */
+create index SYSLOG_EVENT_TIMESTAMP_IDX on SYSLOG_EVENT (TIMESTAMP);
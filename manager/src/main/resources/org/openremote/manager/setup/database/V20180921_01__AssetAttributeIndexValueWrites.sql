@@ -0,0 +1,37 @@
+/*
+  Attribute value writes (jsonb_set of an attribute value and timestamp) fire the ASSET_ATTRIBUTE_INDEX_UPDATE
+  trigger, but don't change the attribute names or meta items. Only recompute the projections when an attribute
+  was added or removed, or its meta items changed, comparing the old and new attributes without aggregation.
+ */
+create or replace function IS_ASSET_ATTRIBUTE_INDEX_CHANGED(OLD_ATTRIBUTES jsonb, NEW_ATTRIBUTES jsonb)
+  returns boolean as
+$$
+select case
+  when OLD_ATTRIBUTES is not distinct from NEW_ATTRIBUTES
+    then false
+  when jsonb_typeof(OLD_ATTRIBUTES) is distinct from 'object' or jsonb_typeof(NEW_ATTRIBUTES) is distinct from 'object'
+    then true
+  else exists(
+    select 1
+    from jsonb_each(OLD_ATTRIBUTES) as OX
+      full join jsonb_each(NEW_ATTRIBUTES) as NX on NX.key = OX.key
+    where OX.key is null
+       or NX.key is null
+       or (OX.value -> 'meta') is distinct from (NX.value -> 'meta')
+  ) end;
+$$
+language sql immutable;
+
+create or replace function UPDATE_ASSET_ATTRIBUTE_INDEX()
+  returns trigger as
+$$
+begin
+  if TG_OP = 'UPDATE' and not IS_ASSET_ATTRIBUTE_INDEX_CHANGED(OLD.ATTRIBUTES, NEW.ATTRIBUTES) then
+    return NEW;
+  end if;
+  NEW.ATTRIBUTE_NAMES := GET_ASSET_ATTRIBUTE_NAMES(NEW.ATTRIBUTES);
+  NEW.META_ITEMS := GET_ASSET_META_ITEMS(NEW.ATTRIBUTES);
+  return NEW;
+end;
+$$
+language plpgsql;
@@ -0,0 +1,6 @@
+/*
+  Keyset pagination of asset queries orders by ID with the "C" collation, so the order is the same as the byte order
+  of identifiers in clients, independent of the database collation. The primary key index uses the database collation
+  and can't be used for this order.
+ */
+create index ASSET_ID_KEYSET_IDX on ASSET (ID collate "C");
@@ -38,6 +38,12 @@ public class EventSubscription<E extends SharedEvent> {
 
     protected String eventType;
     protected EventFilter<E> filter;
+    /**
+     * Optional minimum interval between deliveries of {@link org.openremote.model.attribute.AttributeEvent}s
+     * for the same attribute. Events received during the interval replace each other, the latest is delivered
+     * when the interval ends.
+     */
+    protected int throttleMillis;
     /**
      * Optional only set when an internal subscription is made
      */
@@ -85,6 +91,14 @@ public class EventSubscription<E extends SharedEvent> {
         this.filter = filter;
     }
 
+    public int getThrottleMillis() {
+        return throttleMillis;
+    }
+
+    public void setThrottleMillis(int throttleMillis) {
+        this.throttleMillis = throttleMillis;
+    }
+
     public boolean isEventType(Class<? extends Event> eventClass) {
         return Event.getEventType(eventClass).equals(getEventType());
     }
@@ -98,6 +112,7 @@ public class EventSubscription<E extends SharedEvent> {
         return getClass().getSimpleName() + "{" +
             "eventType='" + eventType + '\'' +
             ", filter=" + filter +
+            (throttleMillis > 0 ? ", throttleMillis=" + throttleMillis : "") +
             '}';
     }
 }
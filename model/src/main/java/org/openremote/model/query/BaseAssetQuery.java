@@ -247,6 +247,9 @@ public class BaseAssetQuery<CHILD extends BaseAssetQuery<CHILD>> {
     public LocationPredicate location;
     // Ordering
     public OrderBy orderBy;
+    // Keyset pagination, results are ordered by asset identifier when paging
+    public int limit;
+    public String afterId;
     protected BaseAssetQuery() {
     }
 
@@ -474,6 +477,27 @@ public class BaseAssetQuery<CHILD extends BaseAssetQuery<CHILD>> {
         return (CHILD) this;
     }
 
+    /**
+     * Restrict the number of results, the results are then ordered by asset identifier and {@link #orderBy} is
+     * ignored. Use {@link #afterId} with the identifier of the last result to query the next page.
+     * <p>
+     * <b>
+     * NOTE: The limit is applied before {@link #calendarEventActive}, so a page might contain fewer results.
+     * </b>
+     */
+    public CHILD limit(int limit) {
+        this.limit = limit;
+        return (CHILD) this;
+    }
+
+    /**
+     * Only return assets with an identifier greater than the given identifier, ordered by asset identifier.
+     */
+    public CHILD afterId(String afterId) {
+        this.afterId = afterId;
+        return (CHILD) this;
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "{" +
@@ -488,6 +512,8 @@ public class BaseAssetQuery<CHILD extends BaseAssetQuery<CHILD>> {
             ", attribute=" + Arrays.toString(attribute) +
             ", attributeMeta=" + Arrays.toString(attributeMeta) +
             ", orderBy=" + orderBy +
+            (limit > 0 ? ", limit=" + limit : "") +
+            (afterId != null ? ", afterId='" + afterId + '\'' : "") +
             '}';
     }
 }
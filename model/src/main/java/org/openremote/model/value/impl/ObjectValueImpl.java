@@ -160,7 +160,11 @@ public class ObjectValueImpl extends ValueImpl implements ObjectValue {
 
     @Override
     public ObjectValue deepCopy() {
-        return Values.<ObjectValue>parse(toJson()).orElseThrow(() -> new IllegalStateException("Error copying object value"));
+        ObjectValueImpl copy = new ObjectValueImpl(factory);
+        for (Map.Entry<String, Value> entry : map.entrySet()) {
+            copy.map.put(entry.getKey(), copyOf(entry.getValue()));
+        }
+        return copy;
     }
 
     @Override
@@ -19,6 +19,8 @@ import com.google.gwt.core.client.GWT;
 import com.google.gwt.core.client.JsonUtils;
 import jsinterop.base.Any;
 import jsinterop.base.Js;
+import org.openremote.model.value.ArrayValue;
+import org.openremote.model.value.ObjectValue;
 import org.openremote.model.value.Value;
 import org.openremote.model.value.ValueException;
 
@@ -35,4 +37,16 @@ public abstract class ValueImpl implements Value {
 
     public abstract void traverse(ValueVisitor visitor, ValueContext ctx) throws ValueException;
 
+    /**
+     * Structural copy of a value tree, only object and array nodes are copied. String, number and
+     * boolean values are immutable and shared between the original and the copy.
+     */
+    static Value copyOf(Value value) {
+        if (value instanceof ObjectValue)
+            return ((ObjectValue) value).deepCopy();
+        if (value instanceof ArrayValue)
+            return ((ArrayValue) value).deepCopy();
+        return value;
+    }
+
 }
@@ -34,6 +34,7 @@ import spock.util.concurrent.PollingConditions
 
 import javax.persistence.EntityManager
 import java.util.function.Function
+import java.util.stream.Collectors
 
 import static org.openremote.model.query.BaseAssetQuery.*
 import static org.openremote.model.query.BaseAssetQuery.Access.PRIVATE_READ
@@ -650,6 +651,81 @@ class AssetQueryTest extends Specification implements ManagerContainerTrait {
         assert asset.getAttribute("co2Level").isPresent()
         assert asset.getAttribute("co2Level").get().valueAsNumber.get() == 350
 
+        when: "a recursive query is executed to select descendant assets with an attribute name"
+        assets = assetStorageService.findAll(
+                new AssetQuery()
+                        .id(managerDemoSetup.apartment2Id)
+                        .select(new Select(Include.ONLY_ID_AND_NAME, true, PRIVATE_READ))
+                        .attributes(new AttributePredicate("co2Level"))
+        )
+
+        then: "result should contain only the assets with the attribute"
+        assets.size() == 1
+        assets.get(0).id == managerDemoSetup.apartment2LivingroomId
+
+        when: "a recursive query is executed to select descendant assets with an attribute meta item name"
+        assets = assetStorageService.findAll(
+                new AssetQuery()
+                        .id(managerDemoSetup.apartment2Id)
+                        .select(new Select(Include.ONLY_ID_AND_NAME, true, PRIVATE_READ))
+                        .attributeMeta(new AttributeMetaPredicate(AssetMeta.RULE_EVENT))
+                        .orderBy(new OrderBy(CREATED_ON))
+        )
+
+        then: "result should contain only the assets with the meta item"
+        assets.size() == 3
+        assets.get(0).id == managerDemoSetup.apartment2Id
+        assets.get(1).id == managerDemoSetup.apartment2LivingroomId
+        assets.get(2).id == managerDemoSetup.apartment2BathroomId
+    }
+
+    def "Paged and streamed queries"() {
+
+        when: "all assets of a tenant are queried"
+        def allAssets = assetStorageService.findAll(
+                new AssetQuery()
+                        .select(new Select(Include.ONLY_ID_AND_NAME))
+                        .tenant(new TenantPredicate(keycloakDemoSetup.customerATenant.id))
+        )
+        def allIds = allAssets.collect { it.id }.sort()
+
+        then: "there should be more than one page"
+        allIds.size() > 2
+
+        when: "the assets are queried in pages of two"
+        def pagedIds = []
+        def page
+        def afterId = null
+        while (true) {
+            page = assetStorageService.findAll(
+                    new AssetQuery()
+                            .select(new Select(Include.ONLY_ID_AND_NAME))
+                            .tenant(new TenantPredicate(keycloakDemoSetup.customerATenant.id))
+                            .limit(2)
+                            .afterId(afterId)
+            )
+            assert page.size() <= 2
+            if (page.isEmpty())
+                break
+            pagedIds.addAll(page.collect { it.id })
+            afterId = page.last().id
+        }
+
+        then: "all assets should have been returned once, ordered by identifier"
+        pagedIds.size() == pagedIds.toSet().size()
+        pagedIds.toSet() == allIds.toSet()
+        pagedIds == allIds
+
+        when: "the assets are streamed"
+        def streamedIds = assetStorageService.streamAll(
+                new AssetQuery()
+                        .select(new Select(Include.ALL))
+                        .tenant(new TenantPredicate(keycloakDemoSetup.customerATenant.id)),
+                { assets -> assets.map { it.id }.collect(Collectors.toList()) } as Function
+        )
+
+        then: "all assets should have been returned"
+        streamedIds.sort() == allIds
     }
 
     def "Location queries"() {
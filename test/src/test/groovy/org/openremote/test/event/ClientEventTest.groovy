@@ -19,9 +19,15 @@
  */
 package org.openremote.test.event
 
+import org.apache.camel.impl.DefaultCamelContext
+import org.apache.camel.impl.DefaultExchange
+import org.openremote.container.timer.TimerService
 import org.openremote.manager.agent.AgentService
 import org.openremote.manager.asset.AssetProcessingService
 import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.concurrent.ManagerExecutorService
+import org.openremote.manager.event.EventSubscriptions
+import org.openremote.manager.event.EventTypeConverters
 import org.openremote.manager.setup.SetupService
 import org.openremote.manager.setup.builtin.ManagerDemoSetup
 import org.openremote.model.asset.AssetMeta
@@ -41,6 +47,9 @@ import org.openremote.test.ManagerContainerTrait
 import spock.lang.Specification
 import spock.util.concurrent.PollingConditions
 
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
 import static org.openremote.container.util.MapAccess.getString
 import static org.openremote.manager.event.ClientEventService.CLIENT_EVENT_QUEUE
 import static org.openremote.manager.event.ClientEventService.WEBSOCKET_EVENTS
@@ -233,4 +242,79 @@ class ClientEventTest extends Specification implements ManagerContainerTrait, Gw
         and: "the server should be stopped"
         stopContainer(container)
     }
+
+    def "Throttled event subscription renewal"() {
+
+        given: "expected conditions"
+        def conditions = new PollingConditions(timeout: 10, delay: 0.2)
+
+        and: "the container is started"
+        def serverPort = findEphemeralPort()
+        def container = startContainerWithPseudoClock(defaultConfig(serverPort), [new TimerService(), new ManagerExecutorService()])
+        def timerService = container.getService(TimerService.class)
+        def executorService = container.getService(ManagerExecutorService.class)
+
+        and: "a context for serializing events"
+        def camelContext = new DefaultCamelContext()
+        camelContext.getTypeConverterRegistry().addTypeConverters(new EventTypeConverters())
+
+        and: "event subscriptions delivering throttled events to a session"
+        List<AttributeEvent> throttledEvents = new CopyOnWriteArrayList<>()
+        def eventSubscriptions = new EventSubscriptions(timerService, executorService, { sessionKey, event ->
+            throttledEvents.add(event as AttributeEvent)
+        })
+        def publish = { AttributeEvent event ->
+            def exchange = new DefaultExchange(camelContext)
+            exchange.getIn().setBody(event)
+            eventSubscriptions.splitForSubscribers(exchange).size()
+        }
+        def newSubscription = {
+            def subscription = new EventSubscription<>(AttributeEvent.class, new AttributeEvent.EntityIdFilter("testAsset"))
+            subscription.setThrottleMillis(2000)
+            subscription
+        }
+
+        when: "a throttled subscription is made"
+        eventSubscriptions.update("testSession", false, newSubscription())
+
+        then: "the first event of the attribute should be delivered immediately"
+        publish(new AttributeEvent("testAsset", "testAttribute", Values.create(1))) == 1
+
+        when: "more events of the attribute are published during the interval"
+        def deliveredNow = publish(new AttributeEvent("testAsset", "testAttribute", Values.create(2))) +
+            publish(new AttributeEvent("testAsset", "testAttribute", Values.create(3)))
+
+        and: "the subscription is renewed"
+        eventSubscriptions.update("testSession", false, newSubscription())
+
+        then: "the events should be held back"
+        deliveredNow == 0
+
+        when: "another event is published after renewal"
+        deliveredNow = publish(new AttributeEvent("testAsset", "testAttribute", Values.create(4)))
+
+        then: "the throttle interval should continue after renewal"
+        deliveredNow == 0
+        throttledEvents.isEmpty()
+
+        and: "the last value should be delivered when the interval ends"
+        conditions.eventually {
+            assert throttledEvents.size() == 1
+            assert Values.getNumber(throttledEvents[0].value.get()).get() == 4
+        }
+
+        when: "the throttle interval has ended and the subscription is renewed without pending events"
+        advancePseudoClock(2100, TimeUnit.MILLISECONDS, container)
+        eventSubscriptions.update("testSession", false, newSubscription())
+
+        then: "the ended throttle state should not be carried over"
+        eventSubscriptions.sessionSubscriptions["testSession"].values().every { it.throttledAttributes.isEmpty() }
+
+        and: "the next event should be delivered immediately"
+        publish(new AttributeEvent("testAsset", "testAttribute", Values.create(5))) == 1
+        throttledEvents.size() == 1
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
 }
\ No newline at end of file
@@ -5,7 +5,13 @@ import org.openremote.model.map.MapResource
 import org.openremote.test.ManagerContainerTrait
 import spock.lang.Specification
 
+import javax.ws.rs.core.HttpHeaders
+import javax.ws.rs.core.Response
+import java.nio.file.Files
+import java.sql.DriverManager
+
 import static org.openremote.container.util.MapAccess.getString
+import static org.openremote.manager.map.MapService.MAP_TILES_PATH
 import static org.openremote.manager.setup.AbstractKeycloakSetup.*
 import static org.openremote.model.Constants.*
 
@@ -47,4 +53,89 @@ class MapResourceTest extends Specification implements ManagerContainerTrait {
         cleanup: "the server should be stopped"
         stopContainer(container)
     }
+
+    def "Retrieve map tiles and revalidate them"() {
+        given: "a map tiles data file with a single tile"
+        def mapTilesPath = Files.createTempFile("maptiles", ".mbtiles")
+        byte[] tileData = [1, 2, 3, 4] as byte[]
+        DriverManager.getConnection("jdbc:sqlite:" + mapTilesPath.toAbsolutePath()).withCloseable { connection ->
+            connection.createStatement().withCloseable { statement ->
+                statement.executeUpdate("create table METADATA (NAME text, VALUE text)")
+                statement.executeUpdate("insert into METADATA values ('json', '{\"vector_layers\": []}'), ('minzoom', '0'), ('maxzoom', '1'), ('attribution', 'Test')")
+                statement.executeUpdate("create table TILES (ZOOM_LEVEL integer, TILE_COLUMN integer, TILE_ROW integer, TILE_DATA blob)")
+            }
+            // Rows are stored flipped, this is row 0 of zoom level 1
+            connection.prepareStatement("insert into TILES values (1, 0, 1, ?)").withCloseable { statement ->
+                statement.setBytes(1, tileData)
+                statement.executeUpdate()
+            }
+        }
+
+        and: "the server container is started"
+        def serverPort = findEphemeralPort()
+        def container = startContainerNoDemoImport(defaultConfig(serverPort) << [(MAP_TILES_PATH): mapTilesPath.toString()], defaultServices())
+
+        and: "an authenticated user"
+        def realm = MASTER_REALM
+        def accessToken = authenticate(
+                container,
+                realm,
+                KEYCLOAK_CLIENT_ID,
+                MASTER_REALM_ADMIN_USER,
+                getString(container.getConfig(), SETUP_ADMIN_PASSWORD, SETUP_ADMIN_PASSWORD_DEFAULT)
+        ).token
+
+        and: "a test client target"
+        def clientTarget = getClientTarget(serverUri(serverPort), realm, accessToken)
+        def getTile = { String path, String ifNoneMatch ->
+            def request = clientTarget.path("map/tile").path(path).request()
+            if (ifNoneMatch != null) {
+                request.header(HttpHeaders.IF_NONE_MATCH, ifNoneMatch)
+            }
+            request.get()
+        }
+
+        when: "a tile is requested"
+        def response = getTile("1/0/0", null)
+
+        then: "the tile should be returned with its tag"
+        response.status == Response.Status.OK.statusCode
+        def eTag = response.getHeaderString(HttpHeaders.ETAG)
+        eTag != null
+        response.getHeaderString(HttpHeaders.CACHE_CONTROL).contains("max-age=")
+        response.readEntity(byte[].class) == tileData
+
+        when: "the tile is requested again with its tag"
+        response = getTile("1/0/0", eTag)
+
+        then: "it should not have been modified"
+        response.status == Response.Status.NOT_MODIFIED.statusCode
+        response.getHeaderString(HttpHeaders.ETAG) == eTag
+        response.close()
+
+        when: "the tile is requested with another tag"
+        response = getTile("1/0/0", '"other"')
+
+        then: "the tile should be returned"
+        response.status == Response.Status.OK.statusCode
+        response.readEntity(byte[].class) == tileData
+
+        when: "a missing tile is requested with any tag"
+        response = getTile("1/1/0", "*")
+
+        then: "it should not be found"
+        response.status == Response.Status.NOT_FOUND.statusCode
+        response.close()
+
+        when: "a missing tile is requested with the tag it would have"
+        response = getTile("1/1/0", eTag.replace("-1-0-0", "-1-1-0"))
+
+        then: "it should not be found"
+        response.status == Response.Status.NOT_FOUND.statusCode
+        response.close()
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+        Files.deleteIfExists(mapTilesPath)
+    }
 }
@@ -159,4 +159,30 @@ class ModelValueTest extends Specification {
         differentValues1.hashCode() != differentValues2.hashCode()
     }
 
+    def "Deep copy values"() {
+
+        given:
+        ObjectValue original = Values.<ObjectValue>parse('{"a":"AAA","b":123,"c":true,"d":null,"e":[{"f":"FFF"},[1,2],null]}').get()
+
+        when: "a copy is made"
+        ObjectValue copy = original.deepCopy()
+
+        then: "the copy should be equal but not share any object or array nodes"
+        copy == original
+        copy.toJson() == original.toJson()
+        copy.keyContainsNull("d")
+        !copy.is(original)
+        !copy.getArray("e").get().is(original.getArray("e").get())
+        !copy.getArray("e").get().getObject(0).get().is(original.getArray("e").get().getObject(0).get())
+        copy.getArray("e").get().indexContainsNull(2)
+
+        when: "the copy is modified"
+        copy.put("a", "BBB")
+        copy.getArray("e").get().getObject(0).get().put("f", "GGG")
+        copy.getArray("e").get().getArray(1).get().add(Values.create(3))
+
+        then: "the original should be unchanged"
+        original.toJson() == '{"a":"AAA","b":123,"c":true,"d":null,"e":[{"f":"FFF"},[1,2],null]}'
+        copy != original
+    }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.protocol
+
+import org.openremote.agent.protocol.filter.JsonFilter
+import org.openremote.agent.protocol.filter.MessageFilter
+import org.openremote.agent.protocol.filter.MessageFilterPipeline
+import org.openremote.agent.protocol.filter.RegexFilter
+import org.openremote.agent.protocol.filter.SubStringFilter
+import org.openremote.model.value.ObjectValue
+import org.openremote.model.value.StringValue
+import org.openremote.model.value.Value
+import org.openremote.model.value.ValueType
+import org.openremote.model.value.Values
+import spock.lang.Specification
+
+class MessageFilterPipelineTest extends Specification {
+
+    static class UnknownTypeFilter extends MessageFilter<Value> {
+        @Override
+        Class<Value> getMessageType() {
+            return Value.class
+        }
+
+        @Override
+        Value process(Value message) {
+            return message
+        }
+    }
+
+    static class ThrowingFilter extends MessageFilter<StringValue> {
+        @Override
+        Class<StringValue> getMessageType() {
+            return StringValue.class
+        }
+
+        @Override
+        Value process(StringValue message) {
+            throw new IllegalStateException("Broken filter")
+        }
+    }
+
+    def "Resolve stage message types and value type"() {
+
+        when: "a pipeline is created with filters of known message types"
+        def pipeline = new MessageFilterPipeline(
+            [new JsonFilter("a"), new RegexFilter("(\\d+)", 1, 0), new SubStringFilter(0)],
+            ValueType.NUMBER
+        )
+
+        then: "the message value type of each stage should be resolved"
+        pipeline.hasFilters()
+        pipeline.valueType == ValueType.NUMBER
+        pipeline.stages.length == 3
+        pipeline.stages[0].messageType == ObjectValue.class
+        pipeline.stages[0].messageValueType == ValueType.OBJECT
+        pipeline.stages[1].messageType == StringValue.class
+        pipeline.stages[1].messageValueType == ValueType.STRING
+        pipeline.stages[2].messageValueType == ValueType.STRING
+
+        when: "a pipeline is created with a filter of unknown message type"
+        pipeline = new MessageFilterPipeline([new UnknownTypeFilter()], null)
+
+        then: "the stage should have no message value type"
+        pipeline.stages[0].messageType == Value.class
+        pipeline.stages[0].messageValueType == null
+
+        and: "the pipeline should not pass any message"
+        pipeline.process(Values.create("test")) == null
+
+        when: "a pipeline is created without filters"
+        pipeline = new MessageFilterPipeline(null, ValueType.NUMBER)
+
+        then: "only the value conversion should be applied"
+        !pipeline.hasFilters()
+        pipeline.process(Values.create("123")) == Values.create(123)
+        pipeline.process(null) == null
+    }
+
+    def "Apply filters and conversions"() {
+
+        given: "a pipeline extracting a number from a JSON string"
+        def pipeline = new MessageFilterPipeline(
+            [new JsonFilter("values", "1", "temperature"), new RegexFilter("(\\d+)C", 1, 0)],
+            ValueType.NUMBER
+        )
+
+        expect: "the string message should be converted for the JSON filter and the result to a number"
+        pipeline.process(Values.create('{"values": [{"temperature": "10C"}, {"temperature": "21C"}]}')) == Values.create(21)
+
+        and: "the object message should be processed without conversion"
+        pipeline.process(Values.parse('{"values": [{}, {"temperature": "22C"}]}').get()) == Values.create(22)
+
+        and: "a message not matching a filter should not pass"
+        pipeline.process(Values.parse('{"values": [{"temperature": "10C"}]}').get()) == null
+        pipeline.process(Values.create("not json")) == null
+
+        when: "a filter throws an exception"
+        pipeline = new MessageFilterPipeline([new ThrowingFilter()], null)
+
+        then: "the message should not pass"
+        pipeline.process(Values.create("test")) == null
+
+        when: "the result can't be converted to the value type"
+        pipeline = new MessageFilterPipeline([new SubStringFilter(0, 3)], ValueType.NUMBER)
+
+        then: "the unconverted result should be returned"
+        pipeline.process(Values.create("abcdef")) == Values.create("abc")
+    }
+
+    def "Parse JSON filter path"() {
+
+        expect: "path segments to be parsed into array indexes and object keys"
+        JsonFilter.parsePath(["a", "0", "b", "12"]) == [-1, 0, -1, 12] as int[]
+        new JsonFilter("a", "0", "b").pathIndexes == [-1, 0, -1] as int[]
+
+        and: "negative and non-numeric segments to be object keys"
+        JsonFilter.parsePath(["-1", "1a", "a1"]) == [-1, -1, -1] as int[]
+
+        and: "empty paths and segments not to match"
+        JsonFilter.parsePath(null) == null
+        JsonFilter.parsePath([]) == null
+        JsonFilter.parsePath(["a", ""]) == null
+        JsonFilter.parsePath(["a", null]) == null
+        new JsonFilter("a", "").process(Values.parse('{"a": {"": 1}}').get()) == null
+
+        and: "indexes out of integer range not to match"
+        JsonFilter.parsePath(["99999999999"]) == null
+
+        and: "the parsed path to be applied to arrays and objects"
+        new JsonFilter("0", "a").process(Values.parse('{"0": {"a": 1}}').get()) == null
+        new JsonFilter("a", "0").process(Values.parse('{"a": {"0": 1}}').get()) == null
+        new JsonFilter("a", "1").process(Values.parse('{"a": [1, 2]}').get()) == Values.create(2)
+        new JsonFilter("a", "2").process(Values.parse('{"a": [1, 2]}').get()) == null
+    }
+
+    def "Process messages with a compiled pipeline"() {
+
+        given: "a pipeline of a typical linked attribute"
+        def pipeline = new MessageFilterPipeline(
+            [new JsonFilter("data", "0", "value"), new SubStringFilter(0, 4)],
+            ValueType.NUMBER
+        )
+        def messages = (0..<1000).collect {
+            Values.create('{"data": [{"value": "' + (1000 + it) + 'kWh"}]}')
+        }
+
+        expect: "the pipeline to be reused for all messages"
+        messages.withIndex().every { message, i ->
+            pipeline.process(message) == Values.create(1000 + i)
+        }
+
+        and: "messages not matching the JSON path not to pass"
+        pipeline.process(Values.create('{"data": []}')) == null
+        pipeline.process(Values.create('{"data": [{"energy": "1000kWh"}]}')) == null
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.protocol
+
+import org.apache.camel.ProducerTemplate
+import org.openremote.agent.protocol.AbstractProtocol
+import org.openremote.agent.protocol.Protocol
+import org.openremote.agent.protocol.filter.SubStringFilter
+import org.openremote.model.asset.AssetAttribute
+import org.openremote.model.asset.agent.ProtocolConfiguration
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.attribute.AttributeRef
+import org.openremote.model.attribute.AttributeState
+import org.openremote.model.attribute.AttributeValueType
+import org.openremote.model.attribute.MetaItem
+import org.openremote.model.attribute.MetaItemDescriptor
+import org.openremote.model.value.Values
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Tests the linked attribute registry of {@link AbstractProtocol} when sensor updates are concurrent with linking.
+ */
+class ProtocolConcurrencyTest extends Specification {
+
+    static class ConcurrentMockProtocol extends AbstractProtocol {
+
+        final String protocolName
+
+        ConcurrentMockProtocol(String protocolName, ProducerTemplate producerTemplate) {
+            this.protocolName = protocolName
+            this.producerTemplate = producerTemplate
+        }
+
+        void update(AttributeState state) {
+            updateLinkedAttribute(state, 0L)
+        }
+
+        @Override
+        protected List<MetaItemDescriptor> getProtocolConfigurationMetaItemDescriptors() {
+            return null
+        }
+
+        @Override
+        protected List<MetaItemDescriptor> getLinkedAttributeMetaItemDescriptors() {
+            return null
+        }
+
+        @Override
+        protected void doLinkProtocolConfiguration(AssetAttribute protocolConfiguration) {
+        }
+
+        @Override
+        protected void doUnlinkProtocolConfiguration(AssetAttribute protocolConfiguration) {
+        }
+
+        @Override
+        protected void doLinkAttribute(AssetAttribute attribute, AssetAttribute protocolConfiguration) {
+        }
+
+        @Override
+        protected void doUnlinkAttribute(AssetAttribute attribute, AssetAttribute protocolConfiguration) {
+        }
+
+        @Override
+        protected void processLinkedAttributeWrite(AttributeEvent event, AssetAttribute protocolConfiguration) {
+        }
+
+        @Override
+        String getProtocolName() {
+            return protocolName
+        }
+
+        @Override
+        String getProtocolDisplayName() {
+            return "Concurrent Mock"
+        }
+
+        @Override
+        String getVersion() {
+            return "1.0"
+        }
+    }
+
+    static ProducerTemplate createSensorQueue(Queue<AttributeEvent> sensorEvents) {
+        [sendBodyAndHeader: { String endpointUri, Object body, String header, Object headerValue ->
+            assert endpointUri == Protocol.SENSOR_QUEUE
+            sensorEvents.add(body as AttributeEvent)
+        }] as ProducerTemplate
+    }
+
+    static AssetAttribute createProtocolConfiguration(String assetId, String protocolName) {
+        ProtocolConfiguration.initProtocolConfiguration(new AssetAttribute(assetId, "mockConfig"), protocolName)
+    }
+
+    static List<AssetAttribute> createLinkedAttributes(String assetId, int count) {
+        (0..<count).collect { i ->
+            // Sensor values are only valid after the filter extracted the number
+            new AssetAttribute(assetId, "sensor" + i, AttributeValueType.NUMBER).setMeta(
+                new MetaItem(Protocol.META_PROTOCOL_FILTERS, Values.createArray().add(new SubStringFilter(0, 2).toValue().get()))
+            )
+        }
+    }
+
+    def "Link and unlink attributes while updating them"() {
+
+        given: "a protocol sending sensor updates"
+        Queue<AttributeEvent> sensorEvents = new ConcurrentLinkedQueue<>()
+        def protocol = new ConcurrentMockProtocol("urn:myCustom:concurrentMockProtocol", createSensorQueue(sensorEvents))
+        def protocolConfiguration = createProtocolConfiguration("mockAgent", protocol.protocolName)
+        protocol.linkProtocolConfiguration(protocolConfiguration, {})
+        def attributes = createLinkedAttributes("mockThing", 10)
+
+        and: "threads updating the attributes until stopped"
+        def running = new AtomicBoolean(true)
+        def updates = new AtomicInteger()
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>()
+        def threadCount = 4
+        def stopped = new CountDownLatch(threadCount)
+        threadCount.times {
+            Thread.start {
+                try {
+                    while (running.get()) {
+                        attributes.each { attribute ->
+                            protocol.update(new AttributeState(attribute.getReferenceOrThrow(), Values.create("42 units")))
+                            updates.incrementAndGet()
+                        }
+                    }
+                } catch (Throwable t) {
+                    errors.add(t)
+                } finally {
+                    stopped.countDown()
+                }
+            }
+        }
+
+        when: "the attributes are linked and unlinked repeatedly while they are updated"
+        200.times {
+            protocol.linkAttributes(attributes, protocolConfiguration)
+            Thread.yield()
+            protocol.unlinkAttributes(attributes, protocolConfiguration)
+        }
+        protocol.linkAttributes(attributes, protocolConfiguration)
+        while (updates.get() < 10000) {
+            Thread.sleep(10)
+        }
+
+        and: "the updates are stopped"
+        running.set(false)
+        stopped.await()
+
+        then: "the updates should not have failed"
+        errors.isEmpty()
+
+        and: "every sensor update should have passed the message filters of its attribute"
+        !sensorEvents.isEmpty()
+        sensorEvents.every { event ->
+            event.value.flatMap(Values.&getNumber).orElse(null) == 42d
+        }
+
+        and: "the registry should contain the linked attributes and their pipelines"
+        protocol.linkedAttributes.size() == attributes.size()
+        protocol.linkedAttributePipelines.size() == attributes.size()
+        protocol.linkedAttributePipelines.values().every { it.hasFilters() }
+        protocol.getStatus(protocolConfiguration) != null
+
+        when: "the attributes are unlinked"
+        protocol.unlinkAttributes(attributes, protocolConfiguration)
+        sensorEvents.clear()
+
+        and: "the attributes are updated"
+        attributes.each { attribute ->
+            protocol.update(new AttributeState(attribute.getReferenceOrThrow(), Values.create("42 units")))
+        }
+
+        then: "no sensor updates should be sent"
+        sensorEvents.isEmpty()
+        protocol.linkedAttributes.isEmpty()
+        protocol.linkedAttributePipelines.isEmpty()
+    }
+
+    def "Push sensor updates of multiple protocols concurrently"() {
+
+        given: "several protocols with linked attributes"
+        def protocolCount = 4
+        def attributeCount = 100
+        def updatesPerProtocol = 10000
+        Queue<AttributeEvent> sensorEvents = new ConcurrentLinkedQueue<>()
+        def producerTemplate = createSensorQueue(sensorEvents)
+        List<ConcurrentMockProtocol> protocols = (0..<protocolCount).collect { i ->
+            def protocol = new ConcurrentMockProtocol("urn:myCustom:concurrentMockProtocol" + i, producerTemplate)
+            def protocolConfiguration = createProtocolConfiguration("mockAgent" + i, protocol.protocolName)
+            protocol.linkProtocolConfiguration(protocolConfiguration, {})
+            protocol.linkAttributes(createLinkedAttributes("mockThing" + i, attributeCount), protocolConfiguration)
+            protocol
+        }
+
+        when: "all protocols push updates on their own thread at the same time"
+        def start = new CountDownLatch(1)
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>()
+        List<Thread> threads = protocols.withIndex().collect { protocol, i ->
+            List<AttributeState> states = (0..<attributeCount).collect {
+                new AttributeState(new AttributeRef("mockThing" + i, "sensor" + it), Values.create(String.format("%02d units", it)))
+            }
+            Thread.start {
+                try {
+                    start.await()
+                    for (int update = 0; update < updatesPerProtocol; update++) {
+                        protocol.update(states[update % attributeCount])
+                    }
+                } catch (Throwable t) {
+                    errors.add(t)
+                }
+            }
+        }
+        start.countDown()
+        threads.each { it.join() }
+
+        then: "the updates should not have failed"
+        errors.isEmpty()
+
+        and: "every update should have been sent"
+        sensorEvents.size() == protocolCount * updatesPerProtocol
+
+        and: "every update should have passed the message filters of its attribute"
+        sensorEvents.every { event ->
+            event.value.flatMap(Values.&getNumber).orElse(null) == Double.valueOf(event.attributeName.substring("sensor".length()))
+        }
+
+        and: "each attribute should have received its share of the updates"
+        sensorEvents.countBy { it.attributeRef } == (0..<protocolCount).collectEntries { i ->
+            (0..<attributeCount).collectEntries { [(new AttributeRef("mockThing" + i, "sensor" + it)): updatesPerProtocol.intdiv(attributeCount)] }
+        }
+    }
+}
@@ -2,11 +2,30 @@ package org.openremote.test.rules
 
 import groovy.transform.EqualsAndHashCode
 import groovy.transform.ToString
+import org.jeasy.rules.api.Action
+import org.jeasy.rules.api.Condition
+import org.jeasy.rules.core.RuleBuilder
 import org.openremote.container.Container
+import org.openremote.manager.rules.AssetQueryPredicate
 import org.openremote.manager.rules.RulesClock
 import org.openremote.manager.rules.RulesEngine
 import org.openremote.manager.rules.RulesFacts
+import org.openremote.manager.rules.RulesetDeployment
+import org.openremote.model.asset.Asset
+import org.openremote.model.asset.AssetAttribute
+import org.openremote.model.asset.AssetType
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.attribute.AttributeType
+import org.openremote.model.attribute.AttributeValueType
+import org.openremote.model.geo.GeoJSONPoint
+import org.openremote.model.query.AssetQuery
+import org.openremote.model.query.BaseAssetQuery
+import org.openremote.model.query.filter.RadialLocationPredicate
+import org.openremote.model.query.filter.RectangularLocationPredicate
+import org.openremote.model.query.filter.TenantPredicate
+import org.openremote.model.rules.AssetState
 import org.openremote.model.rules.Assets
+import org.openremote.model.value.Values
 import spock.lang.Specification
 
 import java.util.stream.Collectors
@@ -393,4 +412,268 @@ class BasicRulesFactsTest extends Specification {
         assert !rulesFacts.hasTemporaryFacts()
         assert rulesFacts.match(AnonFact).count() == 0
     }
+
+    def "Expire temporary facts in order of expiry"() {
+
+        when: "temporary facts with different expiry are added"
+        rulesFacts.putTemporary("foo", "10s", "FOO")
+        rulesFacts.putTemporary("5s", new AnonFact("FOO1", 123, true))
+        rulesFacts.putTemporary("bar", "15s", "BAR")
+
+        then: "the next expiry should be the earliest"
+        assert rulesFacts.getNextExpiryTimestamp().get() == 5000
+
+        when: "a named temporary fact is replaced before it expires"
+        rulesFacts.put("foo", "NEWFOO")
+        rulesFacts.setClock(new RulesClock(6000))
+        rulesFacts.removeExpiredTemporaryFacts()
+
+        then: "the expired fact should be removed and the replaced fact skipped"
+        assert rulesFacts.match(AnonFact).count() == 0
+        assert rulesFacts.getNextExpiryTimestamp().get() == 15000
+
+        when: "the clock is advanced past all expiries"
+        rulesFacts.setClock(new RulesClock(20000))
+        rulesFacts.removeExpiredTemporaryFacts()
+
+        then: "only the permanent fact should remain"
+        assert !rulesFacts.hasTemporaryFacts()
+        assert !rulesFacts.getNextExpiryTimestamp().isPresent()
+        assert rulesFacts.matchFirst("foo", { fact -> fact == "NEWFOO" }).isPresent()
+        assert !rulesFacts.matchFirst("bar").isPresent()
+    }
+
+    def "Track changed facts and rule dependencies"() {
+
+        given: "fact changes are tracked"
+        rulesFacts.setTrackChanges(true)
+
+        and: "the asset states of a thermostat"
+        def thermostat = new Asset("Thermostat", AssetType.THING)
+        thermostat.setId("thermostat123")
+        def temperature = new AssetState(
+            thermostat, new AssetAttribute("temperature", AttributeValueType.NUMBER, Values.create(20)), AttributeEvent.Source.SENSOR
+        )
+        def humidity = new AssetState(
+            thermostat, new AssetAttribute("humidity", AttributeValueType.NUMBER, Values.create(50)), AttributeEvent.Source.SENSOR
+        )
+
+        and: "a rule matching the temperature and a rule reading a named fact"
+        def temperatureRule = new RulesetDeployment.TrackedRule(new RuleBuilder()
+            .name("Temperature")
+            .when({ facts ->
+                facts.matchFirstAssetState(new AssetQuery().id("thermostat123").attributeName("temperature")).isPresent()
+            } as Condition)
+            .then({ facts -> } as Action)
+            .build())
+        def namedFactRule = new RulesetDeployment.TrackedRule(new RuleBuilder()
+            .name("Named fact")
+            .when({ facts -> facts.getOptional("foo").isPresent() } as Condition)
+            .then({ facts -> } as Action)
+            .build())
+
+        expect: "rules which have not been evaluated to depend on all facts"
+        assert temperatureRule.dependencies.isAffectedBy(rulesFacts.takeChanges())
+
+        when: "the rules are evaluated"
+        temperatureRule.evaluate(rulesFacts)
+        namedFactRule.evaluate(rulesFacts)
+
+        then: "the dependencies should be inferred"
+        assert !temperatureRule.dependencies.allFacts
+        assert temperatureRule.dependencies.assetStates.size() == 1
+        assert namedFactRule.dependencies.allFacts
+
+        when: "the humidity changes"
+        rulesFacts.putAssetState(humidity)
+        def changes = rulesFacts.takeChanges()
+
+        then: "only the rule depending on all facts should be affected"
+        assert changes.assetStates.size() == 1
+        assert !temperatureRule.dependencies.isAffectedBy(changes)
+        assert namedFactRule.dependencies.isAffectedBy(changes)
+        assert !rulesFacts.hasChanges()
+
+        when: "the temperature changes"
+        rulesFacts.putAssetState(temperature)
+        changes = rulesFacts.takeChanges()
+
+        then: "the temperature rule should be affected"
+        assert temperatureRule.dependencies.isAffectedBy(changes)
+
+        when: "a named fact changes"
+        rulesFacts.put("foo", "FOO")
+        changes = rulesFacts.takeChanges()
+
+        then: "the temperature rule should not be affected"
+        assert changes.otherFacts
+        assert !temperatureRule.dependencies.isAffectedBy(changes)
+        assert namedFactRule.dependencies.isAffectedBy(changes)
+    }
+
+    def "Match asset states with indexes"() {
+
+        given: "the asset states of thermostats in two rooms of a building"
+        def assetStates = []
+        ["room1", "room2"].each { roomId ->
+            ["a", "b"].each { suffix ->
+                def thermostat = new Asset("Thermostat", AssetType.THING)
+                thermostat.setId(roomId + suffix)
+                thermostat.setParentId(roomId)
+                thermostat.setRealmId("realm123")
+                ["temperature", "humidity"].each { attributeName ->
+                    def assetState = new AssetState(
+                        thermostat, new AssetAttribute(attributeName, AttributeValueType.NUMBER, Values.create(20)), AttributeEvent.Source.SENSOR
+                    )
+                    assetStates.add(assetState)
+                    rulesFacts.putAssetState(assetState)
+                }
+            }
+        }
+
+        expect: "the smallest set of candidates to be selected"
+        assert rulesFacts.assetStateIndex.size() == 8
+        assert rulesFacts.assetStateIndex.getCandidates(new AssetQuery().id("room1a").attributeName("temperature")).index == "attributeRef"
+        assert rulesFacts.assetStateIndex.getCandidates(new AssetQuery().id("room1a").attributeName("temperature")).assetStates.size() == 1
+        assert rulesFacts.assetStateIndex.getCandidates(new AssetQuery().ids(["room1a", "room2b"])).index == "id"
+        assert rulesFacts.assetStateIndex.getCandidates(new AssetQuery().ids(["room1a", "room2b"])).assetStates.size() == 4
+        assert rulesFacts.assetStateIndex.getCandidates(new AssetQuery().parent("room2").attributeName("humidity")).index == "parentId"
+        assert rulesFacts.assetStateIndex.getCandidates(new AssetQuery().attributeName("humidity")).index == "attributeName"
+        assert rulesFacts.assetStateIndex.getCandidates(new AssetQuery().attributeName(BaseAssetQuery.Match.BEGIN, "hum")) == null
+
+        and: "matching to succeed with and without indexes"
+        assert rulesFacts.matchAssetState(new AssetQuery().id("room1a").attributeName("temperature")).count() == 1
+        assert rulesFacts.matchAssetState(new AssetQuery().ids(["room1a", "room2b"])).count() == 4
+        assert rulesFacts.matchAssetState(new AssetQuery().parent("room2").attributeName("humidity")).count() == 2
+        assert rulesFacts.matchAssetState(new AssetQuery().tenant(new TenantPredicate("realm123"))).count() == 8
+        assert rulesFacts.matchAssetState(new AssetQuery().attributeName(BaseAssetQuery.Match.BEGIN, "hum")).count() == 4
+        assert rulesFacts.matchAssetState(new AssetQuery().type(AssetType.THING)).count() == 8
+        assert rulesFacts.matchAssetState(new AssetQuery().type(AssetType.BUILDING)).count() == 0
+
+        when: "an asset is moved to another room"
+        def movedThermostat = new Asset("Thermostat", AssetType.THING)
+        movedThermostat.setId("room1a")
+        movedThermostat.setParentId("room2")
+        movedThermostat.setRealmId("realm123")
+        rulesFacts.putAssetState(new AssetState(
+            movedThermostat, new AssetAttribute("humidity", AttributeValueType.NUMBER, Values.create(50)), AttributeEvent.Source.SENSOR
+        ))
+
+        then: "it should be indexed with its new parent"
+        assert rulesFacts.assetStateIndex.size() == 8
+        assert rulesFacts.matchAssetState(new AssetQuery().parent("room2").attributeName("humidity")).count() == 3
+        assert rulesFacts.matchAssetState(new AssetQuery().parent("room1").attributeName("humidity")).count() == 1
+
+        when: "the asset states are removed"
+        assetStates.each { rulesFacts.removeAssetState(it) }
+
+        then: "the indexes should be empty"
+        assert rulesFacts.assetStateIndex.size() == 0
+        assert rulesFacts.matchAssetState(new AssetQuery().id("room1a")).count() == 0
+    }
+
+    def "Match asset states with location index"() {
+
+        given: "the locations of some vehicles"
+        def locations = [
+            vehicle1: new GeoJSONPoint(5.46, 51.44),
+            vehicle2: new GeoJSONPoint(5.47, 51.45),
+            vehicle3: new GeoJSONPoint(4.90, 52.37),
+            vehicle4: new GeoJSONPoint(179.99, 0.0)
+        ]
+        locations.each { id, point ->
+            def vehicle = new Asset("Vehicle", AssetType.THING)
+            vehicle.setId(id)
+            rulesFacts.putAssetState(new AssetState(
+                vehicle, new AssetAttribute(AttributeType.LOCATION.name, AttributeValueType.GEO_JSON_POINT, point.toValue()), AttributeEvent.Source.SENSOR
+            ))
+        }
+
+        and: "a vehicle without location"
+        def unlocated = new Asset("Vehicle", AssetType.THING)
+        unlocated.setId("vehicle5")
+        rulesFacts.putAssetState(new AssetState(
+            unlocated, new AssetAttribute(AttributeType.LOCATION.name, AttributeValueType.GEO_JSON_POINT), AttributeEvent.Source.SENSOR
+        ))
+
+        expect: "only located asset states to be indexed"
+        assert rulesFacts.assetStateIndex.locationIndex.size() == 4
+
+        and: "radial and rectangular predicates to be answered from the index"
+        def radial = new RadialLocationPredicate(2000, 51.445, 5.465)
+        assert rulesFacts.assetStateIndex.getCandidates(new AssetQuery().location(radial)).index == "location"
+        assert rulesFacts.matchAssetState(new AssetQuery().location(radial)).map({ it.id }).collect(Collectors.toSet()) == ["vehicle1", "vehicle2"] as Set
+        assert rulesFacts.matchAssetState(new AssetQuery().location(new RadialLocationPredicate(100, 51.445, 5.465))).count() == 0
+        assert rulesFacts.matchAssetState(new AssetQuery().location(new RadialLocationPredicate(5000, 0.0, -179.99))).map({ it.id }).collect(Collectors.toList()) == ["vehicle4"]
+        assert rulesFacts.matchAssetState(new AssetQuery().location(new RectangularLocationPredicate(51, 4, 53, 5))).map({ it.id }).collect(Collectors.toList()) == ["vehicle3"]
+        assert rulesFacts.matchAssetState(new AssetQuery().location(new RectangularLocationPredicate(-90, -180, 90, 180))).count() == 4
+
+        and: "points close to the radius to be tested with the orthodromic distance, about 695m here"
+        assert AssetQueryPredicate.isWithinRadius(51.44, 5.46, 51.44, 5.46 + 0.01, 697)
+        assert !AssetQueryPredicate.isWithinRadius(51.44, 5.46, 51.44, 5.46 + 0.01, 694)
+
+        when: "a vehicle moves"
+        def moved = new Asset("Vehicle", AssetType.THING)
+        moved.setId("vehicle3")
+        rulesFacts.putAssetState(new AssetState(
+            moved, new AssetAttribute(AttributeType.LOCATION.name, AttributeValueType.GEO_JSON_POINT, new GeoJSONPoint(5.46, 51.445).toValue()), AttributeEvent.Source.SENSOR
+        ))
+
+        then: "it should be found at its new location"
+        assert rulesFacts.assetStateIndex.locationIndex.size() == 4
+        assert rulesFacts.matchAssetState(new AssetQuery().location(radial)).count() == 3
+        assert rulesFacts.matchAssetState(new AssetQuery().location(new RectangularLocationPredicate(51, 4, 53, 5))).count() == 0
+    }
+
+    def "Match asset states over many facts with and without indexes"() {
+
+        given: "100k asset states of 10k assets in 100 parents"
+        def assetCount = 10000
+        def attributeCount = 10
+        (0..<assetCount).each { i ->
+            def asset = new Asset("Thing " + i, AssetType.THING)
+            asset.setId("asset" + i)
+            asset.setParentId("parent" + (i % 100))
+            asset.setRealmId("realm" + (i % 2))
+            (0..<attributeCount).each { j ->
+                rulesFacts.putAssetState(new AssetState(
+                    asset, new AssetAttribute("attribute" + j, AttributeValueType.NUMBER, Values.create(i)), AttributeEvent.Source.SENSOR
+                ))
+            }
+        }
+        def allAssetStates = rulesFacts.getAssetStates()
+
+        and: "queries using each index"
+        def queries = [
+            [new AssetQuery().id("asset4711").attributeName("attribute3"), "attributeRef"],
+            [new AssetQuery().id("asset4711"), "id"],
+            [new AssetQuery().parent("parent42").attributeName("attribute3"), "parentId"],
+            [new AssetQuery().ids(["asset1", "asset2", "asset3"]).tenant(new TenantPredicate("realm1")), "id"]
+        ]
+
+        expect: "all asset states to be indexed"
+        assert rulesFacts.assetStateIndex.size() == assetCount * attributeCount
+        assert allAssetStates.size() >= RulesFacts.PARALLEL_MATCH_THRESHOLD
+
+        and: "the most selective index to be chosen, with fewer candidates than the parallel threshold"
+        queries.each { query, index ->
+            def candidates = rulesFacts.assetStateIndex.getCandidates(query)
+            assert candidates.index == index
+            assert candidates.assetStates.size() < RulesFacts.PARALLEL_MATCH_THRESHOLD
+        }
+
+        and: "indexed and linear matching to produce the same results"
+        queries.each { query, index ->
+            def linear = allAssetStates.parallelStream().filter(new AssetQueryPredicate(query)).collect(Collectors.toSet())
+            assert !linear.isEmpty()
+            assert rulesFacts.matchAssetState(query).collect(Collectors.toSet()) == linear
+        }
+
+        and: "a query without indexed predicates to match all candidates"
+        def unindexedQuery = new AssetQuery().attributeName(BaseAssetQuery.Match.BEGIN, "attribute")
+        assert rulesFacts.assetStateIndex.getCandidates(unindexedQuery) == null
+        assert rulesFacts.matchAssetState(unindexedQuery).collect(Collectors.toSet()) ==
+            allAssetStates.stream().filter(new AssetQueryPredicate(unindexedQuery)).collect(Collectors.toSet())
+        assert rulesFacts.matchAssetState(unindexedQuery).count() == allAssetStates.size()
+    }
 }
@@ -13,10 +13,12 @@ import org.openremote.model.asset.AssetAttribute
 import org.openremote.model.asset.AssetMeta
 import org.openremote.model.asset.AssetType
 import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.attribute.AttributeEvent.Source
 import org.openremote.model.attribute.AttributeValueType
 import org.openremote.model.attribute.Meta
 import org.openremote.model.attribute.MetaItem
 import org.openremote.model.rules.AssetRuleset
+import org.openremote.model.rules.AssetState
 import org.openremote.model.rules.Ruleset
 import org.openremote.model.rules.TenantRuleset
 import org.openremote.model.value.Values
@@ -24,6 +26,8 @@ import org.openremote.test.ManagerContainerTrait
 import spock.lang.Specification
 import spock.util.concurrent.PollingConditions
 
+import java.util.concurrent.CountDownLatch
+
 import static org.openremote.manager.rules.RulesetDeployment.Status.*
 import static org.openremote.manager.setup.builtin.ManagerDemoSetup.*
 import static org.openremote.test.rules.BasicRulesImport.assertRulesFired
@@ -413,5 +417,108 @@ class BasicRulesProcessingTest extends Specification implements ManagerContainer
         stopContainer(container)
     }
 
+    def "Fire rules engines concurrently and deploy while an engine is firing"() {
+        given: "expected conditions"
+        def conditions = new PollingConditions(timeout: 10, initialDelay: 0.5, delay: 0.5)
+
+        and: "the container is started"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), defaultServices())
+        def managerDemoSetup = container.getService(SetupService.class).getTaskOfType(ManagerDemoSetup.class)
+        def keycloakDemoSetup = container.getService(SetupService.class).getTaskOfType(KeycloakDemoSetup.class)
+        def rulesService = container.getService(RulesService.class)
+        def rulesetStorageService = container.getService(RulesetStorageService.class)
+        def assetStorageService = container.getService(AssetStorageService.class)
+
+        and: "some test rulesets have been imported"
+        def rulesImport = new BasicRulesImport(rulesetStorageService, keycloakDemoSetup, managerDemoSetup)
+
+        expect: "the rules engines to be ready"
+        conditions.eventually {
+            rulesImport.assertEnginesReady(rulesService, keycloakDemoSetup, managerDemoSetup)
+            assert rulesImport.apartment2Engine.assetStates.size() == DEMO_RULE_STATES_APARTMENT_2
+        }
+
+        when: "the apartment 2 rules engine is busy firing"
+        rulesImport.resetRulesFired()
+        def apartment2Engine = rulesImport.apartment2Engine
+        def firing = new CountDownLatch(1)
+        def fired = new CountDownLatch(1)
+        Thread.start {
+            apartment2Engine.lock.lock()
+            try {
+                firing.countDown()
+                fired.await()
+            } finally {
+                apartment2Engine.lock.unlock()
+                apartment2Engine.applyQueuedFactChanges()
+            }
+        }
+        firing.await()
+
+        and: "an asset state in scope of other engines changes"
+        def apartment3Livingroom = assetStorageService.find(managerDemoSetup.apartment3LivingroomId, true)
+        def lightSwitch = apartment3Livingroom.getAttribute("lightSwitch").get()
+        lightSwitch.setValue(Values.create(true))
+        rulesService.updateAssetState(new AssetState(apartment3Livingroom, lightSwitch, Source.INTERNAL), true, true)
+
+        then: "the other engines should fire without waiting for the busy engine"
+        conditions.eventually {
+            assert rulesImport.globalEngine.facts.namedFacts.containsKey("All")
+            assert rulesImport.customerAEngine.facts.namedFacts.containsKey("All")
+            assert rulesImport.apartment3Engine.facts.namedFacts.containsKey("All")
+            assert apartment2Engine.lock.isLocked()
+        }
+
+        when: "a ruleset is deployed into the busy engine"
+        rulesImport.resetRulesFired()
+        def ruleset = new AssetRuleset(
+            "Some more apartment 2 rules",
+            managerDemoSetup.apartment2Id,
+            getClass().getResource("/org/openremote/test/rules/BasicMatchAllAssetStates2.groovy").text,
+            Ruleset.Lang.GROOVY
+        )
+        rulesetStorageService.merge(ruleset)
+
+        then: "the deployment should wait for the busy engine"
+        conditions.eventually {
+            assert apartment2Engine.lock.hasQueuedThreads()
+        }
+
+        when: "an asset state in scope of the busy engine changes while the deployment is waiting"
+        def apartment2Livingroom = assetStorageService.find(managerDemoSetup.apartment2LivingroomId, true)
+        def presenceDetected = apartment2Livingroom.getAttribute("presenceDetected").get()
+        presenceDetected.setValue(Values.create(true))
+        rulesService.updateAssetState(new AssetState(apartment2Livingroom, presenceDetected, Source.INTERNAL), true, true)
+
+        then: "the engines in scope which aren't busy should fire"
+        conditions.eventually {
+            assert rulesImport.globalEngine.facts.namedFacts.containsKey("All")
+            assert rulesImport.customerAEngine.facts.namedFacts.containsKey("All")
+            assert apartment2Engine.lock.isLocked()
+            assert apartment2Engine.deployments.size() == 1
+        }
+
+        when: "the busy engine finishes firing"
+        fired.countDown()
+
+        then: "the ruleset should be deployed and the engine should fire with the changed asset state"
+        conditions.eventually {
+            assert apartment2Engine.running
+            assert apartment2Engine.deployments.size() == 2
+            assert apartment2Engine.deployments.values().every({ it.status == DEPLOYED })
+            assert apartment2Engine.assetStates.any({
+                it.id == managerDemoSetup.apartment2LivingroomId && it.attributeName == "presenceDetected" && it.valueAsBoolean.orElse(false)
+            })
+            assert apartment2Engine.facts.namedFacts.containsKey("All")
+        }
+
+        cleanup: "the busy engine should be released"
+        fired.countDown()
+
+        and: "the server should be stopped"
+        stopContainer(container)
+    }
+
     //TODO add test for location Predicates in AssetQueryPredicate
 }